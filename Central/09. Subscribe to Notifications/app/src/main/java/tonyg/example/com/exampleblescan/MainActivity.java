@@ -16,9 +16,12 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import tonyg.example.com.exampleblescan.ble.BleCommManager;
+import tonyg.example.com.exampleblescan.ble.OnboardingPipeline;
+import tonyg.example.com.exampleblescan.ble.callbacks.OnboardingCallback;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv21;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv18;
 import tonyg.example.com.exampleblescan.models.BlePeripheralListItem;
@@ -38,6 +41,7 @@ public class MainActivity extends AppCompatActivity {
 
     /** Bluetooth Stuff **/
     private BleCommManager mBleCommManager;
+    private OnboardingPipeline mOnboardingPipeline;
 
     /** Activity State **/
     private boolean mScanningActive = false;
@@ -76,6 +80,12 @@ public class MainActivity extends AppCompatActivity {
         super.onPause();
         // stop scanning when the activity pauses
         mBleCommManager.stopScanning(mBleScanCallbackv18, mScanCallbackv21);
+        // and onboarding, which holds several connections open
+        if (mOnboardingPipeline != null) {
+            OnboardingPipeline pipeline = mOnboardingPipeline;
+            mOnboardingPipeline = null;
+            pipeline.cancel();
+        }
     }
 
 
@@ -158,6 +168,11 @@ public class MainActivity extends AppCompatActivity {
                 stopScan();
                 return true;
 
+            case R.id.action_onboard:
+                // User chose the "Onboard All" item
+                onboardPeripherals();
+                return true;
+
             default:
                 // If we got here, the user's action was not recognized.
                 // Invoke the superclass to handle it.
@@ -217,6 +232,24 @@ public class MainActivity extends AppCompatActivity {
         mBleCommManager.stopScanning(mBleScanCallbackv18, mScanCallbackv21);
     }
 
+    /**
+     * Connect to every Peripheral in the list, one small batch at a time, and read its identity
+     */
+    public void onboardPeripherals() {
+        if (mOnboardingPipeline != null && mOnboardingPipeline.isRunning()) return;
+        stopScan();
+
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (BlePeripheralListItem listItem : mBlePeripheralsListAdapter.getItems()) {
+            devices.add(listItem.getDevice());
+        }
+        Toast.makeText(this, getString(R.string.onboarding, devices.size()), Toast.LENGTH_SHORT).show();
+
+        // the pipeline can outlive this Activity's window, so don't let it hold the Activity
+        mOnboardingPipeline = new OnboardingPipeline(getApplicationContext(), mOnboardingCallback);
+        mOnboardingPipeline.start(devices);
+    }
+
     /**
      * Event trigger when BLE Scanning has stopped
      */
@@ -283,6 +316,31 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Log each onboarded Peripheral and show the totals when the batch is done
+     */
+    private final OnboardingCallback mOnboardingCallback = new OnboardingCallback() {
+        @Override
+        public void onPeripheralOnboarded(OnboardingPipeline.Result result) {
+            Log.v(TAG, "Onboarded " + result);
+        }
+
+        @Override
+        public void onPeripheralFailed(OnboardingPipeline.Result result) {
+            Log.w(TAG, "Could not onboard " + result);
+        }
+
+        @Override
+        public void onPipelineComplete(OnboardingPipeline pipeline) {
+            Log.v(TAG, "Onboarding complete. " + pipeline.getSummary());
+            // a pipeline cancelled by onPause() has nobody to report to
+            if (pipeline != mOnboardingPipeline) return;
+            Toast.makeText(MainActivity.this, getString(R.string.onboarding_complete,
+                    pipeline.getSucceededCount(), pipeline.getFailedCount(), pipeline.getDevicesPerMinute()),
+                    Toast.LENGTH_LONG).show();
+        }
+    };
+
     /**
      * Use this callback for Android API 21 (Lollipop) or greater
      */
@@ -6,14 +6,16 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanResult;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -23,15 +25,36 @@ import android.widget.CompoundButton;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.ble.BleCommManager;
+import tonyg.example.com.exampleblescan.ble.BleGattProfileIndex;
 import tonyg.example.com.exampleblescan.ble.BlePeripheral;
+import tonyg.example.com.exampleblescan.ble.GattFuture;
+import tonyg.example.com.exampleblescan.ble.GattStatus;
+import tonyg.example.com.exampleblescan.ble.NotificationDispatcher;
+import tonyg.example.com.exampleblescan.ble.NotificationRecorder;
+import tonyg.example.com.exampleblescan.ble.NotificationRecording;
+import tonyg.example.com.exampleblescan.ble.NotificationReplayer;
+import tonyg.example.com.exampleblescan.ble.NotificationStats;
+import tonyg.example.com.exampleblescan.ble.callbacks.BlePollCallback;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv18;
 import tonyg.example.com.exampleblescan.ble.callbacks.BleScanCallbackv21;
+import tonyg.example.com.exampleblescan.ble.decoders.CharacteristicDecoderRegistry;
+import tonyg.example.com.exampleblescan.ble.decoders.CharacteristicValue;
+import tonyg.example.com.exampleblescan.ble.decoders.DecodedValue;
 import tonyg.example.com.exampleblescan.models.BlePeripheralListItem;
-import tonyg.example.com.exampleblescan.utilities.DataConverter;
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+import tonyg.example.com.exampleblescan.utilities.SlidingWindowAggregator;
+import tonyg.example.com.exampleblescan.utilities.TumblingWindowAggregator;
+import tonyg.example.com.exampleblescan.utilities.WindowAggregate;
+import tonyg.example.com.exampleblescan.views.RingLogView;
 
 /**
  * Connect to a BLE Device, list its GATT services
@@ -42,6 +65,14 @@ import tonyg.example.com.exampleblescan.utilities.DataConverter;
 public class TalkActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = TalkActivity.class.getSimpleName();
+    private static final long POLL_INTERVAL_MS = 1000;
+    private static final long WRITE_TIMEOUT_MS = 10000;
+    private static final float DEFAULT_REFRESH_RATE = 60; // Hz, if the display doesn't say
+    private static final long STATS_REFRESH_MS = 500;
+    private static final String RECORDING_DIRECTORY = "recordings";
+    private static final long AGGREGATE_WINDOW_NS = 1000000000L; // one summary per second
+    private static final long ROLLING_WINDOW_NS = 5000000000L;
+    private static final int ROLLING_WINDOW_CAPACITY = 1024; // 200Hz for 5s
 
     public static final String PERIPHERAL_NAME = "com.example.com.exampleble.PERIPHERAL_NAME";
     public static final String PERIPHERAL_MAC_ADDRESS_KEY = "com.example.com.exampleble.PERIPHERAL_MAC_ADDRESS";
@@ -53,6 +84,7 @@ public class TalkActivity extends AppCompatActivity {
     private BlePeripheral mBlePeripheral;
 
     private BluetoothGattCharacteristic mCharacteristic;
+    private int mCharacteristicHandle = BleGattProfileIndex.NO_HANDLE;
 
     /** Functional stuff **/
     private String mBlePeripheralName;
@@ -62,10 +94,39 @@ public class TalkActivity extends AppCompatActivity {
     private boolean mScanningActive = false;
 
     /** UI Stuff **/
-    private MenuItem mProgressSpinner;
-    private TextView mResponseText, mSendText, mPeripheralBroadcastNameTV, mPeripheralAddressTV, mServiceUUIDTV;
+    private MenuItem mProgressSpinner, mReplayItem;
+    private RingLogView mResponseText;
+    private TextView mSendText, mPeripheralBroadcastNameTV, mPeripheralAddressTV, mServiceUUIDTV;
     private Button mSendButton, mReadButton;
-    private CheckBox mSubscribeCheckbox;
+    private CheckBox mSubscribeCheckbox, mPollCheckbox, mRecordCheckbox, mDecodeCheckbox;
+    private TextView mNotificationStatsTV;
+
+    /** Response text waiting for the next frame **/
+    private final StringBuilder mPendingResponseText = new StringBuilder();
+    private int mPendingResponseLines = 0;
+    private long mResponseFlushRequestedAt_ns = 0; // 0 when no frame callback is pending
+    private final LatencyHistogram mLinesPerFrame = new LatencyHistogram("response lines per frame", "lines");
+    private long mResponseFrames = 0;
+    private long mResponseFramesDropped = 0;
+    private long mFrameInterval_ns; // the display's refresh period
+
+    /** Notification stats overlay **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private NotificationStats mNotificationStats;
+    private final NotificationStats.Snapshot mNotificationStatsSnapshot = new NotificationStats.Snapshot();
+
+    /** Notification values, reduced to a few figures a second **/
+    private final WindowAggregate mLastSecond = new WindowAggregate();
+    private final WindowAggregate mRollingWindow = new WindowAggregate();
+    private final SlidingWindowAggregator mRollingAggregator = new SlidingWindowAggregator(ROLLING_WINDOW_NS, ROLLING_WINDOW_CAPACITY);
+    private final byte[] mAggregateRecord = new byte[WindowAggregate.ENCODED_LENGTH];
+
+    /** Values are only decoded or converted to text when shown.  One per thread **/
+    private final CharacteristicValue mNotificationValue = new CharacteristicValue(); // UI thread
+    private final CharacteristicValue mReadValue = new CharacteristicValue(); // Binder thread
+    private volatile boolean mDecodeValues = false; // values are shown as text unless the user asks for them decoded
+    private long mDeviceKey;
+    private volatile NotificationReplayer mReplayer; // null unless a recording is being replayed
 
 
     @Override
@@ -107,7 +168,7 @@ public class TalkActivity extends AppCompatActivity {
      * Load UI components
      */
     public void loadUI() {
-        mResponseText = (TextView) findViewById(R.id.response_text);
+        mResponseText = (RingLogView) findViewById(R.id.response_text);
         mSendText = (TextView) findViewById(R.id.write_text);
         mPeripheralBroadcastNameTV = (TextView)findViewById(R.id.broadcast_name);
         mPeripheralAddressTV = (TextView)findViewById(R.id.mac_address);
@@ -123,12 +184,22 @@ public class TalkActivity extends AppCompatActivity {
         mServiceUUIDTV.setText(mCharacteristicUUID.toString());
 
         mSubscribeCheckbox = (CheckBox) findViewById(R.id.subscribe_checkbox);
+        mPollCheckbox = (CheckBox) findViewById(R.id.poll_checkbox);
+        mRecordCheckbox = (CheckBox) findViewById(R.id.record_checkbox);
+        mDecodeCheckbox = (CheckBox) findViewById(R.id.decode_checkbox);
+        mNotificationStatsTV = (TextView) findViewById(R.id.notification_stats);
+
+        float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+        mFrameInterval_ns = (long) (1000000000L / (refreshRate > 0 ? refreshRate : DEFAULT_REFRESH_RATE));
 
         mSendButton.setVisibility(View.GONE);
         mSendText.setVisibility(View.GONE);
         mReadButton.setVisibility(View.GONE);
         mResponseText.setVisibility(View.GONE);
         mSubscribeCheckbox.setVisibility(View.GONE);
+        mPollCheckbox.setVisibility(View.GONE);
+        mRecordCheckbox.setVisibility(View.GONE);
+        mDecodeCheckbox.setVisibility(View.GONE);
     }
 
 
@@ -136,6 +207,7 @@ public class TalkActivity extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_talk, menu);
+        mReplayItem = menu.findItem(R.id.action_replay);
         return true;
     }
 
@@ -157,6 +229,10 @@ public class TalkActivity extends AppCompatActivity {
                 disconnect();
                 return true;
 
+            case R.id.action_replay:
+                startReplay();
+                return true;
+
             default:
                 // If we got here, the user's action was not recognized.
                 // Invoke the superclass to handle it.
@@ -199,6 +275,14 @@ public class TalkActivity extends AppCompatActivity {
         mProgressSpinner.setVisible(false);
     }
 
+    /**
+     * Peripheral connection dropped and is being restored.  Update UI
+     */
+    public void onBleReconnecting() {
+        mPeripheralBroadcastNameTV.setText(R.string.reconnecting);
+        mProgressSpinner.setVisible(true);
+    }
+
     /**
      * characteristic supports writes.  Update UI
      */
@@ -216,7 +300,19 @@ public class TalkActivity extends AppCompatActivity {
                 Log.v(TAG, "Send button clicked");
                 String message = mSendText.getText().toString();
                 try {
-                    mBlePeripheral.writeValueToCharacteristic(message, mCharacteristic);
+                    byte[] messageBytes = message.getBytes(BlePeripheral.CHARACTER_ENCODING);
+                    mBlePeripheral.writeAsync(mCharacteristic, messageBytes)
+                            .setTimeout(WRITE_TIMEOUT_MS)
+                            .addListener(new GattFuture.Listener<BluetoothGattCharacteristic>() {
+                                @Override
+                                public void onComplete(GattFuture<BluetoothGattCharacteristic> future) {
+                                    if (future.isSuccess()) {
+                                        onBleCharacteristicValueWritten();
+                                    } else {
+                                        Log.e(TAG, "Message not sent: " + GattStatus.toString(future.getStatus()));
+                                    }
+                                }
+                            }, GattFuture.MAIN_THREAD);
 
                 } catch (Exception e) {
                     Log.e(TAG, "problem sending message through bluetooth");
@@ -225,6 +321,24 @@ public class TalkActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Offer to decode values if there is a decoder for the Characteristic.
+     * Until the user asks, values are shown as text and summarized as integers
+     */
+    private void showDecodeCheckbox() {
+        if (CharacteristicDecoderRegistry.getDefault().getDecoder(mCharacteristicUUID) == null) return;
+        mDecodeCheckbox.setVisibility(View.VISIBLE);
+        mDecodeCheckbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                mDecodeValues = isChecked;
+                // figures from before and after the switch don't mix
+                mSecondAggregator.reset();
+                mRollingAggregator.reset();
+            }
+        });
+    }
+
     /**
      * Charactersitic supports reads.  Update UI
      */
@@ -233,6 +347,7 @@ public class TalkActivity extends AppCompatActivity {
 
         mReadButton.setVisibility(View.VISIBLE);
         mResponseText.setVisibility(View.VISIBLE);
+        showDecodeCheckbox();
         mReadButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -241,26 +356,318 @@ public class TalkActivity extends AppCompatActivity {
             }
         });
 
+        // a Characteristic that can't notify can still be watched by reading it repeatedly
+        if (!BlePeripheral.isCharacteristicNotifiable(mCharacteristic)) {
+            mPollCheckbox.setVisibility(View.VISIBLE);
+            mPollCheckbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    if (isChecked) {
+                        mBlePeripheral.getCharacteristicPoller().startPolling(mCharacteristic, POLL_INTERVAL_MS, mPollCallback);
+                    } else {
+                        mBlePeripheral.getCharacteristicPoller().stopPolling(mCharacteristic, mPollCallback);
+                    }
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Characteristic supports notifications.  Update UI
+     */
+    public void onCharacteristicNotifiable() {
+        Log.v(TAG, "Characteristic is notifiable");
+
+        mSubscribeCheckbox.setVisibility(View.VISIBLE);
+        mResponseText.setVisibility(View.VISIBLE);
+        showDecodeCheckbox();
+        mBlePeripheral.getNotificationDispatcher().setOnAvailableListener(new NotificationDispatcher.OnAvailableListener() {
+            @Override
+            public void onNotificationsAvailable(NotificationDispatcher dispatcher) {
+                runOnUiThread(mDrainNotifications);
+            }
+        });
+        if (mReplayItem != null) mReplayItem.setVisible(true);
+        mRecordCheckbox.setVisibility(View.VISIBLE);
+        mRecordCheckbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setRecording(isChecked);
+            }
+        });
+        mSubscribeCheckbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, final boolean isChecked) {
+                Log.v(TAG, (isChecked ? "Subscribing to " : "Unsubscribing from ") + mCharacteristic.getUuid());
+                // notifications that arrive before the Peripheral confirms are delivered too
+                mBlePeripheral.getNotificationDispatcher().setConsumer(mCharacteristicHandle, isChecked ? mNotificationConsumer : null);
+                // the dispatcher takes one producer at a time
+                if (mReplayItem != null) mReplayItem.setEnabled(!isChecked);
+                if (isChecked) {
+                    mNotificationStats = mBlePeripheral.getNotificationStats(mCharacteristicHandle);
+                    mNotificationStats.reset();
+                    mDeviceKey = NotificationRecorder.getDeviceKey(mBlePeripheral.getBluetoothDevice().getAddress());
+                    mSecondAggregator.reset();
+                    mRollingAggregator.reset();
+                    mNotificationStatsTV.setVisibility(View.VISIBLE);
+                    mHandler.post(mRefreshNotificationStats);
+                } else {
+                    // hand over the partial second and leave the last figures on screen
+                    mHandler.removeCallbacks(mRefreshNotificationStats);
+                    mSecondAggregator.flush();
+                    showNotificationStats();
+                }
+                mBlePeripheral.subscribeAsync(mCharacteristic, isChecked)
+                        .addListener(new GattFuture.Listener<BluetoothGattCharacteristic>() {
+                            @Override
+                            public void onComplete(GattFuture<BluetoothGattCharacteristic> future) {
+                                if (!future.isSuccess()) {
+                                    Log.e(TAG, "Subscription change failed: " + GattStatus.toString(future.getStatus()));
+                                    Toast.makeText(TalkActivity.this, "Could not change subscription", Toast.LENGTH_SHORT).show();
+                                }
+                            }
+                        }, GattFuture.MAIN_THREAD);
+            }
+        });
+    }
+
+    /**
+     * Start writing every notification to a new recording, or stop
+     *
+     * @param enabled <b>true</b> to start recording
+     */
+    private void setRecording(boolean enabled) {
+        final NotificationRecorder stoppedRecorder = mBlePeripheral.getNotificationRecorder();
+        if (stoppedRecorder != null) {
+            mBlePeripheral.setNotificationRecorder(null);
+            // stopping waits for the last group to be written and the segment flushed.  Keep that off the UI thread
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stoppedRecorder.stop();
+                    Log.v(TAG, "Stopped recording to " + stoppedRecorder.getDirectory() + ": " + stoppedRecorder.getSummary());
+                }
+            }, "Stop recording").start();
+        }
+        if (enabled) {
+            File directory = getRecordingDirectory();
+            String name = "notifications-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+            // slots hold the longest attribute value, not the current MTU's.  The MTU can grow while recording
+            NotificationRecorder recorder = new NotificationRecorder(directory, name);
+            recorder.start();
+            mBlePeripheral.setNotificationRecorder(recorder);
+            Log.v(TAG, "Recording notifications to " + directory + "/" + name);
+        }
+    }
+
+    /**
+     * @return where recordings are kept: external storage if there is any, internal if not
+     */
+    private File getRecordingDirectory() {
+        File directory = getExternalFilesDir(RECORDING_DIRECTORY);
+        if (directory == null) directory = new File(getFilesDir(), RECORDING_DIRECTORY);
+        return directory;
+    }
+
+    /**
+     * @return the most recent recording, or <b>null</b> if there are none
+     */
+    private NotificationRecording findLatestRecording() {
+        File directory = getRecordingDirectory();
+        String firstSegment = NotificationRecorder.getSegmentFile(directory, "", 0).getName();
+        String latest = null;
+        String[] files = directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (!file.endsWith(firstSegment)) continue;
+                // names carry the time recording started, so the latest sorts last
+                String name = file.substring(0, file.length() - firstSegment.length());
+                if (latest == null || name.compareTo(latest) > 0) latest = name;
+            }
+        }
+        return latest != null ? new NotificationRecording(directory, latest) : null;
+    }
+
+    /**
+     * Play the latest recording back through the notification dispatcher, on a background thread,
+     * as if the Peripheral were sending it again.  Only while unsubscribed: the dispatcher
+     * takes one producer at a time, so subscribing is blocked until the replay ends
+     */
+    private void startReplay() {
+        if (mReplayer != null || mSubscribeCheckbox.isChecked()) return;
+        final NotificationRecording recording = findLatestRecording();
+        if (recording == null) {
+            Toast.makeText(this, R.string.no_recordings, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final NotificationReplayer replayer = new NotificationReplayer();
+        mReplayer = replayer;
+        mSubscribeCheckbox.setEnabled(false);
+        mReplayItem.setEnabled(false);
+
+        final NotificationDispatcher dispatcher = mBlePeripheral.getNotificationDispatcher();
+        dispatcher.setConsumer(mCharacteristicHandle, mNotificationConsumer);
+        mNotificationStats = mBlePeripheral.getNotificationStats(mCharacteristicHandle);
+        mNotificationStats.reset();
+        mSecondAggregator.reset();
+        mRollingAggregator.reset();
+        mNotificationStatsTV.setVisibility(View.VISIBLE);
+        mHandler.post(mRefreshNotificationStats);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long replayed = replayer.replay(recording, dispatcher);
+                    Log.v(TAG, "Replayed " + replayed + " notifications: " + replayer.getSummary());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not replay the recording", e);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopReplay(replayer);
+                    }
+                });
+            }
+        }, "Replay").start();
+    }
+
+    /**
+     * A replay has ended.  Show what is left of it and allow subscribing again
+     *
+     * @param replayer the replay that ended
+     */
+    private void stopReplay(NotificationReplayer replayer) {
+        if (mReplayer != replayer) return; // cancelled by disconnect()
+        mReplayer = null;
+        NotificationDispatcher dispatcher = mBlePeripheral.getNotificationDispatcher();
+        dispatcher.drain();
+        dispatcher.setConsumer(mCharacteristicHandle, null);
+        mHandler.removeCallbacks(mRefreshNotificationStats);
+        mSecondAggregator.flush();
+        showNotificationStats();
+        mSubscribeCheckbox.setEnabled(true);
+        mReplayItem.setEnabled(true);
+    }
+
+    /**
+     * Notifications are waiting in the dispatcher.  Runs on the UI thread
+     */
+    private final Runnable mDrainNotifications = new Runnable() {
+        @Override
+        public void run() {
+            mBlePeripheral.getNotificationDispatcher().drain();
+        }
+    };
+
+    /**
+     * Keep the notification stats overlay up to date while subscribed
+     */
+    private final Runnable mRefreshNotificationStats = new Runnable() {
+        @Override
+        public void run() {
+            showNotificationStats();
+            mHandler.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
 
+    /**
+     * Show the Characteristic's notification rate, interval and gaps over the response log.
+     * The figures are brought up to now, so they don't stick when the notifications stop
+     */
+    private void showNotificationStats() {
+        long now_ns = System.nanoTime();
+        mNotificationStats.snapshot(mNotificationStatsSnapshot, now_ns);
+        mSecondAggregator.advanceTo(now_ns);
+        mRollingAggregator.getAggregate(mRollingWindow, now_ns);
+        mNotificationStatsTV.setText(getString(R.string.notification_stats,
+                mNotificationStatsSnapshot.rate,
+                mNotificationStatsSnapshot.bytesPerSecond,
+                mNotificationStatsSnapshot.intervalP50_us / 1000.0,
+                mNotificationStatsSnapshot.intervalP99_us / 1000.0,
+                mNotificationStatsSnapshot.intervalMax_us / 1000.0,
+                mNotificationStatsSnapshot.gaps,
+                mNotificationStatsSnapshot.missing,
+                mLastSecond.last,
+                mLastSecond.min,
+                mLastSecond.max,
+                mLastSecond.mean,
+                mRollingWindow.mean,
+                mRollingWindow.getStandardDeviation()));
     }
 
     /**
-     * Update TextView when a new message is read from a Charactersitic
-     * Also scroll to the bottom so that new messages are always in view
+     * Once a second, keep the figures for the overlay and write them to the recording, if there is one
+     */
+    private final TumblingWindowAggregator mSecondAggregator = new TumblingWindowAggregator(AGGREGATE_WINDOW_NS,
+            new WindowAggregate.Listener() {
+                @Override
+                public void onWindow(WindowAggregate aggregate) {
+                    mLastSecond.set(aggregate);
+                    NotificationRecorder recorder = mBlePeripheral.getNotificationRecorder();
+                    if (recorder != null) {
+                        aggregate.encode(mAggregateRecord, 0);
+                        recorder.record(mDeviceKey, mCharacteristicHandle | NotificationRecorder.AGGREGATE_HANDLE_FLAG,
+                                aggregate.windowEnd_ns, mAggregateRecord);
+                    }
+                }
+            });
+
+    /**
+     * Show each notification of the Characteristic as text
+     */
+    private final NotificationDispatcher.Consumer mNotificationConsumer = new NotificationDispatcher.Consumer() {
+        @Override
+        public void onNotification(int handle, long timestamp_ns, byte[] payload, int length) {
+            mNotificationValue.set(mCharacteristicUUID, payload, 0, length);
+            DecodedValue decoded = mDecodeValues ? mNotificationValue.getDecoded() : null;
+            updateResponseText(decoded != null ? decoded.toString() : mNotificationValue.getText());
+            // summarize the decoded value, or the raw value read as a little-endian integer
+            double value = decoded != null ? decoded.getPrimaryValue() : mNotificationValue.getLong();
+            mSecondAggregator.add(timestamp_ns, value);
+            mRollingAggregator.add(timestamp_ns, value);
+        }
+    };
+
+    /**
+     * Update the response log when a new message is read from a Charactersitic.
+     * Messages are collected and added to the log once per frame, so a fast stream
+     * of notifications costs one layout per frame instead of one per message
      *
      * @param message the Characterstic value to display in the UI as text
      */
     public void updateResponseText(String message) {
-        mResponseText.append(message + "\n");
-        final int scrollAmount = mResponseText.getLayout().getLineTop(mResponseText.getLineCount()) - mResponseText.getHeight();
-        // if there is no need to scroll, scrollAmount will be <=0
-        if (scrollAmount > 0) {
-            mResponseText.scrollTo(0, scrollAmount);
-        } else {
-            mResponseText.scrollTo(0, 0);
+        mPendingResponseText.append(message).append('\n');
+        mPendingResponseLines++;
+        if (mResponseFlushRequestedAt_ns == 0) {
+            mResponseFlushRequestedAt_ns = System.nanoTime();
+            Choreographer.getInstance().postFrameCallback(mResponseFrameCallback);
         }
     }
 
+    /**
+     * Add everything received since the last frame to the log in one append.
+     * The log follows the newest line, so new messages are always in view
+     */
+    private final Choreographer.FrameCallback mResponseFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // a flush should land on the first vsync after it was requested, within one refresh period.
+            // Each further period it waited was a dropped frame
+            long delay_ns = frameTimeNanos - mResponseFlushRequestedAt_ns;
+            if (delay_ns > mFrameInterval_ns) mResponseFramesDropped += (delay_ns - 1) / mFrameInterval_ns;
+            mResponseFlushRequestedAt_ns = 0;
+            mResponseFrames++;
+            mLinesPerFrame.record(mPendingResponseLines);
+
+            mResponseText.append(mPendingResponseText);
+            mPendingResponseText.setLength(0);
+            mPendingResponseLines = 0;
+        }
+    };
+
     /**
      * Clear the input TextView when a Characteristic is successfully written to.
      */
@@ -288,27 +695,26 @@ public class TalkActivity extends AppCompatActivity {
             // on Android and display it in the UI
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
-                final byte[] data = characteristic.getValue();
-                try {
-                    final String message = new String(data, BlePeripheral.CHARACTER_ENCODING);
-                    Log.v(TAG, "Characteristic read hex value: "+ DataConverter.bytesToHex(data));
-                    Log.v(TAG, "Characteristic read int value: "+ DataConverter.bytesToLong(data));
-                    Log.v(TAG, "Characteristic read float value: "+ DataConverter.bytesToFloat(data));
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            updateResponseText(message);
-                        }
-                    });
-                } catch (Exception e) {
-                    Log.e(TAG, "Could not convert message byte array to String");
+                mReadValue.set(characteristic.getUuid(), characteristic.getValue());
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    // only worked out when verbose logging is turned on
+                    Log.v(TAG, "Characteristic read hex value: " + mReadValue.getHex());
+                    Log.v(TAG, "Characteristic read int value: " + mReadValue.getLong());
+                    Log.v(TAG, "Characteristic read float value: " + mReadValue.getFloat());
                 }
+                DecodedValue decoded = mDecodeValues ? mReadValue.getDecoded() : null;
+                final String message = decoded != null ? decoded.toString() : mReadValue.getText();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateResponseText(message);
+                    }
+                });
             }
         }
 
         /**
-         * Characteristic was written successfully.  update the UI
+         * Characteristic was written.  The Send button's GattFuture updates the UI
          *
          * @param gatt Connection to the GATT
          * @param characteristic The Characteristic that was written
@@ -317,14 +723,6 @@ public class TalkActivity extends AppCompatActivity {
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Log.v(TAG, "characteristic written");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onBleCharacteristicValueWritten();
-                    }
-                });
-            }
         }
 
         /**
@@ -348,6 +746,17 @@ public class TalkActivity extends AppCompatActivity {
 
                 bluetoothGatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                if (mBlePeripheral.isReconnecting()) {
+                    // the link dropped unexpectedly.  BlePeripheral will bring it back
+                    Log.v(TAG, "Connection lost, reconnecting");
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onBleReconnecting();
+                        }
+                    });
+                    return;
+                }
                 Log.v(TAG, "Disconnected from peripheral");
 
                 disconnect();
@@ -365,24 +774,17 @@ public class TalkActivity extends AppCompatActivity {
 
             // if services were discovered, then let's iterate through them and display them on screen
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                // connect to a specific service
-
-                BluetoothGattService gattService = bluetoothGatt.getService(mServiceUUID);
-                // while we are here, let's ask for this service's characteristics:
-                List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
-                for (BluetoothGattCharacteristic characteristic : characteristics) {
-                    if (characteristic != null) {
-                        Log.v(TAG, "found characteristic: "+characteristic.getUuid().toString());
-                    }
+                // look up the desired Characteristic in the profile index BlePeripheral built
+                BleGattProfileIndex profileIndex = mBlePeripheral.getProfileIndex();
+                int handle = profileIndex.getHandle(mServiceUUID, mCharacteristicUUID);
+                if (handle == BleGattProfileIndex.NO_HANDLE) {
+                    Log.e(TAG, "Characteristic " + mCharacteristicUUID + " not found in service " + mServiceUUID);
+                    return;
                 }
+                mCharacteristic = profileIndex.getCharacteristic(handle);
+                mCharacteristicHandle = handle;
 
                 // determine the read/write/notify permissions of the Characterstic
-                Log.v(TAG, "desired service is: "+mServiceUUID.toString());
-                Log.v(TAG, "desired charactersitic is: "+mCharacteristicUUID.toString());
-                Log.v(TAG, "this service: "+bluetoothGatt.getService(mServiceUUID).getUuid().toString());
-                Log.v(TAG, "this characteristic: "+bluetoothGatt.getService(mServiceUUID).getCharacteristic(mCharacteristicUUID).getUuid().toString());
-
-                mCharacteristic = bluetoothGatt.getService(mServiceUUID).getCharacteristic(mCharacteristicUUID);
                 if (BlePeripheral.isCharacteristicReadable(mCharacteristic)) {
                     runOnUiThread(new Runnable() {
                         @Override
@@ -392,6 +794,15 @@ public class TalkActivity extends AppCompatActivity {
                     });
                 }
 
+                if (BlePeripheral.isCharacteristicNotifiable(mCharacteristic)) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCharacteristicNotifiable();
+                        }
+                    });
+                }
+
                 if (BlePeripheral.isCharacteristicWritable(mCharacteristic)) {
                     runOnUiThread(new Runnable() {
                         @Override
@@ -411,13 +822,44 @@ public class TalkActivity extends AppCompatActivity {
     };
 
 
+    /**
+     * Polled values arrive through BluetoothGattCallback.onCharacteristicRead like any other read.
+     * This listener keeps the poll running and reports failures
+     */
+    private final BlePollCallback mPollCallback = new BlePollCallback() {
+        @Override
+        public void onCharacteristicPolled(BluetoothGattCharacteristic characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Poll of " + characteristic.getUuid() + " failed: " + GattStatus.toString(status));
+            }
+        }
+    };
+
+
     /**
      * Disconnect
      */
     private void disconnect() {
-        // close the Activity when disconnecting.  No actions can be done without a connection
+        NotificationReplayer replayer = mReplayer;
+        if (replayer != null) {
+            mReplayer = null;
+            replayer.cancel();
+        }
+        mBlePeripheral.getCharacteristicPoller().stopAll();
         mBlePeripheral.disconnect();
-        finish();
+        // may be called from a Bluetooth callback.  The Choreographer only exists on the UI thread
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // close the Activity when disconnecting.  No actions can be done without a connection
+                Choreographer.getInstance().removeFrameCallback(mResponseFrameCallback);
+                mHandler.removeCallbacks(mRefreshNotificationStats);
+                mSecondAggregator.flush(); // into the recording
+                setRecording(false);
+                Log.v(TAG, "Response text: " + mResponseFrames + " frames, " + mResponseFramesDropped + " dropped. " + mLinesPerFrame);
+                finish();
+            }
+        });
     }
 
 
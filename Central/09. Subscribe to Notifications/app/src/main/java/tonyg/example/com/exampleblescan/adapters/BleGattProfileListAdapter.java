@@ -2,7 +2,6 @@ package tonyg.example.com.exampleblescan.adapters;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,6 +11,7 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 import tonyg.example.com.exampleblescan.R;
 import tonyg.example.com.exampleblescan.ble.BlePeripheral;
@@ -30,6 +30,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
 
     private ArrayList<BleGattServiceListItem> mBleGattServiceListItems = new ArrayList<>(); // list of Services
     private Map<Integer, ArrayList<BleGattCharacteristicListItem>> mBleCharacteristicListItems = new HashMap<Integer, ArrayList<BleGattCharacteristicListItem>>(); // list of Characteristics
+    private Map<UUID, Integer> mServiceItemIds = new HashMap<UUID, Integer>(); // Service UUID -> Service ListItem ID
 
     /**
      * Instantiate the class
@@ -67,6 +68,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
         BleGattServiceListItem serviceListItem = new BleGattServiceListItem(service, serviceItemID);
         mBleGattServiceListItems.add(serviceListItem);
         mBleCharacteristicListItems.put(serviceItemID, new ArrayList<BleGattCharacteristicListItem>());
+        mServiceItemIds.put(service.getUuid(), serviceItemID);
     }
 
     /**
@@ -78,18 +80,10 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
      */
     public void addCharacteristic(BluetoothGattService service, BluetoothGattCharacteristic characteristic) throws Exception {
         // find the Service in this listView with matching UUID from the input service
-        int serviceItemId = -1;
-        for (BleGattServiceListItem bleGattServiceListItem : mBleGattServiceListItems) {
-            //serviceItemId++;
-            if (bleGattServiceListItem.getService().getUuid().equals(service.getUuid())) {
-                Log.v(TAG, "Service found with UUID: "+service.getUuid().toString());
-                serviceItemId = bleGattServiceListItem.getItemId();
-                //break; // FIXME: this cause problems before.  Why?
-            }
-        }
+        Integer serviceItemId = mServiceItemIds.get(service.getUuid());
 
         // Throw an exception if no such service exists
-        if (serviceItemId < 0) throw new Exception("Service not found with UUID: "+service.getUuid().toString());
+        if (serviceItemId == null) throw new Exception("Service not found with UUID: "+service.getUuid().toString());
 
         // add characterstic to the end of the sub-list for the parent service
         if (!mBleCharacteristicListItems.containsKey(serviceItemId)) {
@@ -107,6 +101,7 @@ public class BleGattProfileListAdapter extends BaseExpandableListAdapter {
     public void clear() {
         mBleGattServiceListItems.clear();
         mBleCharacteristicListItems.clear();
+        mServiceItemIds.clear();
     }
 
     /**
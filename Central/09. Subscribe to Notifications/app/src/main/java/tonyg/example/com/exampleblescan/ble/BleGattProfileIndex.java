@@ -0,0 +1,234 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An immutable lookup table for a Peripheral's GATT Profile, built once when service discovery completes.
+ *
+ * Every Characteristic gets a handle: a small integer that maps straight to the Characteristic,
+ * its Service and its Client Characteristic Configuration Descriptor.  UUIDs built on the
+ * Bluetooth SIG base UUID are stored as their 16 or 32-bit short form in an open-addressing table,
+ * custom UUIDs in a HashMap.  Lookups by UUID or handle are O(1) and do not allocate, so they
+ * are safe to use on every read, write and notification.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-12
+ */
+public final class BleGattProfileIndex {
+    public static final int NO_HANDLE = -1;
+
+    // the Bluetooth SIG base UUID is 0000xxxx-0000-1000-8000-00805f9b34fb
+    private static final long SIG_BASE_MSB_MASK = 0xFFFFFFFFL;
+    private static final long SIG_BASE_MSB = 0x00001000L;
+    private static final long SIG_BASE_LSB = 0x800000805f9b34fbL;
+
+    private final List<BluetoothGattService> mServices;
+    private final Map<UUID, BluetoothGattService> mServicesByUuid = new HashMap<>();
+
+    /** per-handle tables **/
+    private final BluetoothGattCharacteristic[] mCharacteristics;
+    private final BluetoothGattService[] mCharacteristicServices;
+    private final BluetoothGattDescriptor[] mClientConfigDescriptors;
+    private final int[] mNextSameUuid; // next handle with the same Characteristic UUID in another Service
+
+    /** SIG Characteristic UUIDs: short UUID -> first handle **/
+    private final int[] mSigKeys;
+    private final int[] mSigHandles;
+    private final int mSigMask;
+
+    /** custom Characteristic UUIDs -> first handle **/
+    private final Map<UUID, Integer> mCustomHandles = new HashMap<>();
+
+    /**
+     * Index a list of discovered Services
+     *
+     * @param services the Services from BluetoothGatt.getServices()
+     */
+    public BleGattProfileIndex(List<BluetoothGattService> services) {
+        mServices = Collections.unmodifiableList(new ArrayList<>(services));
+
+        int characteristicCount = 0;
+        for (BluetoothGattService service : mServices) {
+            characteristicCount += service.getCharacteristics().size();
+        }
+        mCharacteristics = new BluetoothGattCharacteristic[characteristicCount];
+        mCharacteristicServices = new BluetoothGattService[characteristicCount];
+        mClientConfigDescriptors = new BluetoothGattDescriptor[characteristicCount];
+        mNextSameUuid = new int[characteristicCount];
+
+        int capacity = Integer.highestOneBit(Math.max(characteristicCount, 1) * 2) * 2;
+        mSigKeys = new int[capacity];
+        mSigHandles = new int[capacity];
+        mSigMask = capacity - 1;
+        for (int i = 0; i < capacity; i++) mSigHandles[i] = NO_HANDLE;
+
+        int handle = 0;
+        for (BluetoothGattService service : mServices) {
+            if (!mServicesByUuid.containsKey(service.getUuid())) {
+                mServicesByUuid.put(service.getUuid(), service);
+            }
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                mCharacteristics[handle] = characteristic;
+                mCharacteristicServices[handle] = service;
+                mClientConfigDescriptors[handle] = characteristic.getDescriptor(BlePeripheral.NOTIFY_DISCRIPTOR_UUID);
+                mNextSameUuid[handle] = NO_HANDLE;
+                addHandle(characteristic.getUuid(), handle);
+                handle++;
+            }
+        }
+    }
+
+    /**
+     * Find a Characteristic's handle
+     *
+     * @param serviceUuid the UUID of the Service the Characteristic belongs to
+     * @param characteristicUuid the UUID of the Characteristic
+     * @return the handle, or NO_HANDLE if there is no such Characteristic
+     */
+    public int getHandle(UUID serviceUuid, UUID characteristicUuid) {
+        int handle = getHandle(characteristicUuid);
+        while (handle != NO_HANDLE && !mCharacteristicServices[handle].getUuid().equals(serviceUuid)) {
+            handle = mNextSameUuid[handle];
+        }
+        return handle;
+    }
+
+    /**
+     * Find the handle of the first Characteristic with some UUID, in any Service
+     *
+     * @param characteristicUuid the UUID of the Characteristic
+     * @return the handle, or NO_HANDLE if there is no such Characteristic
+     */
+    public int getHandle(UUID characteristicUuid) {
+        if (isSigUuid(characteristicUuid)) {
+            int key = toShortUuid(characteristicUuid);
+            for (int slot = hash(key) & mSigMask; mSigHandles[slot] != NO_HANDLE; slot = (slot + 1) & mSigMask) {
+                if (mSigKeys[slot] == key) return mSigHandles[slot];
+            }
+            return NO_HANDLE;
+        }
+        Integer handle = mCustomHandles.get(characteristicUuid);
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    /**
+     * Find the handle of a Characteristic object that came from this Profile
+     *
+     * @param characteristic the Characteristic
+     * @return the handle, or NO_HANDLE if the Characteristic is not in this Profile
+     */
+    public int getHandle(BluetoothGattCharacteristic characteristic) {
+        int handle = getHandle(characteristic.getUuid());
+        while (handle != NO_HANDLE && mCharacteristics[handle] != characteristic) {
+            handle = mNextSameUuid[handle];
+        }
+        return handle;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(int handle) {
+        return mCharacteristics[handle];
+    }
+
+    public BluetoothGattService getServiceOf(int handle) {
+        return mCharacteristicServices[handle];
+    }
+
+    /**
+     * Get a Characteristic's Client Characteristic Configuration Descriptor, used to subscribe to notifications
+     *
+     * @param handle the Characteristic handle
+     * @return the Descriptor, or <b>null</b> if the Characteristic does not support notifications
+     */
+    public BluetoothGattDescriptor getClientConfigDescriptor(int handle) {
+        return mClientConfigDescriptors[handle];
+    }
+
+    /**
+     * Look up a Characteristic by UUID
+     *
+     * @param serviceUuid the UUID of the Service
+     * @param characteristicUuid the UUID of the Characteristic
+     * @return the Characteristic, or <b>null</b> if there is no such Characteristic
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        int handle = getHandle(serviceUuid, characteristicUuid);
+        return handle == NO_HANDLE ? null : mCharacteristics[handle];
+    }
+
+    public BluetoothGattService getService(UUID serviceUuid) {
+        return mServicesByUuid.get(serviceUuid);
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    public int getCharacteristicCount() {
+        return mCharacteristics.length;
+    }
+
+    /**
+     * Is this UUID built on the Bluetooth SIG base UUID?
+     *
+     * @param uuid the UUID
+     * @return <b>true</b> if the UUID can be written in 16 or 32-bit short form
+     */
+    public static boolean isSigUuid(UUID uuid) {
+        return uuid.getLeastSignificantBits() == SIG_BASE_LSB
+                && (uuid.getMostSignificantBits() & SIG_BASE_MSB_MASK) == SIG_BASE_MSB;
+    }
+
+    /**
+     * Get the 16 or 32-bit short form of a SIG UUID, eg 0x2A37 for Heart Rate Measurement
+     *
+     * @param uuid a UUID for which isSigUuid() is <b>true</b>
+     * @return the short UUID
+     */
+    public static int toShortUuid(UUID uuid) {
+        return (int) (uuid.getMostSignificantBits() >>> 32);
+    }
+
+    /**
+     * Expand a 16 or 32-bit short UUID to a full UUID
+     *
+     * @param shortUuid the short UUID, eg 0x2902
+     * @return the full UUID
+     */
+    public static UUID fromShortUuid(int shortUuid) {
+        return new UUID(((shortUuid & 0xFFFFFFFFL) << 32) | SIG_BASE_MSB, SIG_BASE_LSB);
+    }
+
+    private void addHandle(UUID characteristicUuid, int handle) {
+        int first = getHandle(characteristicUuid);
+        if (first != NO_HANDLE) {
+            // the same Characteristic UUID in another Service.  Chain it behind the first one
+            int last = first;
+            while (mNextSameUuid[last] != NO_HANDLE) last = mNextSameUuid[last];
+            mNextSameUuid[last] = handle;
+            return;
+        }
+        if (isSigUuid(characteristicUuid)) {
+            int key = toShortUuid(characteristicUuid);
+            int slot = hash(key) & mSigMask;
+            while (mSigHandles[slot] != NO_HANDLE) slot = (slot + 1) & mSigMask;
+            mSigKeys[slot] = key;
+            mSigHandles[slot] = handle;
+        } else {
+            mCustomHandles.put(characteristicUuid, handle);
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
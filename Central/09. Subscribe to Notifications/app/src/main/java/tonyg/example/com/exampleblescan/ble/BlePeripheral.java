@@ -5,14 +5,30 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import tonyg.example.com.exampleblescan.BuildConfig;
+import tonyg.example.com.exampleblescan.ble.callbacks.BleSubscriptionCallback;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+import tonyg.example.com.exampleblescan.utilities.ThroughputMeter;
+
 /**
  * This class represents a generic Bluetooth Peripheral
  * and allows us to share Bluetooth resources
@@ -27,8 +43,84 @@ public class BlePeripheral {
     // Client Characteristic Configuration Descriptor
     public static final UUID NOTIFY_DISCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    // ATT MTU sizes.  Notifications and writes carry MTU - ATT_HEADER_LENGTH bytes of data
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    public static final int ATT_HEADER_LENGTH = 3;
+
+    // Connection supervision
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_CONNECT_RETRIES = 3;
+    private static final long CONNECT_RETRY_DELAY_MS = 500; // give the stack time to release the failed connection
+
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
+    private volatile BleGattProfileIndex mProfileIndex; // rebuilt every time services are discovered
+
+    /** Connection state **/
+    private Context mContext;
+    private BluetoothGattCallback mCallback; // the callback that was handed to connect()
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Connection supervision **/
+    private long mConnectTimeout_ms = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mConnectRetries = DEFAULT_CONNECT_RETRIES;
+    private volatile boolean mConnecting = false; // true until the first connection is established or given up on
+    private int mConnectAttempt = 0;
+    private long mConnectStartedAt_ms = 0;
+    private final LatencyHistogram mTimeToConnect = new LatencyHistogram("time-to-connect", "ms");
+    private final long[] mConnectFailures = new long[GattStatus.FailureClass.values().length];
+
+    /** Reconnection **/
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private ReconnectPolicy mActiveReconnectPolicy; // taken from mReconnectPolicy when the link dropped
+    private volatile boolean mDisconnectRequested = false;
+    private volatile boolean mReconnecting = false;
+    private int mReconnectAttempt = 0;
+    private long mDisconnectedAt_ms = 0; // when the link dropped, 0 once data flows again
+    private boolean mRestoreSubscriptions = false;
+    private final Map<UUID, UUID> mSubscriptions = new HashMap<>(); // Characteristic UUID -> Service UUID
+    private final LatencyHistogram mReconnectLatency = new LatencyHistogram("disconnect-to-data", "ms");
+
+    /** Connection priority and GATT operations **/
+    private final ConnectionPriorityController mPriorityController = new ConnectionPriorityController();
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue(mPriorityController);
+
+    /** MTU **/
+    private int mRequestedMtu = MAX_MTU;
+    private volatile int mMtu = DEFAULT_MTU;
+    private boolean mMtuRequested = false;
+    private ThroughputMeter mNotificationThroughput = new ThroughputMeter("notifications at MTU " + DEFAULT_MTU);
+
+    /** Read coalescing **/
+    private final Map<BluetoothGattCharacteristic, PendingRead> mPendingReads = new HashMap<>();
+    private long mRadioReads = 0;
+    private long mCoalescedReads = 0; // radio reads saved by joining a pending read
+
+    /** Notifications, captured off the Binder thread into payloads one packet long **/
+    private static final long PAYLOAD_LEAK_AGE_NS = 10000000000L; // held this long at disconnect means leaked
+    private final NotificationDispatcher mNotificationDispatcher = new NotificationDispatcher(NotificationDispatcher.DEFAULT_CAPACITY, DEFAULT_MTU - ATT_HEADER_LENGTH, BuildConfig.DEBUG);
+
+    /** Per-Characteristic notification rate, interval and gaps, indexed by handle and replaced whole when it grows **/
+    private volatile NotificationStats[] mNotificationStats = new NotificationStats[0];
+
+    /** Notifications written to disk **/
+    private volatile NotificationRecorder mNotificationRecorder;
+    private volatile long mDeviceKey = 0;
+
+    /** Latest-value writes **/
+    private final Map<BluetoothGattCharacteristic, ConflatingWriter> mConflatingWriters = new HashMap<>();
+
+    /** Polling **/
+    private final CharacteristicPoller mPoller = new CharacteristicPoller(this);
+
+    /** Long reads **/
+    private final LatencyHistogram mReadSize = new LatencyHistogram("read size", "B");
+    private long mLongReads = 0;
+
+    /** Reliable writes **/
+    private final ThroughputMeter mReliableWriteThroughput = new ThroughputMeter("reliable writes");
+    private final LatencyHistogram mReliableWriteLatency = new LatencyHistogram("reliable write", "ms");
 
     public BlePeripheral() {
     }
@@ -47,15 +139,30 @@ public class BlePeripheral {
             throw new Exception("No bluetooth device provided");
         }
         mBluetoothDevice = bluetoothDevice;
-        mBluetoothGatt = bluetoothDevice.connectGatt(context, false, callback);
+        mDeviceKey = NotificationRecorder.getDeviceKey(bluetoothDevice.getAddress());
+        mCallback = callback;
+        mContext = context;
+        mDisconnectRequested = false;
+        mReconnecting = false;
+        mReconnectAttempt = 0;
+        mConnecting = true;
+        mConnectAttempt = 0;
+        mConnectStartedAt_ms = SystemClock.elapsedRealtime();
+        startConnectAttempt(false);
         refreshDeviceCache();
         return mBluetoothGatt;
     }
 
     /**
-     * Disconnect from a Peripheral
+     * Disconnect from a Peripheral.  This also stops any reconnection in progress
      */
     public void disconnect() {
+        mDisconnectRequested = true;
+        mReconnecting = false;
+        mConnecting = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.removeCallbacks(mConnectDeadlineRunnable);
+        mHandler.removeCallbacks(mConnectRetryRunnable);
         if (mBluetoothGatt != null) {
             mBluetoothGatt.disconnect();
         }
@@ -67,6 +174,13 @@ public class BlePeripheral {
      * to notify of a successful disconnect
      */
     public void close() {
+        mPoller.stopAll();
+        mOperationQueue.detach();
+        mReconnecting = false;
+        mConnecting = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.removeCallbacks(mConnectDeadlineRunnable);
+        mHandler.removeCallbacks(mConnectRetryRunnable);
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close(); // close connection to Peripheral
             mBluetoothGatt = null; // release from memory
@@ -76,6 +190,271 @@ public class BlePeripheral {
         return mBluetoothDevice;
     }
 
+    /**
+     * Get the index of the GATT Profile found by the last service discovery
+     *
+     * @return the BleGattProfileIndex, or <b>null</b> before services are discovered
+     */
+    public BleGattProfileIndex getProfileIndex() {
+        return mProfileIndex;
+    }
+
+    /**
+     * Set how long a connection attempt may take, and how many times to retry
+     * attempts that fail for reasons that are likely to be temporary
+     *
+     * @param timeout_ms deadline for each attempt
+     * @param retries how many extra attempts to make
+     */
+    public void setConnectSupervision(long timeout_ms, int retries) {
+        mConnectTimeout_ms = timeout_ms;
+        mConnectRetries = retries;
+    }
+
+    /**
+     * Time from calling connect() until the connection was established, including retries
+     *
+     * @return the time-to-connect histogram
+     */
+    public LatencyHistogram getTimeToConnect() {
+        return mTimeToConnect;
+    }
+
+    /**
+     * How many connection attempts failed for some reason
+     *
+     * @param failureClass the reason
+     * @return the number of failed attempts
+     */
+    public long getConnectFailureCount(GattStatus.FailureClass failureClass) {
+        synchronized (mConnectFailures) {
+            return mConnectFailures[failureClass.ordinal()];
+        }
+    }
+
+    /**
+     * Summarize connection supervision metrics for logging
+     *
+     * @return a one-line summary
+     */
+    public String getConnectSummary() {
+        StringBuilder summary = new StringBuilder(mTimeToConnect.toString()).append(" failures:");
+        synchronized (mConnectFailures) {
+            for (GattStatus.FailureClass failureClass : GattStatus.FailureClass.values()) {
+                summary.append(' ').append(failureClass).append('=').append(mConnectFailures[failureClass.ordinal()]);
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Set how this Peripheral reconnects after an unexpected disconnect
+     *
+     * @param reconnectPolicy the ReconnectPolicy, or <b>null</b> to never reconnect.
+     *                        A reconnect already in progress keeps the policy it started with
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        mReconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Is the Peripheral trying to restore a connection that dropped unexpectedly?
+     *
+     * @return <b>true</b> while a reconnect is pending or in progress
+     */
+    public boolean isReconnecting() {
+        return mReconnecting;
+    }
+
+    /**
+     * Time between losing the connection and receiving data again after a reconnect
+     *
+     * @return the disconnect-to-data latency histogram
+     */
+    public LatencyHistogram getReconnectLatency() {
+        return mReconnectLatency;
+    }
+
+    /**
+     * Set the MTU to ask for after connecting.  The Peripheral may agree to a smaller one
+     *
+     * @param mtu between DEFAULT_MTU and MAX_MTU.  DEFAULT_MTU skips the MTU exchange
+     */
+    public void setRequestedMtu(int mtu) {
+        if (mtu < DEFAULT_MTU || mtu > MAX_MTU) {
+            throw new IllegalArgumentException("MTU must be between " + DEFAULT_MTU + " and " + MAX_MTU);
+        }
+        mRequestedMtu = mtu;
+    }
+
+    /**
+     * Ask the Peripheral for a larger MTU.  The result arrives in BluetoothGattCallback.onMtuChanged
+     *
+     * @param mtu the desired MTU
+     */
+    public void requestMtu(int mtu) {
+        mMtuRequested = true;
+        Log.v(TAG, "Requesting MTU " + mtu);
+        mOperationQueue.enqueue(GattOperation.requestMtu(mtu));
+    }
+
+    /**
+     * Discover the Peripheral's GATT Profile.  The result arrives in BluetoothGattCallback.onServicesDiscovered
+     *
+     * @return <b>true</b> if discovery started
+     */
+    public boolean discoverServices() {
+        return mBluetoothGatt.discoverServices();
+    }
+
+    /**
+     * The ATT MTU negotiated for the current connection
+     *
+     * @return the MTU, DEFAULT_MTU until the exchange completes
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * The largest value that fits in a single notification or write
+     *
+     * @return number of bytes
+     */
+    public int getMaxPayloadLength() {
+        return mMtu - ATT_HEADER_LENGTH;
+    }
+
+    /**
+     * Notification data rate at the current MTU
+     *
+     * @return the ThroughputMeter for incoming notifications
+     */
+    public ThroughputMeter getNotificationThroughput() {
+        return mNotificationThroughput;
+    }
+
+    /**
+     * Size of the values read.  A value longer than one Read Response is counted once,
+     * however many Read Blob Requests it took
+     *
+     * @return the histogram of read sizes
+     */
+    public LatencyHistogram getReadSize() {
+        return mReadSize;
+    }
+
+    /**
+     * @return the number of reads that took more than one Read Response
+     */
+    public long getLongReadCount() {
+        return mLongReads;
+    }
+
+    /**
+     * Data rate of reliable (prepared and executed) writes
+     *
+     * @return the ThroughputMeter for reliable writes
+     */
+    public ThroughputMeter getReliableWriteThroughput() {
+        return mReliableWriteThroughput;
+    }
+
+    /**
+     * Time from sending the first Prepare Write Request to onReliableWriteCompleted
+     *
+     * @return the LatencyHistogram for reliable writes
+     */
+    public LatencyHistogram getReliableWriteLatency() {
+        return mReliableWriteLatency;
+    }
+
+    /**
+     * The queue that sends this Peripheral's GATT operations one at a time
+     *
+     * @return the GattOperationQueue for this Peripheral
+     */
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+
+    /**
+     * Notifications are copied into this dispatcher as they arrive.  Register a consumer for
+     * a Characteristic's handle to receive them on your own thread
+     *
+     * @return the NotificationDispatcher for this Peripheral
+     */
+    public NotificationDispatcher getNotificationDispatcher() {
+        return mNotificationDispatcher;
+    }
+
+
+    /**
+     * Rate, inter-arrival time and gaps of a Characteristic's notifications.  Counting starts
+     * when this is first called for a handle
+     *
+     * @param handle the Characteristic's handle, from the BleGattProfileIndex
+     * @return the NotificationStats for that Characteristic
+     */
+    public synchronized NotificationStats getNotificationStats(int handle) {
+        if (handle < 0) throw new IllegalArgumentException("Invalid handle " + handle);
+        NotificationStats[] statsTable = mNotificationStats;
+        if (handle < statsTable.length && statsTable[handle] != null) return statsTable[handle];
+        // publish a new table so the Binder thread never sees a half-filled one
+        NotificationStats[] grown = new NotificationStats[Math.max(handle + 1, statsTable.length)];
+        System.arraycopy(statsTable, 0, grown, 0, statsTable.length);
+        grown[handle] = new NotificationStats(handle);
+        mNotificationStats = grown;
+        return grown[handle];
+    }
+
+
+    /**
+     * Write every notification from this Peripheral to a recording, until set to null.
+     * Several Peripherals can share one NotificationRecorder.  The caller starts and stops it
+     *
+     * @param recorder a started NotificationRecorder, or <b>null</b> to stop recording
+     */
+    public void setNotificationRecorder(NotificationRecorder recorder) {
+        mNotificationRecorder = recorder;
+    }
+
+    public NotificationRecorder getNotificationRecorder() {
+        return mNotificationRecorder;
+    }
+
+
+    /**
+     * The pool notifications are captured into before they are dispatched.
+     * It is replaced with one of the right size when the MTU changes
+     *
+     * @return the current PayloadPool
+     */
+    public PayloadPool getPayloadPool() {
+        return mNotificationDispatcher.getPayloadPool();
+    }
+
+
+    /**
+     * Get the scheduler that polls Characteristics which can't notify
+     *
+     * @return the poller for this connection
+     */
+    public CharacteristicPoller getCharacteristicPoller() {
+        return mPoller;
+    }
+
+
+    /**
+     * The controller that raises and lowers the connection priority with traffic
+     *
+     * @return the ConnectionPriorityController for this Peripheral
+     */
+    public ConnectionPriorityController getConnectionPriorityController() {
+        return mPriorityController;
+    }
+
 
     // Android caches BLE Peripheral GATT Profiles.  This is ok when the Peripheral GATT Profile is
     // fixed, but since we are developing the Peripheral along-side the Central, we need to clear
@@ -104,10 +483,137 @@ public class BlePeripheral {
      * @param characteristic
      */
     public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        readValueFromCharacteristic(characteristic, null);
+    }
+
+
+    /**
+     * Request a data/value read from a Ble Characteristic.  If a read of the same Characteristic
+     * is already pending, join it instead of sending another one: every requester completes
+     * from the same onCharacteristicRead
+     *
+     * @param characteristic
+     * @param listener notified when the read completes, while Characteristic.getValue() still holds its value.  May be <b>null</b>
+     */
+    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic, GattOperation.OnCompleteListener listener) {
+        readValueFromCharacteristic(characteristic, GattOperation.Priority.INTERACTIVE, listener);
+    }
+
+
+    /**
+     * Request a data/value read from a Ble Characteristic at a given priority.  A request that joins
+     * a pending read of lower priority raises that read to its own priority
+     *
+     * @param characteristic
+     * @param priority the priority class of the read
+     * @param listener notified when the read completes, while Characteristic.getValue() still holds its value.  May be <b>null</b>
+     */
+    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic, GattOperation.Priority priority, GattOperation.OnCompleteListener listener) {
         // Reading a characteristic requires both requesting the read and handling the callback that is
         // sent when the read is successful
         // http://stackoverflow.com/a/20020279
-        mBluetoothGatt.readCharacteristic(characteristic);
+        PendingRead pendingRead;
+        synchronized (mPendingReads) {
+            pendingRead = mPendingReads.get(characteristic);
+            if (pendingRead != null) {
+                pendingRead.addListener(listener);
+                mCoalescedReads++;
+                GattOperation operation = pendingRead.mOperation;
+                if (priority.ordinal() < operation.getPriority().ordinal()) {
+                    mOperationQueue.setPriority(operation, priority);
+                }
+                return;
+            }
+            pendingRead = new PendingRead(characteristic);
+            pendingRead.addListener(listener);
+            pendingRead.mOperation = GattOperation.readCharacteristic(characteristic)
+                    .setPriority(priority)
+                    .setOnCompleteListener(pendingRead);
+            mPendingReads.put(characteristic, pendingRead);
+            mRadioReads++;
+        }
+        mOperationQueue.enqueue(pendingRead.mOperation);
+    }
+
+
+    /**
+     * @return the number of reads sent to the Peripheral
+     */
+    public long getRadioReadCount() {
+        synchronized (mPendingReads) {
+            return mRadioReads;
+        }
+    }
+
+
+    /**
+     * @return the number of read requests that joined a pending read instead of going over the radio
+     */
+    public long getCoalescedReadCount() {
+        synchronized (mPendingReads) {
+            return mCoalescedReads;
+        }
+    }
+
+
+    /**
+     * Close a pending read to new requesters.  Called before its onCharacteristicRead is passed on,
+     * so that a read requested from that callback goes to the Peripheral
+     *
+     * @param characteristic the Characteristic that was read
+     */
+    private void closePendingRead(BluetoothGattCharacteristic characteristic) {
+        synchronized (mPendingReads) {
+            mPendingReads.remove(characteristic);
+        }
+    }
+
+
+    /**
+     * Withdraw one requester from a pending read.  If nobody else is waiting for it and it hasn't
+     * been sent yet, the read is taken back out of the queue
+     *
+     * @param characteristic the Characteristic being read
+     * @param listener the listener given to readValueFromCharacteristic()
+     */
+    private void cancelRead(BluetoothGattCharacteristic characteristic, GattOperation.OnCompleteListener listener) {
+        synchronized (mPendingReads) {
+            PendingRead pendingRead = mPendingReads.get(characteristic);
+            if (pendingRead == null || !pendingRead.mListeners.remove(listener)) return;
+            if (pendingRead.mListeners.isEmpty() && mOperationQueue.remove(pendingRead.mOperation)) {
+                mPendingReads.remove(characteristic);
+            }
+        }
+    }
+
+
+    /**
+     * One read on the radio and everyone waiting for it
+     */
+    private class PendingRead implements GattOperation.OnCompleteListener {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final List<GattOperation.OnCompleteListener> mListeners = new ArrayList<>();
+        private GattOperation mOperation;
+
+        PendingRead(BluetoothGattCharacteristic characteristic) {
+            mCharacteristic = characteristic;
+        }
+
+        void addListener(GattOperation.OnCompleteListener listener) {
+            if (listener != null) mListeners.add(listener);
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            List<GattOperation.OnCompleteListener> listeners;
+            synchronized (mPendingReads) {
+                if (mPendingReads.get(mCharacteristic) == this) mPendingReads.remove(mCharacteristic);
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (GattOperation.OnCompleteListener listener : listeners) {
+                listener.onComplete(operation, status);
+            }
+        }
     }
 
 
@@ -122,8 +628,189 @@ public class BlePeripheral {
         byte[] messageBytes = message.getBytes();
 
         Log.v(TAG, "Writing message: '" + new String(messageBytes, "ASCII") + "' to " + characteristic.getUuid().toString());
-        characteristic.setValue(messageBytes);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        ConflatingWriter conflatingWriter = getConflatingWriter(characteristic);
+        if (conflatingWriter != null && messageBytes.length <= getMaxPayloadLength()) {
+            // only the newest value matters
+            conflatingWriter.write(messageBytes);
+        } else if (messageBytes.length > getMaxPayloadLength()
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) {
+            // too long for one packet
+            writeValueReliably(messageBytes, characteristic);
+        } else {
+            mOperationQueue.enqueue(GattOperation.writeCharacteristic(characteristic, messageBytes, characteristic.getWriteType()));
+        }
+    }
+
+
+    /**
+     * Switch latest-value writes on or off for a Characteristic.  While on, a value written
+     * with writeValueToCharacteristic() replaces any value of that Characteristic that is still
+     * waiting to be sent, instead of queueing behind it
+     *
+     * @param characteristic The Characteristic
+     * @param enabled <b>true</b> to keep only the newest value
+     */
+    public void setWriteConflation(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        synchronized (mConflatingWriters) {
+            if (!enabled) {
+                ConflatingWriter conflatingWriter = mConflatingWriters.remove(characteristic);
+                if (conflatingWriter != null) Log.v(TAG, "Latest-value writes off. " + conflatingWriter);
+            } else if (!mConflatingWriters.containsKey(characteristic)) {
+                mConflatingWriters.put(characteristic, new ConflatingWriter(mOperationQueue, characteristic));
+            }
+        }
+    }
+
+
+    /**
+     * @param characteristic The Characteristic
+     * @return the writer that keeps only the newest value for this Characteristic, or <b>null</b> if conflation is off
+     */
+    public ConflatingWriter getConflatingWriter(BluetoothGattCharacteristic characteristic) {
+        synchronized (mConflatingWriters) {
+            return mConflatingWriters.get(characteristic);
+        }
+    }
+
+
+    /**
+     * Write a value of up to 512 bytes atomically, using ATT prepared writes.
+     * The result arrives in BluetoothGattCallback.onReliableWriteCompleted
+     *
+     * @param value The value being written
+     * @param characteristic The Characteristic being written to
+     */
+    public void writeValueReliably(final byte[] value, BluetoothGattCharacteristic characteristic) {
+        GattOperation operation = GattOperation.reliableWrite(characteristic, value);
+        operation.setOnCompleteListener(new GattOperation.OnCompleteListener() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Reliable write failed: " + GattStatus.toString(status));
+                    return;
+                }
+                long latency_ms = SystemClock.elapsedRealtime() - operation.mStartedAt_ms;
+                mReliableWriteLatency.record(latency_ms);
+                mReliableWriteThroughput.record(value.length);
+                Log.v(TAG, "Reliable write of " + value.length + " bytes took " + latency_ms + "ms"
+                        + (latency_ms > 0 ? ", " + (value.length * 1000L / latency_ms) + "B/s" : ""));
+            }
+        });
+        mOperationQueue.enqueue(operation);
+    }
+
+
+    /**
+     * Read a Characteristic.  Joins a read of the same Characteristic that is already pending.
+     * Cancelling the future, or letting it time out, withdraws it from that read
+     *
+     * @param characteristic The Characteristic to read
+     * @return a copy of the value read
+     */
+    public GattFuture<byte[]> readAsync(final BluetoothGattCharacteristic characteristic) {
+        final GattFuture<byte[]> future = new GattFuture<>();
+        final GattOperation.OnCompleteListener listener = new GattOperation.OnCompleteListener() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    future.fail(status);
+                    return;
+                }
+                // the Characteristic's buffer is overwritten by the next read or notification
+                byte[] value = characteristic.getValue();
+                future.complete(value == null ? new byte[0] : value.clone());
+            }
+        };
+        readValueFromCharacteristic(characteristic, listener);
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancelRead(characteristic, listener);
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * Write a value to a Characteristic, using the Characteristic's write type.
+     * Values too long for one packet are written reliably, as in writeValueToCharacteristic()
+     *
+     * @param characteristic The Characteristic to write
+     * @param value The value
+     * @return the Characteristic, once written
+     */
+    public GattFuture<BluetoothGattCharacteristic> writeAsync(final BluetoothGattCharacteristic characteristic, byte[] value) {
+        final GattFuture<BluetoothGattCharacteristic> future = new GattFuture<>();
+        GattOperation operation;
+        if (value.length > getMaxPayloadLength()
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) {
+            operation = GattOperation.reliableWrite(characteristic, value);
+        } else {
+            operation = GattOperation.writeCharacteristic(characteristic, value, characteristic.getWriteType());
+        }
+        operation.setOnCompleteListener(new GattOperation.OnCompleteListener() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    future.complete(characteristic);
+                } else {
+                    future.fail(status);
+                }
+            }
+        });
+        enqueueForFuture(operation, future);
+        return future;
+    }
+
+
+    /**
+     * Subscribe to or unsubscribe from a Characteristic's notifications
+     *
+     * @param characteristic The Characteristic
+     * @param enabled <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     * @return the Characteristic, once the Peripheral has accepted the change
+     */
+    public GattFuture<BluetoothGattCharacteristic> subscribeAsync(final BluetoothGattCharacteristic characteristic, final boolean enabled) {
+        final GattFuture<BluetoothGattCharacteristic> future = new GattFuture<>();
+        GattOperation operation = prepareSubscription(characteristic, enabled);
+        if (operation == null) {
+            future.fail(BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED);
+            return future;
+        }
+        operation.setOnCompleteListener(new GattOperation.OnCompleteListener() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    future.complete(characteristic);
+                    return;
+                }
+                if (enabled) {
+                    // the Peripheral never turned it on.  Don't restore it after a reconnect
+                    synchronized (mSubscriptions) {
+                        mSubscriptions.remove(characteristic.getUuid());
+                    }
+                }
+                future.fail(status);
+            }
+        });
+        enqueueForFuture(operation, future);
+        return future;
+    }
+
+
+    /**
+     * Queue an operation whose result goes to a GattFuture.  Cancelling the future, or letting it
+     * time out, takes the operation back out of the queue if it hasn't been sent yet
+     */
+    private void enqueueForFuture(final GattOperation operation, GattFuture<?> future) {
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                mOperationQueue.remove(operation);
+            }
+        });
+        mOperationQueue.enqueue(operation);
     }
 
 
@@ -136,30 +823,441 @@ public class BlePeripheral {
      * @param enabled <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
      */
     public void setCharacteristicNotification(final BluetoothGattCharacteristic characteristic, final boolean enabled) {
+        GattOperation operation = prepareSubscription(characteristic, enabled);
+        if (operation != null) mOperationQueue.enqueue(operation);
+    }
+
+
+    /**
+     * Subscribe to or unsubscribe from several Characteristics at once.
+     * Notifications are switched on locally for all of them first, then the descriptor
+     * writes are queued back to back
+     *
+     * @param characteristics the Characteristics
+     * @param enabled <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     * @param callback receives the result for each Characteristic once they have all completed
+     */
+    public void setCharacteristicNotifications(Collection<BluetoothGattCharacteristic> characteristics, boolean enabled, BleSubscriptionCallback callback) {
+        // each Characteristic gets one result, even if it was listed twice
+        Collection<BluetoothGattCharacteristic> unique = new LinkedHashSet<>(characteristics);
+        SubscriptionBatch batch = new SubscriptionBatch(unique.size(), enabled, callback);
+        Map<BluetoothGattCharacteristic, GattOperation> operations = new LinkedHashMap<>();
+        for (BluetoothGattCharacteristic characteristic : unique) {
+            GattOperation operation = prepareSubscription(characteristic, enabled);
+            if (operation == null) {
+                batch.onResult(characteristic, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED);
+            } else {
+                operations.put(characteristic, operation.setOnCompleteListener(batch));
+            }
+        }
+        for (GattOperation operation : operations.values()) {
+            mOperationQueue.enqueue(operation);
+        }
+    }
+
+
+    /**
+     * Switch notifications on or off locally and build the descriptor write that tells the Peripheral
+     *
+     * @param characteristic the Characteristic
+     * @param enabled <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     * @return the descriptor write, or <b>null</b> if the Characteristic does not support notifications
+     */
+    private GattOperation prepareSubscription(BluetoothGattCharacteristic characteristic, boolean enabled) {
         // modified from http://stackoverflow.com/a/18011901/5671180
         // This is a 2-step process
         // Step 1: set the Characteristic Notification parameter locally
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFY_DISCRIPTOR_UUID);
+        if (descriptor == null) {
+            Log.w(TAG, characteristic.getUuid() + " does not support notifications");
+            return null;
+        }
         mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        // remember the subscription so that it can be restored after a reconnect
+        synchronized (mSubscriptions) {
+            if (enabled) {
+                mSubscriptions.put(characteristic.getUuid(), characteristic.getService().getUuid());
+            } else {
+                mSubscriptions.remove(characteristic.getUuid());
+            }
+        }
         // Step 2: Write a descriptor to the Bluetooth GATT enabling the subscription on the Perpiheral
-        // turns out you need to implement a delay between setCharacteristicNotification and setvalue.
-        // maybe it can be handled with a callback, but this is an easy way to implement
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFY_DISCRIPTOR_UUID);
-                if (enabled) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                } else {
-                    descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        // The write waits in the operation queue until any operation in flight has completed
+        byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        return GattOperation.writeDescriptor(descriptor, value);
+    }
+
+
+    /**
+     * Collects the results of a setCharacteristicNotifications() call
+     */
+    private class SubscriptionBatch implements GattOperation.OnCompleteListener {
+        private final long mStartedAt_ms = SystemClock.elapsedRealtime();
+        private final Map<BluetoothGattCharacteristic, Integer> mResults = new LinkedHashMap<>();
+        private final int mCount;
+        private final boolean mEnabled;
+        private final BleSubscriptionCallback mCallback;
+
+        SubscriptionBatch(int count, boolean enabled, BleSubscriptionCallback callback) {
+            mCount = count;
+            mEnabled = enabled;
+            mCallback = callback;
+            if (count == 0) callback.onSubscriptionsComplete(mResults, 0);
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            BluetoothGattCharacteristic characteristic = ((BluetoothGattDescriptor) operation.getTarget()).getCharacteristic();
+            if (mEnabled && status != BluetoothGatt.GATT_SUCCESS) {
+                // the Peripheral never turned it on.  Don't restore it after a reconnect
+                synchronized (mSubscriptions) {
+                    mSubscriptions.remove(characteristic.getUuid());
                 }
-                mBluetoothGatt.writeDescriptor(descriptor);
             }
-        }, 10);
+            onResult(characteristic, status);
+        }
+
+        void onResult(BluetoothGattCharacteristic characteristic, int status) {
+            synchronized (this) {
+                mResults.put(characteristic, status);
+                if (mResults.size() < mCount) return;
+            }
+            long elapsed_ms = SystemClock.elapsedRealtime() - mStartedAt_ms;
+            Log.v(TAG, (mEnabled ? "Subscribed to " : "Unsubscribed from ") + mCount + " characteristics in " + elapsed_ms + "ms");
+            mCallback.onSubscriptionsComplete(mResults, elapsed_ms);
+        }
+    }
+
 
 
+    /**
+     * Open a direct connection and start its deadline
+     *
+     * @param autoConnect <b>true</b> to wait for the Peripheral in the background, without a deadline
+     */
+    private void startConnectAttempt(boolean autoConnect) {
+        mBluetoothGatt = mBluetoothDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        if (!autoConnect) {
+            mHandler.postDelayed(mConnectDeadlineRunnable, mConnectTimeout_ms);
+        }
     }
 
+    /**
+     * The Peripheral did not answer in time.  Give up on this attempt and release its client slot.
+     * Closing the BluetoothGatt means no callback will arrive for it
+     */
+    private final Runnable mConnectDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null || !(mConnecting || mReconnecting)) return;
+            Log.w(TAG, "Connect attempt exceeded its " + mConnectTimeout_ms + "ms deadline");
+            gatt.disconnect();
+            onConnectAttemptFailed(gatt, GattStatus.CONNECT_DEADLINE_EXCEEDED);
+        }
+    };
+
+    private final Runnable mConnectRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnecting) startConnectAttempt(false);
+        }
+    };
+
+    /**
+     * A connection attempt failed.  Always close its BluetoothGatt, then retry if the failure
+     * is transient and the retry budget allows it.  Otherwise report the failure to the callback
+     *
+     * @param gatt the failed connection
+     * @param status the reason it failed
+     */
+    private void onConnectAttemptFailed(BluetoothGatt gatt, int status) {
+        mHandler.removeCallbacks(mConnectDeadlineRunnable);
+        GattStatus.FailureClass failureClass = GattStatus.classify(status);
+        synchronized (mConnectFailures) {
+            mConnectFailures[failureClass.ordinal()]++;
+        }
+        gatt.close();
+        if (mBluetoothGatt == gatt) mBluetoothGatt = null;
+
+        if (mReconnecting) {
+            Log.v(TAG, "Reconnect attempt failed: " + GattStatus.toString(status));
+            scheduleReconnect();
+        } else if (failureClass.isTransient() && mConnectAttempt < mConnectRetries) {
+            mConnectAttempt++;
+            Log.v(TAG, "Connect attempt failed: " + GattStatus.toString(status) + ".  Retry " + mConnectAttempt + " of " + mConnectRetries);
+            mHandler.postDelayed(mConnectRetryRunnable, CONNECT_RETRY_DELAY_MS);
+        } else {
+            Log.e(TAG, "Could not connect: " + GattStatus.toString(status) + ". " + getConnectSummary());
+            mConnecting = false;
+            mCallback.onConnectionStateChange(gatt, status, BluetoothProfile.STATE_DISCONNECTED);
+        }
+    }
+
+    /**
+     * Try to restore a connection that dropped unexpectedly
+     */
+    private void scheduleReconnect() {
+        final int attempt = mReconnectAttempt++;
+        if (mActiveReconnectPolicy.isDirectAttempt(attempt)) {
+            long delay_ms = mActiveReconnectPolicy.getDelay(attempt);
+            Log.v(TAG, "Reconnect attempt " + (attempt + 1) + " in " + delay_ms + "ms");
+            mHandler.postDelayed(mReconnectRunnable, delay_ms);
+        } else {
+            // direct reconnects failed.  Let the Bluetooth stack wait for the Peripheral in the background
+            Log.v(TAG, "Falling back to a background (autoConnect) reconnect");
+            startConnectAttempt(true);
+        }
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mReconnecting) {
+                startConnectAttempt(false);
+            }
+        }
+    };
+
+    /**
+     * Re-subscribe to the Characteristics that were subscribed to before the connection dropped.
+     * The descriptor writes are queued together and sent one at a time
+     *
+     * @param gatt the new connection to the GATT
+     */
+    private void restoreSubscriptions(BluetoothGatt gatt) {
+        synchronized (mSubscriptions) {
+            for (Map.Entry<UUID, UUID> subscription : mSubscriptions.entrySet()) {
+                int handle = mProfileIndex.getHandle(subscription.getValue(), subscription.getKey());
+                if (handle == BleGattProfileIndex.NO_HANDLE) {
+                    Log.w(TAG, "Can't restore subscription to " + subscription.getKey() + ": no longer in the profile");
+                    continue;
+                }
+                // the profile may have changed, eg after a firmware update
+                BluetoothGattDescriptor descriptor = mProfileIndex.getClientConfigDescriptor(handle);
+                if (descriptor == null) {
+                    Log.w(TAG, "Can't restore subscription to " + subscription.getKey() + ": it no longer supports notifications");
+                    continue;
+                }
+                BluetoothGattCharacteristic characteristic = mProfileIndex.getCharacteristic(handle);
+                Log.v(TAG, "Restoring subscription to " + characteristic.getUuid());
+                gatt.setCharacteristicNotification(characteristic, true);
+                mOperationQueue.enqueue(GattOperation.writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+            }
+        }
+    }
+
+    /**
+     * The MTU exchange finished, or was skipped.  Finish setting up a restored connection
+     *
+     * @param gatt the connection to the GATT
+     */
+    private void onMtuNegotiated(BluetoothGatt gatt) {
+        if (mRestoreSubscriptions) {
+            mRestoreSubscriptions = false;
+            restoreSubscriptions(gatt);
+        }
+    }
+
+    /**
+     * A read completed.  Android has already put a long value back together from its Read Blob
+     * Responses, so record it as one logical read
+     *
+     * @param length the number of bytes in the value
+     */
+    private void onValueRead(int length) {
+        mReadSize.record(length);
+        int responseLength = mMtu - 1; // a Read Response carries MTU - 1 bytes
+        if (length >= responseLength) {
+            mLongReads++;
+            Log.v(TAG, "Long read of " + length + " bytes in " + (length / responseLength + 1) + " responses at MTU " + mMtu);
+        }
+    }
+
+    /**
+     * Data arrived from the Peripheral.  If this is the first data since a reconnect, record how long it took
+     */
+    private void onDataReceived() {
+        if (mDisconnectedAt_ms != 0) {
+            long latency_ms = SystemClock.elapsedRealtime() - mDisconnectedAt_ms;
+            mDisconnectedAt_ms = 0;
+            mReconnectLatency.record(latency_ms);
+            Log.v(TAG, "Data flowing " + latency_ms + "ms after disconnect. " + mReconnectLatency);
+        }
+    }
+
+    /**
+     * Watches the connection for unexpected disconnects and restores subscriptions after a reconnect,
+     * then passes every event on to the callback given to connect()
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mHandler.removeCallbacks(mConnectDeadlineRunnable);
+                if (mConnecting) {
+                    mConnecting = false;
+                    mTimeToConnect.record(SystemClock.elapsedRealtime() - mConnectStartedAt_ms);
+                    Log.v(TAG, "Connected. " + getConnectSummary());
+                }
+                if (mReconnecting) {
+                    Log.v(TAG, "Reconnected after " + mReconnectAttempt + " attempt(s)");
+                    mReconnecting = false;
+                    mRestoreSubscriptions = true;
+                }
+                mReconnectAttempt = 0;
+                mMtu = DEFAULT_MTU;
+                mMtuRequested = false;
+                mNotificationThroughput = new ThroughputMeter("notifications at MTU " + DEFAULT_MTU);
+                mPriorityController.attach(gatt);
+                // operations that fail before reaching the Peripheral come back through this callback
+                mOperationQueue.attach(gatt, this);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                if (mConnecting) {
+                    // never got connected.  The supervisor decides whether to retry
+                    onConnectAttemptFailed(gatt, status);
+                    return;
+                }
+                mOperationQueue.detach();
+                mPriorityController.detach();
+                Log.v(TAG, "Connection priority metrics: " + mPriorityController.getSummary());
+                Log.v(TAG, "GATT operation metrics: " + mOperationQueue.getSummary());
+                Log.v(TAG, "Reads: " + getRadioReadCount() + " sent, " + getCoalescedReadCount() + " saved by coalescing");
+                Log.v(TAG, "Polling metrics: " + mPoller.getSummary());
+                synchronized (mConflatingWriters) {
+                    for (ConflatingWriter conflatingWriter : mConflatingWriters.values()) {
+                        Log.v(TAG, "Latest-value writes to " + conflatingWriter);
+                    }
+                }
+                Log.v(TAG, mNotificationThroughput.toString());
+                Log.v(TAG, "Notification dispatch: " + mNotificationDispatcher.getSummary());
+                for (Throwable leak : mNotificationDispatcher.getPayloadPool().findLeaks(System.nanoTime(), PAYLOAD_LEAK_AGE_NS)) {
+                    Log.w(TAG, "Payload not released", leak);
+                }
+                NotificationRecorder recorder = mNotificationRecorder;
+                if (recorder != null) Log.v(TAG, "Notification recording " + recorder.getSummary());
+                NotificationStats.Snapshot snapshot = new NotificationStats.Snapshot();
+                for (NotificationStats stats : mNotificationStats) {
+                    if (stats != null) Log.v(TAG, "Notifications from handle " + stats.getHandle() + ": " + stats.snapshot(snapshot, System.nanoTime()));
+                }
+                ReconnectPolicy reconnectPolicy = mReconnectPolicy;
+                if (!mDisconnectRequested && (reconnectPolicy != null || mReconnecting) && mBluetoothDevice != null) {
+                    if (mReconnecting) {
+                        // a reconnect attempt failed
+                        onConnectAttemptFailed(gatt, status);
+                    } else {
+                        Log.v(TAG, "Connection lost unexpectedly: " + GattStatus.toString(status));
+                        mDisconnectedAt_ms = SystemClock.elapsedRealtime();
+                        mActiveReconnectPolicy = reconnectPolicy;
+                        mReconnecting = true;
+                        // release the client slot held by the dead connection before trying again
+                        gatt.close();
+                        if (mBluetoothGatt == gatt) mBluetoothGatt = null;
+                        scheduleReconnect();
+                    }
+                }
+            }
+            mCallback.onConnectionStateChange(gatt, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mProfileIndex = new BleGattProfileIndex(gatt.getServices());
+                Log.v(TAG, "Indexed " + mProfileIndex.getCharacteristicCount() + " characteristics in " + mProfileIndex.getServices().size() + " services");
+                mPoller.rebind(mProfileIndex);
+                if (!mMtuRequested && mRequestedMtu > DEFAULT_MTU) {
+                    // negotiate a larger MTU first.  Subscriptions are restored once it completes
+                    requestMtu(mRequestedMtu);
+                } else {
+                    onMtuNegotiated(gatt);
+                }
+            }
+            mCallback.onServicesDiscovered(gatt, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            byte[] value = characteristic.getValue();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                onDataReceived();
+                onValueRead(value == null ? 0 : value.length);
+            }
+            closePendingRead(characteristic);
+            mCallback.onCharacteristicRead(gatt, characteristic, status);
+            // only start the next operation once the callback is done with the value
+            mOperationQueue.onCallback(GattOperation.Type.READ_CHARACTERISTIC, characteristic, status, value == null ? 0 : value.length);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mCallback.onCharacteristicWrite(gatt, characteristic, status);
+            mOperationQueue.onCallback(GattOperation.Type.WRITE_CHARACTERISTIC, characteristic, status, 0);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            onDataReceived();
+            byte[] value = characteristic.getValue();
+            mPriorityController.onNotificationReceived(value == null ? 0 : value.length);
+            mNotificationThroughput.record(value == null ? 0 : value.length);
+            BleGattProfileIndex profileIndex = mProfileIndex;
+            if (profileIndex != null) {
+                int handle = profileIndex.getHandle(characteristic);
+                if (handle != BleGattProfileIndex.NO_HANDLE) {
+                    long timestamp_ns = System.nanoTime();
+                    NotificationStats[] statsTable = mNotificationStats;
+                    if (handle < statsTable.length && statsTable[handle] != null && value != null) {
+                        statsTable[handle].record(timestamp_ns, value, 0, value.length);
+                    }
+                    NotificationRecorder recorder = mNotificationRecorder;
+                    if (recorder != null) recorder.record(mDeviceKey, handle, timestamp_ns, value);
+                    mNotificationDispatcher.publish(handle, timestamp_ns, value);
+                }
+            }
+            mCallback.onCharacteristicChanged(gatt, characteristic);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            byte[] value = descriptor.getValue();
+            mCallback.onDescriptorRead(gatt, descriptor, status);
+            mOperationQueue.onCallback(GattOperation.Type.READ_DESCRIPTOR, descriptor, status, value == null ? 0 : value.length);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mCallback.onDescriptorWrite(gatt, descriptor, status);
+            mOperationQueue.onCallback(GattOperation.Type.WRITE_DESCRIPTOR, descriptor, status, 0);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            mCallback.onReliableWriteCompleted(gatt, status);
+            mOperationQueue.onCallback(GattOperation.Type.RELIABLE_WRITE, null, status, 0);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mCallback.onReadRemoteRssi(gatt, rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+                // notifications still waiting go back to the old pool once drained
+                mNotificationDispatcher.setPayloadPool(new PayloadPool(mNotificationDispatcher.getCapacity(), getMaxPayloadLength(), BuildConfig.DEBUG));
+                mNotificationThroughput = new ThroughputMeter("notifications at MTU " + mtu);
+                Log.v(TAG, "MTU changed to " + mtu + ", " + getMaxPayloadLength() + " bytes per packet");
+            } else {
+                Log.w(TAG, "MTU exchange failed. status: " + status + ".  Staying at MTU " + mMtu);
+            }
+            onMtuNegotiated(gatt);
+            mCallback.onMtuChanged(gatt, mtu, status);
+            mOperationQueue.onCallback(GattOperation.Type.REQUEST_MTU, null, status, 0);
+        }
+    };
 
 
     /**
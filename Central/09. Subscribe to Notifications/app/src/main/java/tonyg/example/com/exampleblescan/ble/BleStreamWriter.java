@@ -0,0 +1,395 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BleStreamCallback;
+import tonyg.example.com.exampleblescan.utilities.ThroughputMeter;
+
+/**
+ * Streams a large payload, such as a firmware image or a configuration blob, to a Characteristic.
+ *
+ * The payload is cut into chunks that fit a single packet (MTU - 3 bytes) and written with
+ * WRITE_TYPE_NO_RESPONSE.  Android still calls onCharacteristicWrite for these writes once
+ * the stack has room for the next packet, so the callback timing shows how backed up the
+ * link is.  A credit window limits how many chunks wait in the GattOperationQueue.  It
+ * grows by one chunk for every window's worth of quick callbacks and halves when callbacks
+ * slow down or a write is refused, so other operations are never stuck behind the whole stream.
+ * Chunks are BACKGROUND operations, so the user's own reads and writes go ahead of them.
+ *
+ * A refused chunk is sent again along with every chunk queued behind it, so the
+ * Peripheral always receives the stream in order.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-15
+ */
+public class BleStreamWriter {
+    private static final String TAG = BleStreamWriter.class.getSimpleName();
+
+    public static final int INITIAL_CREDITS = 2;
+    public static final int MAX_CREDITS = 16;
+    public static final int MAX_CHUNK_RETRIES = 3;
+
+    private static final long RETRY_DELAY_MS = 20; // let the stack drain before resending
+    private static final double SLOW_CALLBACK_FACTOR = 2.0; // a callback this much slower than the fastest means backpressure
+    private static final double INTERVAL_SMOOTHING = 0.25; // weight given to the newest callback interval
+
+    private final BlePeripheral mBlePeripheral;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BleStreamCallback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+    /** Stream state **/
+    private ChunkSource mSource;
+    private int mChunkLength;
+    private final ArrayDeque<Chunk> mOutstanding = new ArrayDeque<>(); // queued or in flight, oldest first
+    private final ArrayDeque<Chunk> mUnsent = new ArrayDeque<>(); // taken back after a refused write, oldest first
+    private long mBytesSent = 0;
+
+    /** Pacing **/
+    private int mCredits = INITIAL_CREDITS;
+    private int mAcksThisWindow = 0;
+    private long mLastAckAt_ns = 0;
+    private double mInterval_ns = 0; // smoothed time between callbacks
+    private double mFastestInterval_ns = Double.MAX_VALUE;
+
+    /** Metrics **/
+    private ThroughputMeter mThroughput = new ThroughputMeter("stream");
+    private long mRetransmits = 0;
+    private int mMaxCredits = INITIAL_CREDITS;
+
+    /**
+     * @param blePeripheral the connected Peripheral
+     * @param characteristic the Characteristic to stream to
+     * @param callback reports progress and the result
+     */
+    public BleStreamWriter(BlePeripheral blePeripheral, BluetoothGattCharacteristic characteristic, BleStreamCallback callback) {
+        mBlePeripheral = blePeripheral;
+        mCharacteristic = characteristic;
+        mCallback = callback;
+    }
+
+    /**
+     * Choose the write type.  WRITE_TYPE_DEFAULT waits for the Peripheral to acknowledge each chunk,
+     * which is useful for comparing against the unacknowledged stream
+     *
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE or WRITE_TYPE_DEFAULT
+     */
+    public synchronized void setWriteType(int writeType) {
+        mWriteType = writeType;
+    }
+
+    /**
+     * Stream a byte array
+     *
+     * @param data the payload
+     */
+    public void write(byte[] data) {
+        start(new BufferSource(ByteBuffer.wrap(data)));
+    }
+
+    /**
+     * Stream the remaining bytes of a ByteBuffer.  The buffer's position is not changed
+     *
+     * @param data the payload
+     */
+    public void write(ByteBuffer data) {
+        start(new BufferSource(data.duplicate()));
+    }
+
+    /**
+     * Stream everything in an InputStream.  The stream is read a chunk at a time as credits
+     * become available, so it should be a local file or asset rather than a network stream
+     *
+     * @param data the payload
+     */
+    public void write(InputStream data) {
+        start(new StreamSource(data));
+    }
+
+    /**
+     * Stop streaming.  Chunks that are still queued are taken back
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mSource == null) return;
+        }
+        fail("cancelled");
+    }
+
+    public synchronized boolean isStreaming() { return mSource != null; }
+    public synchronized int getCredits() { return mCredits; }
+    public synchronized int getMaxCredits() { return mMaxCredits; }
+    public synchronized long getRetransmitCount() { return mRetransmits; }
+    public synchronized long getBytesSent() { return mBytesSent; }
+    public ThroughputMeter getThroughput() { return mThroughput; }
+
+    private void start(ChunkSource source) {
+        synchronized (this) {
+            if (mSource != null) throw new IllegalStateException("Already streaming");
+            mSource = source;
+            mChunkLength = mBlePeripheral.getMaxPayloadLength();
+            mOutstanding.clear();
+            mUnsent.clear();
+            mBytesSent = 0;
+            mCredits = INITIAL_CREDITS;
+            mMaxCredits = INITIAL_CREDITS;
+            mAcksThisWindow = 0;
+            mLastAckAt_ns = 0;
+            mInterval_ns = 0;
+            mFastestInterval_ns = Double.MAX_VALUE;
+            mRetransmits = 0;
+            String mode = mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? "without response" : "with response";
+            mThroughput = new ThroughputMeter("stream " + mode + " at MTU " + mBlePeripheral.getMtu());
+        }
+        Log.v(TAG, "Streaming to " + mCharacteristic.getUuid() + " in " + mChunkLength + "-byte chunks");
+        fill();
+    }
+
+    /**
+     * Queue chunks until the credit window is full or the payload runs out
+     */
+    private void fill() {
+        boolean complete = false;
+        List<Chunk> ready = new ArrayList<>();
+        try {
+            synchronized (this) {
+                if (mSource == null) return;
+                while (mOutstanding.size() < mCredits) {
+                    Chunk chunk = mUnsent.poll();
+                    if (chunk == null) chunk = mSource.next(mChunkLength);
+                    if (chunk == null) break;
+                    chunk.mOperation = GattOperation.writeCharacteristic(mCharacteristic, chunk.mData, mWriteType)
+                            .setPriority(GattOperation.Priority.BACKGROUND)
+                            .setOnCompleteListener(mChunkListener);
+                    mOutstanding.add(chunk);
+                    ready.add(chunk);
+                }
+                if (mOutstanding.isEmpty() && mUnsent.isEmpty()) {
+                    complete = true;
+                    mSource.close();
+                    mSource = null;
+                }
+            }
+        } catch (IOException e) {
+            fail("could not read payload: " + e.getMessage());
+            return;
+        }
+        // enqueue outside the lock: a write the stack refuses completes straight away
+        for (Chunk chunk : ready) {
+            synchronized (this) {
+                // a refusal takes back every chunk behind it
+                if (!mOutstanding.contains(chunk)) break;
+            }
+            mBlePeripheral.getOperationQueue().enqueue(chunk.mOperation);
+        }
+        if (complete) {
+            Log.v(TAG, "Stream complete. " + mThroughput + ", max credits " + mMaxCredits + ", " + mRetransmits + " retransmits");
+            mCallback.onStreamComplete(mThroughput);
+        }
+    }
+
+    private final GattOperation.OnCompleteListener mChunkListener = new GattOperation.OnCompleteListener() {
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            long bytesSent;
+            synchronized (BleStreamWriter.this) {
+                Chunk chunk = mOutstanding.peek();
+                // chunks complete in order.  Anything else belongs to a stream that was taken back
+                if (chunk == null || chunk.mOperation != operation) return;
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    onChunkRefused(chunk, status);
+                    return;
+                }
+                mOutstanding.poll();
+                mBytesSent += chunk.mData.length;
+                mThroughput.record(chunk.mData.length);
+                pace(System.nanoTime());
+                bytesSent = mBytesSent;
+            }
+            mCallback.onProgress(bytesSent);
+            fill();
+        }
+    };
+
+    /**
+     * Grow the window while callbacks keep coming quickly.  Halve it when they slow down
+     *
+     * @param now_ns when the callback arrived
+     */
+    private void pace(long now_ns) {
+        if (mLastAckAt_ns != 0) {
+            long interval_ns = now_ns - mLastAckAt_ns;
+            mInterval_ns = mInterval_ns == 0 ? interval_ns : INTERVAL_SMOOTHING * interval_ns + (1 - INTERVAL_SMOOTHING) * mInterval_ns;
+            if (mInterval_ns < mFastestInterval_ns) mFastestInterval_ns = mInterval_ns;
+            if (mInterval_ns > SLOW_CALLBACK_FACTOR * mFastestInterval_ns && mCredits > 1) {
+                mCredits = Math.max(1, mCredits / 2);
+                mAcksThisWindow = 0;
+                // judge the smaller window on its own merits
+                mFastestInterval_ns = mInterval_ns;
+            } else if (++mAcksThisWindow >= mCredits && mCredits < MAX_CREDITS) {
+                mCredits++;
+                mAcksThisWindow = 0;
+                if (mCredits > mMaxCredits) mMaxCredits = mCredits;
+            }
+        }
+        mLastAckAt_ns = now_ns;
+    }
+
+    /**
+     * The stack refused a chunk, or it timed out.  Take back every chunk queued behind it
+     * and send them all again, in order, with a smaller window
+     */
+    private void onChunkRefused(Chunk chunk, int status) {
+        if (status == GattStatus.OPERATION_ABORTED) {
+            // the connection is gone
+            mHandler.post(new FailRunnable("connection closed"));
+            return;
+        }
+        if (++chunk.mAttempts > MAX_CHUNK_RETRIES) {
+            mHandler.post(new FailRunnable("chunk refused " + chunk.mAttempts + " times: " + GattStatus.toString(status)));
+            return;
+        }
+        Iterator<Chunk> newestFirst = mOutstanding.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Chunk outstanding = newestFirst.next();
+            if (outstanding != chunk) mBlePeripheral.getOperationQueue().remove(outstanding.mOperation);
+            mUnsent.addFirst(outstanding);
+        }
+        mOutstanding.clear();
+        mRetransmits++;
+        mCredits = Math.max(1, mCredits / 2);
+        mAcksThisWindow = 0;
+        mLastAckAt_ns = 0;
+        Log.v(TAG, "Chunk refused: " + GattStatus.toString(status) + ".  Resending with " + mCredits + " credit(s)");
+        mHandler.postDelayed(mFillRunnable, RETRY_DELAY_MS);
+    }
+
+    private final Runnable mFillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            fill();
+        }
+    };
+
+    private class FailRunnable implements Runnable {
+        private final String mReason;
+
+        FailRunnable(String reason) {
+            mReason = reason;
+        }
+
+        @Override
+        public void run() {
+            fail(mReason);
+        }
+    }
+
+    private void fail(String reason) {
+        long bytesSent;
+        synchronized (this) {
+            if (mSource == null) return;
+            mHandler.removeCallbacks(mFillRunnable);
+            for (Chunk chunk : mOutstanding) {
+                mBlePeripheral.getOperationQueue().remove(chunk.mOperation);
+            }
+            mOutstanding.clear();
+            mUnsent.clear();
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close payload: " + e.getMessage());
+            }
+            mSource = null;
+            bytesSent = mBytesSent;
+        }
+        Log.w(TAG, "Stream failed after " + bytesSent + " bytes: " + reason);
+        mCallback.onStreamFailed(bytesSent, reason);
+    }
+
+    /**
+     * A piece of the payload that fits in one packet
+     */
+    private static class Chunk {
+        final byte[] mData;
+        GattOperation mOperation;
+        int mAttempts = 0;
+
+        Chunk(byte[] data) {
+            mData = data;
+        }
+    }
+
+    /**
+     * Hands out the payload one chunk at a time
+     */
+    private interface ChunkSource {
+        /**
+         * @param maxLength the largest chunk to return
+         * @return the next chunk, or <b>null</b> at the end of the payload
+         */
+        Chunk next(int maxLength) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static class BufferSource implements ChunkSource {
+        private final ByteBuffer mBuffer;
+
+        BufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public Chunk next(int maxLength) {
+            if (!mBuffer.hasRemaining()) return null;
+            byte[] data = new byte[Math.min(maxLength, mBuffer.remaining())];
+            mBuffer.get(data);
+            return new Chunk(data);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class StreamSource implements ChunkSource {
+        private final InputStream mInputStream;
+
+        StreamSource(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public Chunk next(int maxLength) throws IOException {
+            // fill the whole chunk: InputStream.read may return less than was asked for
+            byte[] data = new byte[maxLength];
+            int length = 0;
+            while (length < maxLength) {
+                int read = mInputStream.read(data, length, maxLength - length);
+                if (read < 0) break;
+                length += read;
+            }
+            if (length == 0) return null;
+            return new Chunk(length == maxLength ? data : Arrays.copyOf(data, length));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+}
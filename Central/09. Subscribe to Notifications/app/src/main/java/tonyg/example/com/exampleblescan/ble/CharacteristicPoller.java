@@ -0,0 +1,311 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.BlePollCallback;
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Reads Characteristics that can't notify on a fixed interval.
+ *
+ * The next poll of every Characteristic is kept in one min-heap ordered by deadline, and a single
+ * Handler timer is set for the earliest one.  Deadlines are rounded up to a common alignment grid,
+ * so polls of the same connection that fall due together are queued back to back and share
+ * connection events instead of each waking the radio on its own.
+ *
+ * Polls are BACKGROUND operations, so they wait behind the user's reads and writes and
+ * subscription changes, and a Characteristic is never polled again while its previous poll
+ * is still outstanding.  A poll joins a read of the same Characteristic that is already pending.
+ * Polling stops as soon as the last BlePollCallback listening to a Characteristic is removed.
+ *
+ * Polls are keyed by Service and Characteristic UUID rather than by BluetoothGattCharacteristic,
+ * because rediscovering services after a reconnect replaces every Characteristic object.
+ * rebind() points the polls at the new objects.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-20
+ */
+public class CharacteristicPoller {
+    private static final String TAG = CharacteristicPoller.class.getSimpleName();
+
+    public static final long DEFAULT_ALIGNMENT_MS = 50; // a few connection intervals at CONNECTION_PRIORITY_BALANCED
+    public static final long MIN_INTERVAL_MS = 20;
+
+    private final BlePeripheral mBlePeripheral;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Key, Poll> mPolls = new HashMap<>();
+    private final PriorityQueue<Poll> mDeadlines = new PriorityQueue<>(11, new Comparator<Poll>() {
+        @Override
+        public int compare(Poll lhs, Poll rhs) {
+            return lhs.mDeadline_ms < rhs.mDeadline_ms ? -1 : (lhs.mDeadline_ms == rhs.mDeadline_ms ? 0 : 1);
+        }
+    });
+    private long mAlignment_ms = DEFAULT_ALIGNMENT_MS;
+    private long mTimerDeadline_ms = 0; // when the timer will fire, 0 if it isn't set
+
+    /** Metrics **/
+    private final LatencyHistogram mLateness = new LatencyHistogram("poll lateness", "ms");
+    private final LatencyHistogram mPollLatency = new LatencyHistogram("poll latency", "ms");
+    private long mPollsSent = 0;
+    private long mPollsSkipped = 0; // the previous poll was still outstanding
+
+    /**
+     * @param blePeripheral the connection to poll
+     */
+    public CharacteristicPoller(BlePeripheral blePeripheral) {
+        mBlePeripheral = blePeripheral;
+    }
+
+    /**
+     * Set the grid that poll deadlines are rounded up to.  Larger values group more polls
+     * into the same connection events, at the cost of up to this much extra delay per poll
+     *
+     * @param alignment_ms the grid spacing
+     */
+    public synchronized void setAlignment(long alignment_ms) {
+        mAlignment_ms = Math.max(1, alignment_ms);
+    }
+
+    /**
+     * Start polling a Characteristic, or add another listener to a Characteristic already being polled.
+     * The Characteristic is polled at the shortest interval any of its listeners asked for
+     *
+     * @param characteristic a readable Characteristic
+     * @param interval_ms time between polls
+     * @param callback receives every poll result
+     */
+    public void startPolling(BluetoothGattCharacteristic characteristic, long interval_ms, BlePollCallback callback) {
+        synchronized (this) {
+            Key key = new Key(characteristic);
+            Poll poll = mPolls.get(key);
+            if (poll == null) {
+                poll = new Poll(key, characteristic);
+                mPolls.put(key, poll);
+                poll.mListeners.put(callback, Math.max(MIN_INTERVAL_MS, interval_ms));
+                poll.updateInterval();
+                // first poll straight away, on the next grid slot
+                poll.mDeadline_ms = align(SystemClock.uptimeMillis());
+                mDeadlines.add(poll);
+                Log.v(TAG, "Polling " + characteristic.getUuid() + " every " + poll.mInterval_ms + "ms");
+            } else {
+                poll.mListeners.put(callback, Math.max(MIN_INTERVAL_MS, interval_ms));
+                poll.updateInterval();
+            }
+        }
+        scheduleTimer();
+    }
+
+    /**
+     * Remove a listener.  The Characteristic stops being polled once it has no listeners left
+     *
+     * @param characteristic the Characteristic
+     * @param callback the listener given to startPolling()
+     */
+    public void stopPolling(BluetoothGattCharacteristic characteristic, BlePollCallback callback) {
+        synchronized (this) {
+            Key key = new Key(characteristic);
+            Poll poll = mPolls.get(key);
+            if (poll == null || poll.mListeners.remove(callback) == null) return;
+            if (poll.mListeners.isEmpty()) {
+                mPolls.remove(key);
+                mDeadlines.remove(poll);
+                Log.v(TAG, "Stopped polling " + characteristic.getUuid());
+            } else {
+                poll.updateInterval();
+            }
+        }
+        scheduleTimer();
+    }
+
+    /**
+     * Stop polling everything
+     */
+    public synchronized void stopAll() {
+        mPolls.clear();
+        mDeadlines.clear();
+        mHandler.removeCallbacks(mTimerRunnable);
+        mTimerDeadline_ms = 0;
+    }
+
+    /**
+     * @param characteristic the Characteristic
+     * @return <b>true</b> if the Characteristic is being polled
+     */
+    public synchronized boolean isPolling(BluetoothGattCharacteristic characteristic) {
+        return mPolls.containsKey(new Key(characteristic));
+    }
+
+    /**
+     * Point every poll at the Characteristic objects of a freshly discovered profile.
+     * A Characteristic missing from the new profile is not read until it reappears
+     *
+     * @param profileIndex the profile discovered after (re)connecting
+     */
+    public synchronized void rebind(BleGattProfileIndex profileIndex) {
+        for (Poll poll : mPolls.values()) {
+            poll.mCharacteristic = profileIndex.getCharacteristic(poll.mKey.mServiceUuid, poll.mKey.mCharacteristicUuid);
+            if (poll.mCharacteristic == null) {
+                Log.w(TAG, "Polled Characteristic " + poll.mKey.mCharacteristicUuid + " is gone");
+            }
+        }
+    }
+
+    public synchronized long getPollsSent() { return mPollsSent; }
+    public synchronized long getPollsSkipped() { return mPollsSkipped; }
+    public LatencyHistogram getLateness() { return mLateness; }
+    public LatencyHistogram getPollLatency() { return mPollLatency; }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a multi-line summary
+     */
+    public synchronized String getSummary() {
+        return "polling=" + mPolls.size() + " sent=" + mPollsSent + " skipped=" + mPollsSkipped
+                + "\n  " + mLateness + "\n  " + mPollLatency;
+    }
+
+    /**
+     * Round a time up to the alignment grid, so that polls falling due close together fire together
+     */
+    private long align(long time_ms) {
+        return ((time_ms + mAlignment_ms - 1) / mAlignment_ms) * mAlignment_ms;
+    }
+
+    /**
+     * Point the timer at the earliest deadline in the heap
+     */
+    private synchronized void scheduleTimer() {
+        Poll next = mDeadlines.peek();
+        if (next == null) {
+            mHandler.removeCallbacks(mTimerRunnable);
+            mTimerDeadline_ms = 0;
+        } else if (next.mDeadline_ms != mTimerDeadline_ms) {
+            mHandler.removeCallbacks(mTimerRunnable);
+            mHandler.postAtTime(mTimerRunnable, next.mDeadline_ms);
+            mTimerDeadline_ms = next.mDeadline_ms;
+        }
+    }
+
+    /**
+     * Send every poll that has fallen due
+     */
+    private final Runnable mTimerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<Poll> due = new ArrayList<>();
+            List<Poll> popped = new ArrayList<>();
+            synchronized (CharacteristicPoller.this) {
+                mTimerDeadline_ms = 0;
+                long now_ms = SystemClock.uptimeMillis();
+                while (!mDeadlines.isEmpty() && mDeadlines.peek().mDeadline_ms <= now_ms) {
+                    Poll poll = mDeadlines.poll();
+                    popped.add(poll);
+                    if (poll.mCharacteristic == null) {
+                        // not in the current profile.  Try again once rebind() has found it
+                        mPollsSkipped++;
+                        poll.mDeadline_ms = align(Math.max(poll.mDeadline_ms + poll.mInterval_ms, now_ms + 1));
+                    } else if (poll.mInFlight) {
+                        // the link can't keep up with this interval.  Don't pile up reads
+                        mPollsSkipped++;
+                        poll.mDeadline_ms = align(Math.max(poll.mDeadline_ms + poll.mInterval_ms, now_ms + 1));
+                    } else {
+                        mPollsSent++;
+                        mLateness.record(now_ms - poll.mDeadline_ms);
+                        poll.mInFlight = true;
+                        poll.mSentAt_ms = now_ms;
+                        poll.mSentCharacteristic = poll.mCharacteristic;
+                        poll.mDeadline_ms = align(Math.max(poll.mDeadline_ms + poll.mInterval_ms, now_ms + 1));
+                        due.add(poll);
+                    }
+                }
+                // put them back under their new deadlines
+                mDeadlines.addAll(popped);
+            }
+            for (Poll poll : due) {
+                mBlePeripheral.readValueFromCharacteristic(poll.mSentCharacteristic, GattOperation.Priority.BACKGROUND, poll);
+            }
+            scheduleTimer();
+        }
+    };
+
+    /**
+     * Identifies a Characteristic across reconnects
+     */
+    private static final class Key {
+        private final UUID mServiceUuid;
+        private final UUID mCharacteristicUuid;
+
+        Key(BluetoothGattCharacteristic characteristic) {
+            mServiceUuid = characteristic.getService().getUuid();
+            mCharacteristicUuid = characteristic.getUuid();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return mServiceUuid.equals(key.mServiceUuid) && mCharacteristicUuid.equals(key.mCharacteristicUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mServiceUuid.hashCode() + mCharacteristicUuid.hashCode();
+        }
+    }
+
+    /**
+     * One polled Characteristic and its listeners
+     */
+    private class Poll implements GattOperation.OnCompleteListener {
+        private final Key mKey;
+        private BluetoothGattCharacteristic mCharacteristic; // null while missing from the profile
+        private BluetoothGattCharacteristic mSentCharacteristic; // the object the outstanding poll read
+        private final Map<BlePollCallback, Long> mListeners = new LinkedHashMap<>(); // listener -> requested interval
+        private long mInterval_ms;
+        private long mDeadline_ms; // when the next poll should be sent
+        private long mSentAt_ms;
+        private boolean mInFlight = false;
+
+        Poll(Key key, BluetoothGattCharacteristic characteristic) {
+            mKey = key;
+            mCharacteristic = characteristic;
+        }
+
+        void updateInterval() {
+            long interval_ms = Long.MAX_VALUE;
+            for (long requested_ms : mListeners.values()) {
+                if (requested_ms < interval_ms) interval_ms = requested_ms;
+            }
+            mInterval_ms = interval_ms;
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            List<BlePollCallback> listeners;
+            BluetoothGattCharacteristic characteristic;
+            synchronized (CharacteristicPoller.this) {
+                mInFlight = false;
+                mPollLatency.record(SystemClock.uptimeMillis() - mSentAt_ms);
+                listeners = new ArrayList<>(mListeners.keySet());
+                characteristic = mSentCharacteristic;
+            }
+            for (BlePollCallback listener : listeners) {
+                listener.onCharacteristicPolled(characteristic, status);
+            }
+        }
+    }
+}
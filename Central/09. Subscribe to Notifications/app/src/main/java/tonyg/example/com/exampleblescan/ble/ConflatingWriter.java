@@ -0,0 +1,133 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Writes only the latest value to a Characteristic, such as a setpoint driven by a slider.
+ *
+ * At most one write of the Characteristic waits in the GattOperationQueue at a time.  The write
+ * picks up its value when it is sent, not when it is queued, so a newer value simply replaces
+ * the one waiting, keeps its place in the queue and is sent next.  Replaced values are counted
+ * as dropped.  However fast values arrive, the newest one is at most one write behind the write
+ * in flight.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-21
+ */
+public class ConflatingWriter {
+    private final GattOperationQueue mOperationQueue;
+    private final BluetoothGattCharacteristic mCharacteristic;
+
+    private byte[] mPendingValue; // the newest value, not sent yet
+    private long mPendingSince_ms; // when the newest value arrived
+    private GattOperation mWaiting; // queued but not yet sent
+
+    /** Metrics **/
+    private final LatencyHistogram mLatency = new LatencyHistogram("conflated write", "ms"); // value given to write completed
+    private long mWritten = 0;
+    private long mDropped = 0;
+
+    /**
+     * @param operationQueue the queue of the connected Peripheral
+     * @param characteristic the Characteristic to write
+     */
+    public ConflatingWriter(GattOperationQueue operationQueue, BluetoothGattCharacteristic characteristic) {
+        mOperationQueue = operationQueue;
+        mCharacteristic = characteristic;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * Write a value, replacing any value that hasn't been sent yet
+     *
+     * @param value the value, no longer than one packet
+     */
+    public void write(byte[] value) {
+        GattOperation operation;
+        synchronized (this) {
+            if (mPendingValue != null) mDropped++;
+            mPendingValue = value;
+            mPendingSince_ms = SystemClock.elapsedRealtime();
+            if (mWaiting != null) return; // the queued write will pick up the new value
+            operation = new Write(mCharacteristic.getWriteType());
+            mWaiting = operation;
+        }
+        mOperationQueue.enqueue(operation);
+    }
+
+    public synchronized long getWrittenCount() { return mWritten; }
+    public synchronized long getDroppedCount() { return mDropped; }
+    public LatencyHistogram getLatency() { return mLatency; }
+
+    @Override
+    public synchronized String toString() {
+        return mCharacteristic.getUuid() + ": written=" + mWritten + " dropped=" + mDropped + " " + mLatency;
+    }
+
+    /**
+     * The write waiting in the queue.  It takes the newest value when it is sent
+     */
+    private class Write extends GattOperation {
+        private final int mWriteType;
+        private byte[] mValue;
+        private long mValueSince_ms;
+
+        Write(int writeType) {
+            super(Type.WRITE_CHARACTERISTIC, mCharacteristic);
+            mWriteType = writeType;
+        }
+
+        @Override
+        boolean execute(BluetoothGatt gatt) {
+            synchronized (ConflatingWriter.this) {
+                if (mWaiting == this) mWaiting = null; // later values need a new write
+                mValue = mPendingValue;
+                mValueSince_ms = mPendingSince_ms;
+                mPendingValue = null;
+            }
+            if (mValue == null) return false;
+            mCharacteristic.setWriteType(mWriteType);
+            mCharacteristic.setValue(mValue);
+            return gatt.writeCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+            callback.onCharacteristicWrite(gatt, mCharacteristic, status);
+        }
+
+        @Override
+        void onComplete(int status) {
+            synchronized (ConflatingWriter.this) {
+                if (mWaiting == this) {
+                    // aborted before it was sent
+                    mWaiting = null;
+                    mPendingValue = null;
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mWritten++;
+                    mLatency.record(SystemClock.elapsedRealtime() - mValueSince_ms);
+                }
+            }
+            super.onComplete(status);
+        }
+
+        @Override
+        public int getLength() {
+            return mValue == null ? 0 : mValue.length;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " " + mCharacteristic.getUuid() + " (latest)";
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Adjusts the connection interval of a BluetoothGatt to match its traffic.
+ *
+ * The connection is raised to CONNECTION_PRIORITY_HIGH as soon as the number of pending
+ * GATT operations or the notification rate crosses a threshold.  It only drops back to
+ * CONNECTION_PRIORITY_BALANCED, and later CONNECTION_PRIORITY_LOW_POWER, once the traffic
+ * has stayed below a lower threshold for a quiet period.  The gap between the two thresholds
+ * and the quiet period keep the priority from flapping.
+ *
+ * Time spent, bytes received and operation latency are tracked per priority so the
+ * effect of each change can be compared.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-09
+ */
+public class ConnectionPriorityController {
+    private static final String TAG = ConnectionPriorityController.class.getSimpleName();
+
+    public static final int DEFAULT_HIGH_QUEUE_DEPTH = 3; // pending operations
+    public static final int DEFAULT_HIGH_NOTIFICATION_RATE = 20; // notifications per second
+    public static final long DEFAULT_BALANCED_AFTER_MS = 2000; // quiet time before dropping from HIGH
+    public static final long DEFAULT_LOW_POWER_AFTER_MS = 10000; // quiet time before dropping to LOW_POWER
+
+    private static final long EVALUATION_INTERVAL_MS = 250;
+    private static final double RATE_SMOOTHING = 0.5; // weight given to the newest rate sample
+
+    private static final int[] PRIORITIES = {
+            BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+            BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+            BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER
+    };
+
+    /** Settings **/
+    private int mHighQueueDepth = DEFAULT_HIGH_QUEUE_DEPTH;
+    private int mHighNotificationRate = DEFAULT_HIGH_NOTIFICATION_RATE;
+    private long mBalancedAfter_ms = DEFAULT_BALANCED_AFTER_MS;
+    private long mLowPowerAfter_ms = DEFAULT_LOW_POWER_AFTER_MS;
+    private boolean mLowPowerWhenIdle = true;
+
+    /** State **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private BluetoothGatt mBluetoothGatt;
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED; // Android's default
+    private long mPriorityChangedAt_ms;
+    private long mLastBusyAt_ms;
+    private int mQueueDepth = 0;
+    private int mNotificationsSinceTick = 0;
+    private double mNotificationRate = 0;
+
+    /** Metrics, indexed by priority **/
+    private final long[] mTimeInPriority_ms = new long[PRIORITIES.length];
+    private final long[] mBytesInPriority = new long[PRIORITIES.length];
+    private final LatencyHistogram[] mOperationLatency = new LatencyHistogram[PRIORITIES.length];
+    private int mTransitions = 0;
+
+    public ConnectionPriorityController() {
+        for (int priority : PRIORITIES) {
+            mOperationLatency[priority] = new LatencyHistogram("operation latency at " + getPriorityName(priority), "ms");
+        }
+    }
+
+    /**
+     * Set the thresholds that raise the connection to CONNECTION_PRIORITY_HIGH.
+     * The connection is considered quiet again once traffic falls below half of each threshold
+     *
+     * @param queueDepth number of pending GATT operations
+     * @param notificationsPerSecond incoming notification rate
+     */
+    public synchronized void setHighThresholds(int queueDepth, int notificationsPerSecond) {
+        mHighQueueDepth = queueDepth;
+        mHighNotificationRate = notificationsPerSecond;
+    }
+
+    /**
+     * Set how long the connection must be quiet before its priority is lowered
+     *
+     * @param balancedAfter_ms quiet time before dropping from HIGH to BALANCED
+     * @param lowPowerAfter_ms quiet time before dropping to LOW_POWER
+     * @param lowPowerWhenIdle <b>false</b> to never go below BALANCED
+     */
+    public synchronized void setQuietPeriods(long balancedAfter_ms, long lowPowerAfter_ms, boolean lowPowerWhenIdle) {
+        mBalancedAfter_ms = balancedAfter_ms;
+        mLowPowerAfter_ms = lowPowerAfter_ms;
+        mLowPowerWhenIdle = lowPowerWhenIdle;
+    }
+
+    /**
+     * Start managing a connection
+     *
+     * @param bluetoothGatt the connected GATT
+     */
+    public synchronized void attach(BluetoothGatt bluetoothGatt) {
+        mBluetoothGatt = bluetoothGatt;
+        long now_ms = SystemClock.elapsedRealtime();
+        mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mPriorityChangedAt_ms = now_ms;
+        mLastBusyAt_ms = now_ms;
+        mQueueDepth = 0;
+        mNotificationsSinceTick = 0;
+        mNotificationRate = 0;
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        mHandler.postDelayed(mEvaluateRunnable, EVALUATION_INTERVAL_MS);
+    }
+
+    /**
+     * Stop managing the connection
+     */
+    public synchronized void detach() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        if (mBluetoothGatt == null) return;
+        accumulateTime(SystemClock.elapsedRealtime());
+        mBluetoothGatt = null;
+    }
+
+    /**
+     * The number of pending GATT operations changed
+     *
+     * @param queueDepth the number of operations waiting or in flight
+     */
+    public synchronized void onQueueDepthChanged(int queueDepth) {
+        mQueueDepth = queueDepth;
+        if (queueDepth >= mHighQueueDepth) {
+            mLastBusyAt_ms = SystemClock.elapsedRealtime();
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    /**
+     * A notification arrived from the Peripheral
+     *
+     * @param length number of bytes in the notification
+     */
+    public synchronized void onNotificationReceived(int length) {
+        mNotificationsSinceTick++;
+        mBytesInPriority[mPriority] += length;
+    }
+
+    /**
+     * A GATT operation completed
+     *
+     * @param latency_ms time from issuing the operation to its callback
+     * @param length number of bytes read or written
+     */
+    public synchronized void onOperationCompleted(long latency_ms, int length) {
+        mOperationLatency[mPriority].record(latency_ms);
+        mBytesInPriority[mPriority] += length;
+    }
+
+    public synchronized int getPriority() { return mPriority; }
+    public synchronized int getTransitionCount() { return mTransitions; }
+    public LatencyHistogram getOperationLatency(int priority) { return mOperationLatency[priority]; }
+
+    /**
+     * How long the connection has spent in a priority
+     *
+     * @param priority one of BluetoothGatt.CONNECTION_PRIORITY_*
+     * @return time in milliseconds
+     */
+    public synchronized long getTimeInPriority(int priority) {
+        long time_ms = mTimeInPriority_ms[priority];
+        if (priority == mPriority && mBluetoothGatt != null) {
+            time_ms += SystemClock.elapsedRealtime() - mPriorityChangedAt_ms;
+        }
+        return time_ms;
+    }
+
+    /**
+     * Average data rate while the connection was in a priority
+     *
+     * @param priority one of BluetoothGatt.CONNECTION_PRIORITY_*
+     * @return bytes per second
+     */
+    public synchronized double getThroughput(int priority) {
+        long time_ms = getTimeInPriority(priority);
+        return time_ms == 0 ? 0 : mBytesInPriority[priority] * 1000.0 / time_ms;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a multi-line summary
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder("priority=" + getPriorityName(mPriority) + " transitions=" + mTransitions);
+        for (int priority : PRIORITIES) {
+            summary.append("\n  ").append(getPriorityName(priority))
+                    .append(": ").append(getTimeInPriority(priority)).append("ms, ")
+                    .append((long) getThroughput(priority)).append("B/s, ")
+                    .append(mOperationLatency[priority]);
+        }
+        return summary.toString();
+    }
+
+    public static String getPriorityName(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "HIGH";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "LOW_POWER";
+            default:
+                return "BALANCED";
+        }
+    }
+
+    /**
+     * Periodically update the notification rate and lower the priority once the connection is quiet
+     */
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionPriorityController.this) {
+                if (mBluetoothGatt == null) return;
+                evaluate(SystemClock.elapsedRealtime());
+                mHandler.postDelayed(this, EVALUATION_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void evaluate(long now_ms) {
+        double rate = mNotificationsSinceTick * 1000.0 / EVALUATION_INTERVAL_MS;
+        mNotificationsSinceTick = 0;
+        mNotificationRate = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * mNotificationRate;
+
+        if (mNotificationRate >= mHighNotificationRate || mQueueDepth >= mHighQueueDepth) {
+            mLastBusyAt_ms = now_ms;
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            return;
+        }
+
+        // still above the lower thresholds: not busy enough to raise, not quiet enough to drop
+        if (mNotificationRate >= mHighNotificationRate / 2.0 || mQueueDepth > mHighQueueDepth / 2) {
+            mLastBusyAt_ms = now_ms;
+            return;
+        }
+
+        // any traffic at all wakes the connection up from LOW_POWER and restarts the quiet period
+        if (mNotificationRate >= 1 || mQueueDepth > 0) {
+            if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+                mLastBusyAt_ms = now_ms;
+                setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                return;
+            }
+        }
+
+        long quiet_ms = now_ms - mLastBusyAt_ms;
+        if (mLowPowerWhenIdle && quiet_ms >= mLowPowerAfter_ms && mNotificationRate < 1 && mQueueDepth == 0) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        } else if (quiet_ms >= mBalancedAfter_ms && mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    }
+
+    private void setPriority(int priority) {
+        if (priority == mPriority || mBluetoothGatt == null) return;
+        if (!mBluetoothGatt.requestConnectionPriority(priority)) {
+            Log.w(TAG, "Could not request connection priority " + getPriorityName(priority));
+            return;
+        }
+        long now_ms = SystemClock.elapsedRealtime();
+        accumulateTime(now_ms);
+        mPriority = priority;
+        mTransitions++;
+        Log.v(TAG, "Connection priority changed. " + getSummary());
+    }
+
+    private void accumulateTime(long now_ms) {
+        mTimeInPriority_ms[mPriority] += now_ms - mPriorityChangedAt_ms;
+        mPriorityChangedAt_ms = now_ms;
+    }
+}
@@ -0,0 +1,293 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The pending result of a GATT operation.
+ *
+ * A GattFuture completes exactly once: with a value, with a failed status, or by being cancelled
+ * or timing out.  Listeners and continuations run on the Executor they were added with, so a
+ * multi-step transaction such as read-then-write can be written as a chain instead of a set of
+ * flags in a BluetoothGattCallback.  Works on API 21, which has no CompletableFuture.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-23
+ */
+public class GattFuture<T> {
+
+    /**
+     * Notified when a GattFuture completes, successfully or not
+     */
+    public interface Listener<T> {
+        void onComplete(GattFuture<T> future);
+    }
+
+    /**
+     * The next step of a chain.  Runs only if the previous step succeeded
+     */
+    public interface Continuation<T, R> {
+        /**
+         * @param value the result of the previous step
+         * @return the next step's result
+         */
+        GattFuture<R> then(T value);
+    }
+
+    /** Runs listeners on the main thread, straight away if already on it **/
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                runnable.run();
+            } else {
+                mHandler.post(runnable);
+            }
+        }
+    };
+
+    /** Runs listeners on whichever thread completes the future, usually a Binder thread **/
+    public static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final Handler sTimeoutHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private T mValue;
+    private int mStatus;
+    private Runnable mCancelAction; // takes back the operation behind this future, if it can
+    private final List<Listener<T>> mListeners = new ArrayList<>();
+    private final List<Executor> mExecutors = new ArrayList<>();
+
+    /**
+     * @param value the value
+     * @return a future that has already succeeded
+     */
+    public static <T> GattFuture<T> succeeded(T value) {
+        GattFuture<T> future = new GattFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @param status the failure status
+     * @return a future that has already failed
+     */
+    public static <T> GattFuture<T> failed(int status) {
+        GattFuture<T> future = new GattFuture<>();
+        future.fail(status);
+        return future;
+    }
+
+    /**
+     * Succeed with a value
+     *
+     * @param value the result
+     * @return <b>false</b> if the future had already completed
+     */
+    public boolean complete(T value) {
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mStatus = BluetoothGatt.GATT_SUCCESS;
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Fail with a status
+     *
+     * @param status a status from the Peripheral, or one of GattStatus.OPERATION_*
+     * @return <b>false</b> if the future had already completed
+     */
+    public boolean fail(int status) {
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mStatus = status;
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Give up on the result.  If the operation hasn't been sent yet it is taken out of the queue.
+     * The future fails with GattStatus.OPERATION_ABORTED
+     *
+     * @return <b>false</b> if the future had already completed
+     */
+    public boolean cancel() {
+        Runnable cancelAction;
+        synchronized (this) {
+            if (mDone) return false;
+            mCancelled = true;
+            cancelAction = mCancelAction;
+        }
+        if (cancelAction != null) cancelAction.run();
+        return fail(GattStatus.OPERATION_ABORTED);
+    }
+
+    /**
+     * Fail with GattStatus.OPERATION_TIMEOUT if the future hasn't completed in time.
+     * An operation still waiting in the queue is taken out of it
+     *
+     * @param timeout_ms how long to wait
+     * @return this future
+     */
+    public GattFuture<T> setTimeout(long timeout_ms) {
+        final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Runnable cancelAction;
+                synchronized (GattFuture.this) {
+                    if (mDone) return;
+                    cancelAction = mCancelAction;
+                }
+                if (cancelAction != null) cancelAction.run();
+                fail(GattStatus.OPERATION_TIMEOUT);
+            }
+        };
+        sTimeoutHandler.postDelayed(timeoutRunnable, timeout_ms);
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(GattFuture<T> future) {
+                sTimeoutHandler.removeCallbacks(timeoutRunnable);
+            }
+        }, CALLING_THREAD);
+        return this;
+    }
+
+    /**
+     * Set what cancel() and a timeout do to the work behind this future
+     *
+     * @param cancelAction eg removes the operation from the GattOperationQueue
+     */
+    synchronized void setCancelAction(Runnable cancelAction) {
+        mCancelAction = cancelAction;
+    }
+
+    public synchronized boolean isDone() { return mDone; }
+    public synchronized boolean isSuccess() { return mDone && mStatus == BluetoothGatt.GATT_SUCCESS; }
+    public synchronized boolean isCancelled() { return mCancelled; }
+
+    /**
+     * @return the result, or <b>null</b> if the future hasn't succeeded
+     */
+    public synchronized T getValue() { return mValue; }
+
+    /**
+     * @return BluetoothGatt.GATT_SUCCESS, a status from the Peripheral, or one of GattStatus.OPERATION_*.
+     * Only meaningful once the future is done
+     */
+    public synchronized int getStatus() { return mStatus; }
+
+    /**
+     * Run a listener when the future completes.  If it already has, the listener runs straight away
+     *
+     * @param listener the listener
+     * @param executor where to run it, eg MAIN_THREAD
+     * @return this future
+     */
+    public GattFuture<T> addListener(Listener<T> listener, Executor executor) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                mExecutors.add(executor);
+                return this;
+            }
+        }
+        dispatch(listener, executor);
+        return this;
+    }
+
+    /**
+     * Start the next step once this one succeeds.  If this step fails, the returned future
+     * fails with the same status and the continuation never runs.  Cancelling the returned
+     * future cancels whichever step is running
+     *
+     * @param continuation starts the next step
+     * @param executor where to run the continuation
+     * @return the result of the next step
+     */
+    public <R> GattFuture<R> then(final Continuation<T, R> continuation, Executor executor) {
+        final GattFuture<R> result = new GattFuture<>();
+        result.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        });
+        addListener(new Listener<T>() {
+            @Override
+            public void onComplete(GattFuture<T> future) {
+                if (!future.isSuccess()) {
+                    result.fail(future.getStatus());
+                    return;
+                }
+                if (result.isDone()) return; // cancelled or timed out in the meantime
+                final GattFuture<R> next = continuation.then(future.getValue());
+                result.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.cancel();
+                    }
+                });
+                if (result.isDone()) next.cancel(); // cancelled while the continuation ran
+                next.addListener(new Listener<R>() {
+                    @Override
+                    public void onComplete(GattFuture<R> future) {
+                        if (future.isSuccess()) {
+                            result.complete(future.getValue());
+                        } else {
+                            result.fail(future.getStatus());
+                        }
+                    }
+                }, CALLING_THREAD);
+            }
+        }, executor);
+        return result;
+    }
+
+    private void notifyListeners() {
+        List<Listener<T>> listeners;
+        List<Executor> executors;
+        synchronized (this) {
+            listeners = new ArrayList<>(mListeners);
+            executors = new ArrayList<>(mExecutors);
+            mListeners.clear();
+            mExecutors.clear();
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            dispatch(listeners.get(i), executors.get(i));
+        }
+    }
+
+    private void dispatch(final Listener<T> listener, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(GattFuture.this);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!mDone) return "GattFuture(pending)";
+        return "GattFuture(" + (mCancelled ? "cancelled" : GattStatus.toString(mStatus)) + ")";
+    }
+}
@@ -0,0 +1,387 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * One request to a Peripheral's GATT, waiting its turn in a GattOperationQueue.
+ *
+ * An operation knows how to send itself and which BluetoothGattCallback event completes it.
+ * Values to write are held by the operation and only copied into the Characteristic or
+ * Descriptor when it is sent, so queued writes to the same Characteristic don't overwrite
+ * each other.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-14
+ */
+public abstract class GattOperation {
+
+    /**
+     * The kinds of operation, each completed by a different BluetoothGattCallback event
+     */
+    public enum Type {
+        READ_CHARACTERISTIC, // onCharacteristicRead
+        WRITE_CHARACTERISTIC, // onCharacteristicWrite
+        READ_DESCRIPTOR, // onDescriptorRead
+        WRITE_DESCRIPTOR, // onDescriptorWrite
+        REQUEST_MTU, // onMtuChanged
+        RELIABLE_WRITE // onCharacteristicWrite, then onReliableWriteCompleted
+    }
+
+    /**
+     * Which operations go first.  Waiting operations are sent in this order, highest first
+     */
+    public enum Priority {
+        INTERACTIVE, // the user is waiting for it
+        CONTROL, // subscriptions, MTU and other connection setup
+        BACKGROUND // polls, sweeps and bulk transfers
+    }
+
+    // returned by onEvent() while a multi-step operation is still running
+    static final int IN_PROGRESS = Integer.MIN_VALUE;
+
+    /**
+     * Notified when an operation completes, successfully or not
+     */
+    public interface OnCompleteListener {
+        /**
+         * @param operation the operation
+         * @param status BluetoothGatt.GATT_SUCCESS, a status from the Peripheral, or one of GattStatus.OPERATION_*
+         */
+        void onComplete(GattOperation operation, int status);
+    }
+
+    private final Type mType;
+    private final Object mTarget; // the Characteristic or Descriptor, if any
+    private long mTimeout_ms = 0; // 0 to use the queue's default
+    private volatile Priority mPriority;
+    private OnCompleteListener mOnCompleteListener;
+
+    /** Set by the queue **/
+    long mEnqueuedAt_ms;
+    long mStartedAt_ms;
+
+    protected GattOperation(Type type, Object target) {
+        mType = type;
+        mTarget = target;
+        mPriority = (type == Type.READ_DESCRIPTOR || type == Type.WRITE_DESCRIPTOR || type == Type.REQUEST_MTU)
+                ? Priority.CONTROL : Priority.INTERACTIVE;
+    }
+
+    public Type getType() { return mType; }
+    public Object getTarget() { return mTarget; }
+    public long getTimeout() { return mTimeout_ms; }
+    public Priority getPriority() { return mPriority; }
+
+    /**
+     * Set how long to wait for this operation's callback
+     *
+     * @param timeout_ms the timeout, or 0 to use the queue's default
+     * @return this operation
+     */
+    public GattOperation setTimeout(long timeout_ms) {
+        mTimeout_ms = timeout_ms;
+        return this;
+    }
+
+    /**
+     * Set the priority class.  Descriptor operations and MTU requests default to CONTROL,
+     * everything else to INTERACTIVE.  Change it before the operation is queued; use
+     * GattOperationQueue.setPriority() for an operation that is already waiting
+     *
+     * @param priority the priority class
+     * @return this operation
+     */
+    public GattOperation setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    public GattOperation setOnCompleteListener(OnCompleteListener listener) {
+        mOnCompleteListener = listener;
+        return this;
+    }
+
+    /**
+     * Does a BluetoothGattCallback event complete this operation?
+     *
+     * @param type the kind of event
+     * @param target the Characteristic or Descriptor in the event, or <b>null</b>
+     * @return <b>true</b> if the event belongs to this operation
+     */
+    public boolean matches(Type type, Object target) {
+        return mType == type && mTarget == target;
+    }
+
+    /**
+     * A matching event arrived.  Single-step operations are done; multi-step operations send their next step
+     *
+     * @param gatt the connection
+     * @param type the kind of event
+     * @param status the status in the event
+     * @return the operation's final status, or IN_PROGRESS to keep waiting
+     */
+    int onEvent(BluetoothGatt gatt, Type type, int status) {
+        return status;
+    }
+
+    /**
+     * The operation timed out.  Undo anything it left half done on the connection
+     *
+     * @param gatt the connection
+     */
+    void onTimeout(BluetoothGatt gatt) {
+    }
+
+    /**
+     * @return the number of bytes this operation sends, used for throughput metrics
+     */
+    public int getLength() {
+        return 0;
+    }
+
+    /**
+     * Send the request to the Peripheral
+     *
+     * @param gatt the connection
+     * @return <b>true</b> if BluetoothGatt accepted the request
+     */
+    abstract boolean execute(BluetoothGatt gatt);
+
+    /**
+     * Deliver the BluetoothGattCallback event for an operation that failed without reaching the Peripheral,
+     * so that callers always hear back about their request
+     *
+     * @param callback the callback to notify
+     * @param gatt the connection
+     * @param status one of GattStatus.OPERATION_*
+     */
+    abstract void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status);
+
+    void onComplete(int status) {
+        if (mOnCompleteListener != null) mOnCompleteListener.onComplete(this, status);
+    }
+
+    @Override
+    public String toString() {
+        return mType.name();
+    }
+
+    /**
+     * Read a Characteristic
+     *
+     * @param characteristic the Characteristic
+     * @return the operation
+     */
+    public static GattOperation readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(Type.READ_CHARACTERISTIC, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic);
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onCharacteristicRead(gatt, characteristic, status);
+            }
+
+            @Override
+            public String toString() {
+                return super.toString() + " " + characteristic.getUuid();
+            }
+        };
+    }
+
+    /**
+     * Write a value to a Characteristic
+     *
+     * @param characteristic the Characteristic
+     * @param value the value to write
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE
+     * @return the operation
+     */
+    public static GattOperation writeCharacteristic(final BluetoothGattCharacteristic characteristic, final byte[] value, final int writeType) {
+        return new GattOperation(Type.WRITE_CHARACTERISTIC, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                characteristic.setWriteType(writeType);
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onCharacteristicWrite(gatt, characteristic, status);
+            }
+
+            @Override
+            public int getLength() {
+                return value.length;
+            }
+
+            @Override
+            public String toString() {
+                return super.toString() + " " + characteristic.getUuid() + " (" + value.length + "B)";
+            }
+        };
+    }
+
+    /**
+     * Read a Descriptor
+     *
+     * @param descriptor the Descriptor
+     * @return the operation
+     */
+    public static GattOperation readDescriptor(final BluetoothGattDescriptor descriptor) {
+        return new GattOperation(Type.READ_DESCRIPTOR, descriptor) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readDescriptor(descriptor);
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onDescriptorRead(gatt, descriptor, status);
+            }
+        };
+    }
+
+    /**
+     * Write a value to a Descriptor, eg to subscribe to notifications
+     *
+     * @param descriptor the Descriptor
+     * @param value the value to write
+     * @return the operation
+     */
+    public static GattOperation writeDescriptor(final BluetoothGattDescriptor descriptor, final byte[] value) {
+        return new GattOperation(Type.WRITE_DESCRIPTOR, descriptor) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onDescriptorWrite(gatt, descriptor, status);
+            }
+
+            @Override
+            public int getLength() {
+                return value.length;
+            }
+
+            @Override
+            public String toString() {
+                return super.toString() + " " + descriptor.getCharacteristic().getUuid();
+            }
+        };
+    }
+
+    /**
+     * Write a value atomically with ATT prepared writes.  The Bluetooth stack splits the value into
+     * Prepare Write Requests at increasing offsets and checks each echoed segment; the Peripheral
+     * applies the whole value only when the write is executed.  Any failure aborts the write
+     * and leaves the old value in place.  Completes on onReliableWriteCompleted
+     *
+     * @param characteristic the Characteristic
+     * @param value the value to write, up to 512 bytes
+     * @return the operation
+     */
+    public static GattOperation reliableWrite(final BluetoothGattCharacteristic characteristic, final byte[] value) {
+        return new GattOperation(Type.RELIABLE_WRITE, characteristic) {
+            /**
+             * Which event this write is waiting for.  abortReliableWrite() produces an
+             * onReliableWriteCompleted of its own, so an aborted write or one that hasn't been
+             * executed yet must not take a RELIABLE_WRITE event as its own
+             */
+            private Type mAwaiting = null;
+
+            @Override
+            public boolean matches(Type type, Object target) {
+                if (type == Type.WRITE_CHARACTERISTIC) return mAwaiting == type && target == characteristic;
+                return mAwaiting == type;
+            }
+
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                mAwaiting = null;
+                if (!gatt.beginReliableWrite()) return false;
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                characteristic.setValue(value);
+                if (!gatt.writeCharacteristic(characteristic)) {
+                    gatt.abortReliableWrite();
+                    return false;
+                }
+                mAwaiting = Type.WRITE_CHARACTERISTIC;
+                return true;
+            }
+
+            @Override
+            int onEvent(BluetoothGatt gatt, Type type, int status) {
+                mAwaiting = null;
+                if (type == Type.RELIABLE_WRITE) return status;
+                // every segment has been prepared.  Commit them, or throw them away on failure
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    gatt.abortReliableWrite();
+                    return status;
+                }
+                if (!gatt.executeReliableWrite()) {
+                    gatt.abortReliableWrite();
+                    return GattStatus.OPERATION_NOT_STARTED;
+                }
+                mAwaiting = Type.RELIABLE_WRITE;
+                return IN_PROGRESS;
+            }
+
+            @Override
+            void onTimeout(BluetoothGatt gatt) {
+                // anything that arrives for this write from now on is late
+                mAwaiting = null;
+                if (gatt != null) gatt.abortReliableWrite();
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onReliableWriteCompleted(gatt, status);
+            }
+
+            @Override
+            public int getLength() {
+                return value.length;
+            }
+
+            @Override
+            public String toString() {
+                return super.toString() + " " + characteristic.getUuid() + " (" + value.length + "B)";
+            }
+        };
+    }
+
+    /**
+     * Ask the Peripheral for a larger MTU
+     *
+     * @param mtu the desired MTU
+     * @return the operation
+     */
+    public static GattOperation requestMtu(final int mtu) {
+        return new GattOperation(Type.REQUEST_MTU, null) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+
+            @Override
+            void dispatchFailure(BluetoothGattCallback callback, BluetoothGatt gatt, int status) {
+                callback.onMtuChanged(gatt, BlePeripheral.DEFAULT_MTU, status);
+            }
+
+            @Override
+            public String toString() {
+                return super.toString() + " " + mtu;
+            }
+        };
+    }
+}
@@ -0,0 +1,376 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Sends GATT operations to a Peripheral one at a time.
+ *
+ * Android allows only one outstanding GATT operation per connection; a second request made
+ * before the first one's callback arrives is silently dropped.  Operations wait here until
+ * the BluetoothGattCallback event that matches the operation in flight arrives, or until
+ * it times out, and only then is the next one sent.
+ *
+ * Waiting operations are kept in one lane per GattOperation.Priority and sent in strict
+ * priority order, so a background sweep never delays the user's own reads and writes by more
+ * than the operation already in flight.  To keep lower lanes from starving, an operation that
+ * has waited longer than its lane's aging limit is sent ahead of higher lanes.
+ *
+ * The queue tracks its depth, the latency of each operation, the wait time in each lane
+ * and how many operations fail, and reports its depth and latency to the
+ * ConnectionPriorityController.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-14
+ */
+public class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    public static final long[] DEFAULT_AGING_LIMITS_MS = {0, 500, 2000}; // by priority.  0 never ages
+
+    private final ConnectionPriorityController mPriorityController;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<ArrayDeque<GattOperation>> mLanes = new ArrayList<>(); // indexed by GattOperation.Priority
+    private final long[] mAgingLimits_ms = DEFAULT_AGING_LIMITS_MS.clone();
+    private BluetoothGatt mBluetoothGatt;
+    private BluetoothGattCallback mFailureCallback; // hears about operations that never reached the Peripheral
+    private GattOperation mCurrentOperation; // in flight, waiting for its callback
+    private long mDefaultTimeout_ms = DEFAULT_TIMEOUT_MS;
+
+    /** Metrics **/
+    private final LatencyHistogram mLatency = new LatencyHistogram("GATT operation latency", "ms");
+    private final LatencyHistogram mWaitTime = new LatencyHistogram("GATT operation wait", "ms");
+    private final List<LatencyHistogram> mLaneWaitTime = new ArrayList<>();
+    private long mAged = 0; // operations sent ahead of a higher lane because they waited too long
+    private int mMaxDepth = 0;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+    private long mTimedOut = 0;
+
+    /**
+     * @param priorityController told about the queue depth and operation latency
+     */
+    public GattOperationQueue(ConnectionPriorityController priorityController) {
+        mPriorityController = priorityController;
+        for (GattOperation.Priority priority : GattOperation.Priority.values()) {
+            mLanes.add(new ArrayDeque<GattOperation>());
+            mLaneWaitTime.add(new LatencyHistogram(priority.name().toLowerCase() + " wait", "ms"));
+        }
+    }
+
+    /**
+     * Set how long to wait for an operation's callback when the operation doesn't set its own timeout
+     *
+     * @param timeout_ms the timeout
+     */
+    public synchronized void setDefaultTimeout(long timeout_ms) {
+        mDefaultTimeout_ms = timeout_ms;
+    }
+
+    /**
+     * Set how long an operation may wait before it is sent ahead of higher priority operations
+     *
+     * @param priority the lane
+     * @param agingLimit_ms the limit, or 0 for no limit
+     */
+    public synchronized void setAgingLimit(GattOperation.Priority priority, long agingLimit_ms) {
+        mAgingLimits_ms[priority.ordinal()] = agingLimit_ms;
+    }
+
+    /**
+     * Start sending operations on a connection
+     *
+     * @param bluetoothGatt the connected GATT
+     * @param failureCallback receives the callback event of operations that fail without reaching the Peripheral
+     */
+    public void attach(BluetoothGatt bluetoothGatt, BluetoothGattCallback failureCallback) {
+        synchronized (this) {
+            mBluetoothGatt = bluetoothGatt;
+            mFailureCallback = failureCallback;
+        }
+        executeNext();
+    }
+
+    /**
+     * The connection closed.  Fail the operation in flight and everything still waiting
+     */
+    public void detach() {
+        List<GattOperation> aborted = new ArrayList<>();
+        BluetoothGatt gatt;
+        synchronized (this) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            if (mCurrentOperation != null) aborted.add(mCurrentOperation);
+            for (ArrayDeque<GattOperation> lane : mLanes) {
+                aborted.addAll(lane);
+                lane.clear();
+            }
+            mCurrentOperation = null;
+            gatt = mBluetoothGatt;
+            mBluetoothGatt = null;
+        }
+        if (!aborted.isEmpty()) Log.v(TAG, "Aborting " + aborted.size() + " GATT operation(s)");
+        for (GattOperation operation : aborted) {
+            finish(operation, gatt, GattStatus.OPERATION_ABORTED, 0);
+        }
+    }
+
+    /**
+     * Queue an operation.  It is sent after the waiting operations of its own and higher priorities
+     *
+     * @param operation the operation
+     */
+    public void enqueue(GattOperation operation) {
+        int depth;
+        synchronized (this) {
+            operation.mEnqueuedAt_ms = SystemClock.elapsedRealtime();
+            mLanes.get(operation.getPriority().ordinal()).add(operation);
+            depth = getDepth();
+            if (depth > mMaxDepth) mMaxDepth = depth;
+        }
+        mPriorityController.onQueueDepthChanged(depth);
+        executeNext();
+    }
+
+    /**
+     * Take back an operation that has not been sent yet.  Its OnCompleteListener is not called
+     *
+     * @param operation the operation
+     * @return <b>true</b> if the operation was still waiting and has been removed
+     */
+    public boolean remove(GattOperation operation) {
+        int depth;
+        synchronized (this) {
+            if (!mLanes.get(operation.getPriority().ordinal()).remove(operation)) return false;
+            depth = getDepth();
+        }
+        mPriorityController.onQueueDepthChanged(depth);
+        return true;
+    }
+
+    /**
+     * Move an operation that has not been sent yet to another lane, eg when the user asks
+     * for a value a background poll is already waiting to read.  It keeps its original
+     * enqueue time, so it ages as if it had always been in the new lane
+     *
+     * @param operation the operation
+     * @param priority the new priority
+     * @return <b>true</b> if the operation was still waiting
+     */
+    public synchronized boolean setPriority(GattOperation operation, GattOperation.Priority priority) {
+        if (operation.getPriority() == priority) return mLanes.get(priority.ordinal()).contains(operation);
+        if (!mLanes.get(operation.getPriority().ordinal()).remove(operation)) return false;
+        operation.setPriority(priority);
+        // keep the new lane in enqueue order
+        ArrayDeque<GattOperation> lane = mLanes.get(priority.ordinal());
+        List<GattOperation> later = new ArrayList<>();
+        while (!lane.isEmpty() && lane.peekLast().mEnqueuedAt_ms > operation.mEnqueuedAt_ms) {
+            later.add(0, lane.pollLast());
+        }
+        lane.add(operation);
+        lane.addAll(later);
+        return true;
+    }
+
+    /**
+     * A BluetoothGattCallback event arrived.  If it belongs to the operation in flight,
+     * complete that operation and send the next one
+     *
+     * @param type the kind of event
+     * @param target the Characteristic or Descriptor in the event, or <b>null</b>
+     * @param status the status in the event
+     * @param length the number of bytes read, or 0
+     * @return <b>true</b> if the event completed an operation
+     */
+    public boolean onCallback(GattOperation.Type type, Object target, int status, int length) {
+        GattOperation operation;
+        BluetoothGatt gatt;
+        synchronized (this) {
+            operation = mCurrentOperation;
+            if (operation == null || !operation.matches(type, target)) return false;
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            gatt = mBluetoothGatt;
+            status = operation.onEvent(gatt, type, status);
+            if (status == GattOperation.IN_PROGRESS) {
+                // a multi-step operation sent its next step.  Give that step a full timeout
+                mHandler.postDelayed(mTimeoutRunnable, getTimeout(operation));
+                return true;
+            }
+            mCurrentOperation = null;
+        }
+        finish(operation, gatt, status, length + operation.getLength());
+        executeNext();
+        return true;
+    }
+
+    /**
+     * @return the number of operations waiting or in flight
+     */
+    public synchronized int getDepth() {
+        int depth = mCurrentOperation == null ? 0 : 1;
+        for (ArrayDeque<GattOperation> lane : mLanes) depth += lane.size();
+        return depth;
+    }
+
+    /**
+     * @param priority the lane
+     * @return the number of operations waiting in a lane
+     */
+    public synchronized int getDepth(GattOperation.Priority priority) {
+        return mLanes.get(priority.ordinal()).size();
+    }
+
+    public synchronized int getMaxDepth() { return mMaxDepth; }
+    public synchronized long getCompletedCount() { return mCompleted; }
+    public synchronized long getFailedCount() { return mFailed; }
+    public synchronized long getTimedOutCount() { return mTimedOut; }
+    public LatencyHistogram getLatency() { return mLatency; }
+    public LatencyHistogram getWaitTime() { return mWaitTime; }
+    public LatencyHistogram getWaitTime(GattOperation.Priority priority) { return mLaneWaitTime.get(priority.ordinal()); }
+    public synchronized long getAgedCount() { return mAged; }
+
+    /**
+     * @return the fraction of completed operations that failed, between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return mCompleted == 0 ? 0 : (double) mFailed / mCompleted;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a multi-line summary
+     */
+    public synchronized String getSummary() {
+        return "depth=" + getDepth() + " max=" + mMaxDepth
+                + " completed=" + mCompleted + " failed=" + mFailed + " (" + mTimedOut + " timed out)"
+                + " failure rate=" + String.format("%.1f%%", getFailureRate() * 100)
+                + " aged=" + mAged
+                + "\n  " + mLatency + "\n  " + mWaitTime
+                + "\n  " + mLaneWaitTime.get(0) + "\n  " + mLaneWaitTime.get(1) + "\n  " + mLaneWaitTime.get(2);
+    }
+
+    /**
+     * Send waiting operations until one is in flight or the queue is empty
+     */
+    private void executeNext() {
+        while (true) {
+            GattOperation operation;
+            BluetoothGatt gatt;
+            synchronized (this) {
+                if (mCurrentOperation != null || mBluetoothGatt == null) return;
+                operation = pollNext();
+                if (operation == null) return;
+                gatt = mBluetoothGatt;
+                mCurrentOperation = operation;
+                operation.mStartedAt_ms = SystemClock.elapsedRealtime();
+                if (operation.execute(gatt)) {
+                    mHandler.postDelayed(mTimeoutRunnable, getTimeout(operation));
+                    return;
+                }
+                mCurrentOperation = null;
+            }
+            Log.w(TAG, "BluetoothGatt refused " + operation);
+            finish(operation, gatt, GattStatus.OPERATION_NOT_STARTED, 0);
+        }
+    }
+
+    /**
+     * Take the next operation to send: the one that has waited longest past its lane's aging limit,
+     * otherwise the head of the highest priority lane that isn't empty
+     */
+    private GattOperation pollNext() {
+        long now_ms = SystemClock.elapsedRealtime();
+        ArrayDeque<GattOperation> next = null;
+        long oldest_ms = Long.MAX_VALUE;
+        for (int i = 0; i < mLanes.size(); i++) {
+            GattOperation head = mLanes.get(i).peek();
+            if (head == null || mAgingLimits_ms[i] <= 0) continue;
+            if (now_ms - head.mEnqueuedAt_ms >= mAgingLimits_ms[i] && head.mEnqueuedAt_ms < oldest_ms) {
+                next = mLanes.get(i);
+                oldest_ms = head.mEnqueuedAt_ms;
+            }
+        }
+        if (next != null) {
+            // only count it as aged if it jumped ahead of something
+            for (ArrayDeque<GattOperation> lane : mLanes) {
+                if (lane == next) break;
+                if (!lane.isEmpty()) {
+                    mAged++;
+                    break;
+                }
+            }
+            return next.poll();
+        }
+        for (ArrayDeque<GattOperation> lane : mLanes) {
+            if (!lane.isEmpty()) return lane.poll();
+        }
+        return null;
+    }
+
+    private long getTimeout(GattOperation operation) {
+        return operation.getTimeout() > 0 ? operation.getTimeout() : mDefaultTimeout_ms;
+    }
+
+    /**
+     * The operation in flight did not hear back in time.  Give up on it and move on
+     */
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            GattOperation operation;
+            BluetoothGatt gatt;
+            synchronized (GattOperationQueue.this) {
+                operation = mCurrentOperation;
+                if (operation == null) return;
+                mCurrentOperation = null;
+                mTimedOut++;
+                gatt = mBluetoothGatt;
+            }
+            Log.w(TAG, operation + " timed out");
+            operation.onTimeout(gatt);
+            finish(operation, gatt, GattStatus.OPERATION_TIMEOUT, 0);
+            executeNext();
+        }
+    };
+
+    /**
+     * Record an operation's metrics and tell whoever is waiting for it
+     */
+    private void finish(GattOperation operation, BluetoothGatt gatt, int status, int length) {
+        long now_ms = SystemClock.elapsedRealtime();
+        boolean started = operation.mStartedAt_ms != 0;
+        int depth;
+        BluetoothGattCallback failureCallback;
+        synchronized (this) {
+            mCompleted++;
+            if (status != BluetoothGatt.GATT_SUCCESS) mFailed++;
+            depth = getDepth();
+            failureCallback = mFailureCallback;
+        }
+        long wait_ms = (started ? operation.mStartedAt_ms : now_ms) - operation.mEnqueuedAt_ms;
+        mWaitTime.record(wait_ms);
+        mLaneWaitTime.get(operation.getPriority().ordinal()).record(wait_ms);
+        if (started && status != GattStatus.OPERATION_NOT_STARTED) {
+            long latency_ms = now_ms - operation.mStartedAt_ms;
+            mLatency.record(latency_ms);
+            mPriorityController.onOperationCompleted(latency_ms, length);
+        }
+        mPriorityController.onQueueDepthChanged(depth);
+
+        if (GattStatus.isLocalOperationFailure(status) && failureCallback != null) {
+            operation.dispatchFailure(failureCallback, gatt, status);
+        }
+        operation.onComplete(status);
+    }
+}
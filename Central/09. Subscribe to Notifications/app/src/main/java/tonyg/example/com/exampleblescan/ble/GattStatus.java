@@ -0,0 +1,121 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Status codes reported by BluetoothGattCallback.onConnectionStateChange that are not
+ * defined in BluetoothGatt, and a classification of connection failures
+ * into those that are worth retrying and those that are not.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-11
+ */
+public class GattStatus {
+    // from the Bluedroid stack (stack/include/gatt_api.h)
+    public static final int GATT_CONN_TIMEOUT = 8; // link supervision timeout: the Peripheral went out of range
+    public static final int GATT_CONN_TERMINATE_PEER_USER = 19; // the Peripheral closed the connection
+    public static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22; // this device closed the connection
+    public static final int GATT_CONN_FAIL_ESTABLISH = 62; // the connection was never established
+    public static final int GATT_ERROR = 133; // generic failure, commonly a busy or confused stack
+
+    // not reported by Android.  Used when a connect attempt runs past its deadline
+    public static final int CONNECT_DEADLINE_EXCEEDED = -1;
+    // not reported by Android.  Used when a queued GATT operation fails without a callback
+    public static final int OPERATION_TIMEOUT = -2; // no callback arrived before the operation's deadline
+    public static final int OPERATION_NOT_STARTED = -3; // BluetoothGatt refused the request
+    public static final int OPERATION_ABORTED = -4; // the connection closed while the operation was queued
+
+    /**
+     * Why a connection attempt failed
+     */
+    public enum FailureClass {
+        DEADLINE_EXCEEDED(true),
+        GATT_ERROR(true),
+        LINK_TIMEOUT(true),
+        LOCAL_TERMINATION(true),
+        ESTABLISH_FAILED(true),
+        PEER_TERMINATION(false),
+        OTHER(false);
+
+        private final boolean mTransient;
+
+        FailureClass(boolean isTransient) {
+            mTransient = isTransient;
+        }
+
+        /**
+         * @return <b>true</b> if trying again has a reasonable chance of succeeding
+         */
+        public boolean isTransient() {
+            return mTransient;
+        }
+    }
+
+    /**
+     * Classify a connection failure
+     *
+     * @param status the status from onConnectionStateChange, or CONNECT_DEADLINE_EXCEEDED
+     * @return the FailureClass
+     */
+    public static FailureClass classify(int status) {
+        switch (status) {
+            case CONNECT_DEADLINE_EXCEEDED:
+                return FailureClass.DEADLINE_EXCEEDED;
+            case GATT_ERROR:
+                return FailureClass.GATT_ERROR;
+            case GATT_CONN_TIMEOUT:
+                return FailureClass.LINK_TIMEOUT;
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                return FailureClass.LOCAL_TERMINATION;
+            case GATT_CONN_FAIL_ESTABLISH:
+                return FailureClass.ESTABLISH_FAILED;
+            case GATT_CONN_TERMINATE_PEER_USER:
+                return FailureClass.PEER_TERMINATION;
+            default:
+                return FailureClass.OTHER;
+        }
+    }
+
+    /**
+     * Did a GATT operation fail on this device, without an answer from the Peripheral?
+     *
+     * @param status the status a queued operation completed with
+     * @return <b>true</b> for OPERATION_TIMEOUT, OPERATION_NOT_STARTED and OPERATION_ABORTED
+     */
+    public static boolean isLocalOperationFailure(int status) {
+        return status == OPERATION_TIMEOUT || status == OPERATION_NOT_STARTED || status == OPERATION_ABORTED;
+    }
+
+    /**
+     * Describe a status code for logging
+     *
+     * @param status the status from a BluetoothGattCallback
+     * @return a readable name
+     */
+    public static String toString(int status) {
+        switch (status) {
+            case BluetoothGatt.GATT_SUCCESS:
+                return "GATT_SUCCESS";
+            case CONNECT_DEADLINE_EXCEEDED:
+                return "CONNECT_DEADLINE_EXCEEDED";
+            case OPERATION_TIMEOUT:
+                return "OPERATION_TIMEOUT";
+            case OPERATION_NOT_STARTED:
+                return "OPERATION_NOT_STARTED";
+            case OPERATION_ABORTED:
+                return "OPERATION_ABORTED";
+            case GATT_CONN_TIMEOUT:
+                return "GATT_CONN_TIMEOUT";
+            case GATT_CONN_TERMINATE_PEER_USER:
+                return "GATT_CONN_TERMINATE_PEER_USER";
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                return "GATT_CONN_TERMINATE_LOCAL_HOST";
+            case GATT_CONN_FAIL_ESTABLISH:
+                return "GATT_CONN_FAIL_ESTABLISH";
+            case GATT_ERROR:
+                return "GATT_ERROR";
+            default:
+                return "status " + status;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves notifications off the Binder thread that delivers onCharacteristicChanged.
+ *
+ * Characteristic.getValue() is overwritten by the next notification, so each payload is captured
+ * into a PayloadPool sized to the negotiated MTU, and the Payload queued in a fixed ring.  Once
+ * its consumer has seen it, drain() releases the Payload back to its pool.  The Binder thread is
+ * the only producer: publishing takes no locks and never allocates, and a notification
+ * that finds the ring full, or no free Payload that fits it, is dropped and counted.
+ * Consumers register per Characteristic handle (see BleGattProfileIndex) and drain the ring on
+ * their own thread.  The OnAvailableListener is called once each time the ring goes from
+ * drained to not drained, so the consumer thread can be woken without a message per notification.
+ *
+ * Received, delivered and dropped notifications are counted per handle.
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-24
+ */
+public class NotificationDispatcher {
+    public static final int DEFAULT_CAPACITY = 256; // notifications
+    public static final int MAX_PAYLOAD_LENGTH = 512; // the longest attribute value
+
+    /**
+     * Receives notifications as they are drained
+     */
+    public interface Consumer {
+        /**
+         * @param handle the Characteristic's handle
+         * @param timestamp_ns when the notification arrived, from System.nanoTime()
+         * @param payload holds the value.  Only valid until this method returns
+         * @param length the number of bytes in the value
+         */
+        void onNotification(int handle, long timestamp_ns, byte[] payload, int length);
+    }
+
+    /**
+     * Wakes the consumer thread when notifications are waiting
+     */
+    public interface OnAvailableListener {
+        /**
+         * Called on the producer thread.  Should only schedule a drain(), not do the work itself
+         */
+        void onNotificationsAvailable(NotificationDispatcher dispatcher);
+    }
+
+    /**
+     * Counters for one Characteristic.  Each counter has a single writer
+     */
+    public static class Stats {
+        private final int mHandle;
+        private volatile long mReceived = 0; // producer
+        private volatile long mOverflowed = 0; // producer: the ring was full
+        private volatile long mDelivered = 0; // consumer
+        private volatile long mUnclaimed = 0; // consumer: no consumer was registered
+
+        Stats(int handle) {
+            mHandle = handle;
+        }
+
+        public int getHandle() { return mHandle; }
+        public long getReceived() { return mReceived; }
+        public long getDelivered() { return mDelivered; }
+        public long getDropped() { return mOverflowed + mUnclaimed; }
+
+        @Override
+        public String toString() {
+            return "handle " + mHandle + ": received=" + mReceived + " delivered=" + mDelivered + " dropped=" + getDropped();
+        }
+    }
+
+    /** Ring buffer of captured payloads **/
+    private final int mMask;
+    private final PayloadPool.Payload[] mSlots;
+    private volatile PayloadPool mPayloadPool;
+    private volatile long mHead = 0; // next slot to drain, written by the consumer
+    private volatile long mTail = 0; // next slot to fill, written by the producer
+
+    /** Per-handle tables, indexed by handle and replaced whole when a handle is first seen **/
+    private volatile Consumer[] mConsumers = new Consumer[0];
+    private volatile Stats[] mStats = new Stats[0];
+
+    private final AtomicBoolean mDrainPending = new AtomicBoolean(false);
+    private volatile OnAvailableListener mOnAvailableListener;
+
+    public NotificationDispatcher() {
+        this(DEFAULT_CAPACITY, MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @param capacity the number of notifications the ring holds, rounded up to a power of two
+     * @param maxPayloadLength the size of each Payload, normally the negotiated MTU - 3.  Longer payloads are dropped
+     */
+    public NotificationDispatcher(int capacity, int maxPayloadLength) {
+        this(capacity, maxPayloadLength, false);
+    }
+
+    /**
+     * @param capacity the number of notifications the ring holds, rounded up to a power of two
+     * @param maxPayloadLength the size of each Payload, normally the negotiated MTU - 3.  Longer payloads are dropped
+     * @param trackLeaks remember where each Payload was captured, see PayloadPool.  Use it in debug builds only
+     */
+    public NotificationDispatcher(int capacity, int maxPayloadLength, boolean trackLeaks) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mSlots = new PayloadPool.Payload[size];
+        mPayloadPool = new PayloadPool(size, maxPayloadLength, trackLeaks);
+    }
+
+    /**
+     * Capture into another pool from now on, eg one sized to a newly negotiated MTU.
+     * Call from the producer thread.  Payloads still waiting are released to their old pool
+     *
+     * @param payloadPool the pool.  It should hold getCapacity() payloads, so that it runs dry no sooner than the ring
+     */
+    public void setPayloadPool(PayloadPool payloadPool) {
+        mPayloadPool = payloadPool;
+    }
+
+    /**
+     * @return the pool notifications are currently captured into
+     */
+    public PayloadPool getPayloadPool() {
+        return mPayloadPool;
+    }
+
+    public void setOnAvailableListener(OnAvailableListener listener) {
+        mOnAvailableListener = listener;
+    }
+
+    /**
+     * Deliver a Characteristic's notifications to a consumer.  Only one consumer per handle
+     *
+     * @param handle the Characteristic's handle
+     * @param consumer the consumer, or <b>null</b> to stop delivering.  Undelivered notifications are dropped
+     */
+    public synchronized void setConsumer(int handle, Consumer consumer) {
+        ensureHandle(handle);
+        Consumer[] consumers = mConsumers.clone();
+        consumers[handle] = consumer;
+        mConsumers = consumers;
+    }
+
+    /**
+     * Copy a notification into the ring.  Call from one thread only
+     *
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the notification arrived, from System.nanoTime()
+     * @param value the value, eg Characteristic.getValue()
+     * @return <b>false</b> if the notification was dropped
+     */
+    public boolean publish(int handle, long timestamp_ns, byte[] value) {
+        return publish(handle, timestamp_ns, value, 0, value == null ? 0 : value.length);
+    }
+
+    /**
+     * Copy part of a buffer into the ring as a notification.  Call from one thread only
+     *
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the notification arrived, from System.nanoTime()
+     * @param value holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes in the value
+     * @return <b>false</b> if the notification was dropped
+     */
+    public boolean publish(int handle, long timestamp_ns, byte[] value, int offset, int length) {
+        Stats[] statsTable = mStats;
+        if (handle >= statsTable.length) {
+            ensureHandle(handle); // first notification from this Characteristic
+            statsTable = mStats;
+        }
+        Stats stats = statsTable[handle];
+        stats.mReceived++;
+
+        long tail = mTail;
+        if (tail - mHead > mMask) {
+            stats.mOverflowed++;
+            return false;
+        }
+        PayloadPool.Payload payload = mPayloadPool.capture(handle, timestamp_ns, value, offset, length);
+        if (payload == null) {
+            // longer than the MTU allows
+            stats.mOverflowed++;
+            return false;
+        }
+        mSlots[(int) tail & mMask] = payload;
+        mTail = tail + 1; // publishes the slot to the consumer
+
+        OnAvailableListener listener = mOnAvailableListener;
+        if (listener != null && mDrainPending.compareAndSet(false, true)) {
+            listener.onNotificationsAvailable(this);
+        }
+        return true;
+    }
+
+    /**
+     * Hand every waiting notification to its consumer.  Call from one thread at a time
+     *
+     * @return the number of notifications drained
+     */
+    public int drain() {
+        return drain(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hand up to some number of waiting notifications to their consumers.
+     * Call from one thread at a time
+     *
+     * @param max the most notifications to drain
+     * @return the number of notifications drained
+     */
+    public int drain(int max) {
+        mDrainPending.set(false); // anything published from here on wakes the consumer again
+        long head = mHead;
+        long tail = mTail;
+        if (tail - head > max) tail = head + max;
+        Consumer[] consumers = mConsumers;
+        Stats[] statsTable = mStats;
+        for (long i = head; i < tail; i++) {
+            int slot = (int) i & mMask;
+            PayloadPool.Payload payload = mSlots[slot];
+            mSlots[slot] = null;
+            int handle = payload.getHandle();
+            Consumer consumer = handle < consumers.length ? consumers[handle] : null;
+            if (consumer == null) {
+                statsTable = mStats;
+                statsTable[handle].mUnclaimed++;
+            } else {
+                consumer.onNotification(handle, payload.getTimestamp(), payload.getData(), payload.getLength());
+                statsTable = mStats;
+                statsTable[handle].mDelivered++;
+            }
+            payload.release();
+            mHead = i + 1; // frees the slot for the producer
+        }
+        if (mTail != tail && mDrainPending.compareAndSet(false, true)) {
+            // more arrived, or max was reached.  Ask for another drain
+            OnAvailableListener listener = mOnAvailableListener;
+            if (listener != null) listener.onNotificationsAvailable(this);
+            else mDrainPending.set(false);
+        }
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return the number of notifications waiting to be drained
+     */
+    public int getPending() {
+        return (int) (mTail - mHead);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @param handle the Characteristic's handle
+     * @return the counters for a Characteristic, or <b>null</b> if nothing was seen from it
+     */
+    public Stats getStats(int handle) {
+        Stats[] statsTable = mStats;
+        return handle < statsTable.length ? statsTable[handle] : null;
+    }
+
+    /**
+     * Summarize the counters for logging
+     *
+     * @return one line per Characteristic
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder("pending=" + getPending() + "/" + getCapacity() + " " + mPayloadPool.getSummary());
+        for (Stats stats : mStats) {
+            if (stats.mReceived > 0) summary.append("\n  ").append(stats);
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Grow the per-handle tables to include a handle
+     */
+    private synchronized void ensureHandle(int handle) {
+        if (handle < 0) throw new IllegalArgumentException("Invalid handle " + handle);
+        if (handle < mStats.length) return;
+        int length = Math.max(handle + 1, mStats.length * 2);
+        Stats[] statsTable = new Stats[length];
+        System.arraycopy(mStats, 0, statsTable, 0, mStats.length);
+        for (int i = mStats.length; i < length; i++) statsTable[i] = new Stats(i);
+        Consumer[] consumers = new Consumer[length];
+        System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+        mConsumers = consumers;
+        mStats = statsTable;
+    }
+}
@@ -0,0 +1,464 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Records every notification to disk, for soak tests.
+ *
+ * record() is called from onCharacteristicChanged.  It copies the notification into a slot of a
+ * fixed staging ring and returns; it never blocks on the disk and never allocates.  A writer
+ * thread wakes every GROUP_COMMIT_INTERVAL_MS, or sooner when the ring is a quarter full, and
+ * appends everything waiting to a memory-mapped segment file in one go.  After each group it
+ * updates the committed length in the segment header, so a recording cut short by a crash is
+ * readable up to the last commit.  If the ring fills faster than the disk keeps up, further
+ * notifications are dropped and counted.
+ *
+ * A segment that fills up is closed and the next one started.  Each closed segment gets an
+ * entry in a small index file: its record count, length and first and last timestamps.
+ *
+ * Files, all little-endian:
+ *   name-00000.nrec   segments: a SEGMENT_HEADER_LENGTH header, then records
+ *   name.nidx         index: an INDEX_HEADER_LENGTH header, then one INDEX_ENTRY_LENGTH entry per closed segment
+ *
+ * Record: timestamp_ns (long), device key (long), handle (unsigned short), length (unsigned short), payload
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-29
+ */
+public class NotificationRecorder {
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024; // bytes
+    public static final int DEFAULT_CAPACITY = 4096; // notifications waiting to be written
+    public static final long GROUP_COMMIT_INTERVAL_MS = 50;
+
+    public static final String SEGMENT_EXTENSION = ".nrec";
+    public static final String INDEX_EXTENSION = ".nidx";
+    public static final int SEGMENT_MAGIC = 0x4345524E; // "NREC"
+    public static final int INDEX_MAGIC = 0x5844494E; // "NIDX"
+    public static final short VERSION = 1;
+
+    /** Segment header **/
+    public static final int SEGMENT_HEADER_LENGTH = 64;
+    public static final int SEGMENT_NUMBER_OFFSET = 8; // int
+    public static final int RECORD_COUNT_OFFSET = 12; // int, committed records
+    public static final int COMMITTED_LENGTH_OFFSET = 16; // long, end of the last committed record
+    public static final int STARTED_AT_OFFSET = 24; // long, wall clock ms when the segment was started
+    public static final int FIRST_TIMESTAMP_OFFSET = 32; // long
+    public static final int LAST_TIMESTAMP_OFFSET = 40; // long
+    public static final int CLOSED_OFFSET = 48; // int, 1 once the segment was closed cleanly
+
+    /** Record header **/
+    public static final int RECORD_HEADER_LENGTH = 20;
+    public static final int MAX_PAYLOAD_LENGTH = NotificationDispatcher.MAX_PAYLOAD_LENGTH;
+
+    /** A handle with this bit set marks a record holding a WindowAggregate of the notifications from the handle below it **/
+    public static final int AGGREGATE_HANDLE_FLAG = 0x8000;
+
+    /** Index **/
+    public static final int INDEX_HEADER_LENGTH = 8;
+    public static final int INDEX_ENTRY_LENGTH = 32; // segment, record count, length, first timestamp, last timestamp
+
+    private final File mDirectory;
+    private final String mName;
+    private final long mSegmentSize;
+    private final int mMaxPayloadLength;
+
+    /** Staging ring.  Slots are allocated up front and reused **/
+    private final int mMask;
+    private final long[] mTimestamps_ns;
+    private final long[] mDeviceKeys;
+    private final int[] mHandles;
+    private final int[] mLengths;
+    private final byte[][] mPayloads;
+    private volatile long mHead = 0; // next slot to write, advanced by the writer thread
+    private volatile long mTail = 0; // next slot to fill, advanced by producers
+    private final int mWakeThreshold;
+
+    /** Writer thread state **/
+    private volatile Thread mWriterThread;
+    private volatile boolean mStopRequested = false;
+    private volatile IOException mError;
+    private RandomAccessFile mSegmentFile;
+    private MappedByteBuffer mSegment;
+    private volatile int mSegmentNumber = -1;
+    private int mSegmentRecords;
+    private long mSegmentFirstTimestamp_ns;
+    private long mSegmentLastTimestamp_ns;
+
+    /** Metrics **/
+    private volatile long mRecorded = 0; // written to a segment
+    private volatile long mDropped = 0; // staging ring full, payload too long, or the recorder failed
+    private volatile long mCommits = 0;
+    private final LatencyHistogram mRecordsPerCommit = new LatencyHistogram("records per commit", "records");
+    private final LatencyHistogram mCommitTime = new LatencyHistogram("commit time", "us");
+
+    /**
+     * @param directory where the recording goes
+     * @param name the recording's name, used as a prefix for its files
+     */
+    public NotificationRecorder(File directory, String name) {
+        this(directory, name, DEFAULT_SEGMENT_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param directory where the recording goes
+     * @param name the recording's name, used as a prefix for its files
+     * @param segmentSize the size of each segment file, in bytes
+     * @param capacity the number of notifications that can wait to be written, rounded up to a power of two
+     */
+    public NotificationRecorder(File directory, String name, long segmentSize, int capacity) {
+        this(directory, name, segmentSize, capacity, MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @param directory where the recording goes
+     * @param name the recording's name, used as a prefix for its files
+     * @param segmentSize the size of each segment file, in bytes
+     * @param capacity the number of notifications that can wait to be written, rounded up to a power of two
+     * @param maxPayloadLength the size of each slot, eg the negotiated MTU - 3.  Longer payloads are dropped
+     */
+    public NotificationRecorder(File directory, String name, long segmentSize, int capacity, int maxPayloadLength) {
+        if (maxPayloadLength < 0 || maxPayloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Invalid payload length " + maxPayloadLength);
+        }
+        if (segmentSize < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + maxPayloadLength || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        mDirectory = directory;
+        mName = name;
+        mSegmentSize = segmentSize;
+        mMaxPayloadLength = maxPayloadLength;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mTimestamps_ns = new long[size];
+        mDeviceKeys = new long[size];
+        mHandles = new int[size];
+        mLengths = new int[size];
+        mPayloads = new byte[size][maxPayloadLength];
+        mWakeThreshold = Math.max(1, size / 4);
+    }
+
+    /**
+     * @param directory where the recording is
+     * @param name the recording's name
+     * @param segmentNumber the segment, from 0
+     * @return the segment's file
+     */
+    public static File getSegmentFile(File directory, String name, int segmentNumber) {
+        return new File(directory, String.format(Locale.US, "%s-%05d%s", name, segmentNumber, SEGMENT_EXTENSION));
+    }
+
+    /**
+     * @param directory where the recording is
+     * @param name the recording's name
+     * @return the recording's index file
+     */
+    public static File getIndexFile(File directory, String name) {
+        return new File(directory, name + INDEX_EXTENSION);
+    }
+
+    /**
+     * Turn a MAC address into the device key stored with each record
+     *
+     * @param macAddress eg "00:11:22:AA:BB:CC"
+     * @return the address as a number
+     */
+    public static long getDeviceKey(String macAddress) {
+        long key = 0;
+        for (int i = 0; i < macAddress.length(); i++) {
+            int digit = Character.digit(macAddress.charAt(i), 16);
+            if (digit >= 0) key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    /**
+     * Start the writer thread.  The first segment is created on that thread
+     */
+    public synchronized void start() {
+        if (mWriterThread != null) throw new IllegalStateException("Recorder already started");
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "NotificationRecorder " + mName);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Write everything still waiting, close the recording and stop the writer thread.
+     * Blocks until the files are closed
+     */
+    public void stop() {
+        Thread writerThread;
+        synchronized (this) {
+            writerThread = mWriterThread;
+        }
+        if (writerThread == null) return;
+        mStopRequested = true;
+        LockSupport.unpark(writerThread);
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queue a notification to be written
+     *
+     * @param deviceKey the Peripheral, see getDeviceKey()
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the notification arrived, from System.nanoTime()
+     * @param value the value, eg Characteristic.getValue()
+     * @return <b>false</b> if the notification was dropped
+     */
+    public boolean record(long deviceKey, int handle, long timestamp_ns, byte[] value) {
+        return record(deviceKey, handle, timestamp_ns, value, 0, value == null ? 0 : value.length);
+    }
+
+    /**
+     * Queue part of a buffer to be written as a notification.  Several Peripherals' callbacks
+     * may record at once; they only wait for each other, never for the writer thread
+     *
+     * @param deviceKey the Peripheral, see getDeviceKey()
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the notification arrived, from System.nanoTime()
+     * @param value holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes in the value
+     * @return <b>false</b> if the notification was dropped
+     */
+    public boolean record(long deviceKey, int handle, long timestamp_ns, byte[] value, int offset, int length) {
+        Thread writerThread;
+        synchronized (mHandles) {
+            long tail = mTail;
+            if (tail - mHead > mMask || length > mMaxPayloadLength || mError != null || mStopRequested) {
+                mDropped++;
+                return false;
+            }
+            int slot = (int) tail & mMask;
+            mTimestamps_ns[slot] = timestamp_ns;
+            mDeviceKeys[slot] = deviceKey;
+            mHandles[slot] = handle;
+            mLengths[slot] = length;
+            if (length > 0) System.arraycopy(value, offset, mPayloads[slot], 0, length);
+            mTail = tail + 1; // publishes the slot to the writer
+            if (tail + 1 - mHead != mWakeThreshold) return true;
+            writerThread = mWriterThread;
+        }
+        // filling faster than the commit interval drains.  Commit early
+        if (writerThread != null) LockSupport.unpark(writerThread);
+        return true;
+    }
+
+    /**
+     * Runs on the writer thread
+     */
+    private void writeLoop() {
+        try {
+            openSegment(0);
+            while (!mStopRequested) {
+                LockSupport.parkNanos(this, GROUP_COMMIT_INTERVAL_MS * 1000000L);
+                commit();
+            }
+            commit();
+            closeSegment();
+        } catch (IOException e) {
+            mError = e;
+            // nothing more can be written.  Count what was waiting as dropped
+            synchronized (mHandles) {
+                mDropped += mTail - mHead;
+                mHead = mTail;
+            }
+            try {
+                closeSegment();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Append everything waiting in the staging ring, then mark it committed in the segment header
+     */
+    private void commit() throws IOException {
+        long head = mHead;
+        long tail = mTail;
+        if (head == tail) return;
+        long started_ns = System.nanoTime();
+        for (long i = head; i < tail; i++) {
+            int slot = (int) i & mMask;
+            int length = mLengths[slot];
+            if (mSegment.remaining() < RECORD_HEADER_LENGTH + length) {
+                markCommitted();
+                closeSegment();
+                openSegment(mSegmentNumber + 1);
+            }
+            long timestamp_ns = mTimestamps_ns[slot];
+            mSegment.putLong(timestamp_ns);
+            mSegment.putLong(mDeviceKeys[slot]);
+            mSegment.putShort((short) mHandles[slot]);
+            mSegment.putShort((short) length);
+            mSegment.put(mPayloads[slot], 0, length);
+            if (mSegmentRecords == 0) mSegmentFirstTimestamp_ns = timestamp_ns;
+            mSegmentLastTimestamp_ns = timestamp_ns;
+            mSegmentRecords++;
+            mHead = i + 1; // frees the slot for producers
+        }
+        markCommitted();
+        mRecorded += tail - head;
+        mCommits++;
+        mRecordsPerCommit.record(tail - head);
+        mCommitTime.record((System.nanoTime() - started_ns) / 1000);
+    }
+
+    /**
+     * Make the records written so far part of the segment.  Written after the records themselves
+     */
+    private void markCommitted() {
+        mSegment.putLong(FIRST_TIMESTAMP_OFFSET, mSegmentFirstTimestamp_ns);
+        mSegment.putLong(LAST_TIMESTAMP_OFFSET, mSegmentLastTimestamp_ns);
+        mSegment.putInt(RECORD_COUNT_OFFSET, mSegmentRecords);
+        mSegment.putLong(COMMITTED_LENGTH_OFFSET, mSegment.position());
+    }
+
+    private void openSegment(int segmentNumber) throws IOException {
+        if (segmentNumber == 0) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory);
+            }
+            createIndex();
+        }
+        mSegmentNumber = segmentNumber;
+        mSegmentRecords = 0;
+        mSegmentFirstTimestamp_ns = 0;
+        mSegmentLastTimestamp_ns = 0;
+        mSegmentFile = new RandomAccessFile(getSegmentFile(mDirectory, mName, segmentNumber), "rw");
+        mSegmentFile.setLength(mSegmentSize);
+        mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        mSegment.order(ByteOrder.LITTLE_ENDIAN);
+        mSegment.putInt(SEGMENT_MAGIC);
+        mSegment.putShort(VERSION);
+        mSegment.putShort((short) SEGMENT_HEADER_LENGTH);
+        mSegment.putInt(SEGMENT_NUMBER_OFFSET, segmentNumber);
+        mSegment.putLong(STARTED_AT_OFFSET, System.currentTimeMillis());
+        mSegment.position(SEGMENT_HEADER_LENGTH);
+        markCommitted();
+    }
+
+    /**
+     * Flush the current segment, trim it to its committed length and add it to the index
+     */
+    private void closeSegment() throws IOException {
+        if (mSegmentFile == null) return;
+        try {
+            if (mSegment != null) {
+                long length = mSegment.position();
+                mSegment.putInt(CLOSED_OFFSET, 1);
+                mSegment.force();
+                mSegment = null;
+                mSegmentFile.setLength(length);
+                appendIndexEntry(length);
+            }
+        } finally {
+            mSegmentFile.close();
+            mSegmentFile = null;
+        }
+    }
+
+    private void createIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(INDEX_MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) INDEX_ENTRY_LENGTH);
+        writeIndex(header, false);
+    }
+
+    private void appendIndexEntry(long length) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(mSegmentNumber);
+        entry.putInt(mSegmentRecords);
+        entry.putLong(length);
+        entry.putLong(mSegmentFirstTimestamp_ns);
+        entry.putLong(mSegmentLastTimestamp_ns);
+        writeIndex(entry, true);
+    }
+
+    private void writeIndex(ByteBuffer buffer, boolean append) throws IOException {
+        buffer.flip();
+        FileOutputStream index = new FileOutputStream(getIndexFile(mDirectory, mName), append);
+        try {
+            while (buffer.hasRemaining()) index.getChannel().write(buffer);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * @return the number of notifications written to disk
+     */
+    public long getRecordedCount() {
+        return mRecorded;
+    }
+
+    /**
+     * @return the number of notifications not recorded
+     */
+    public long getDroppedCount() {
+        synchronized (mHandles) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * @return the number of notifications waiting to be written
+     */
+    public int getPending() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return why the recorder stopped writing, or <b>null</b> if it hasn't failed
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a one-line summary
+     */
+    public String getSummary() {
+        return mName + ": recorded=" + mRecorded + " dropped=" + getDroppedCount() + " pending=" + getPending()
+                + " segments=" + (mSegmentNumber + 1) + " commits=" + mCommits
+                + (mError == null ? "" : " failed: " + mError.getMessage())
+                + ". " + mRecordsPerCommit + ". " + mCommitTime;
+    }
+}
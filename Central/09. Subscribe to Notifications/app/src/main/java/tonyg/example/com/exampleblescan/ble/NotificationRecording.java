@@ -0,0 +1,140 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back a recording made by NotificationRecorder, one record at a time and in the order
+ * recorded.
+ *
+ * Call next() to move to each record, then read it with the getters.  The record is reused:
+ * its payload buffer is overwritten by the next call to next().  Each segment is read up to its
+ * committed length, so a recording cut short by a crash can still be read.
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-30
+ */
+public class NotificationRecording {
+    private final File mDirectory;
+    private final String mName;
+
+    private int mSegmentNumber = -1;
+    private MappedByteBuffer mSegment;
+    private long mCommittedLength;
+
+    /** The current record **/
+    private long mTimestamp_ns;
+    private long mDeviceKey;
+    private int mHandle;
+    private int mLength;
+    private final byte[] mPayload = new byte[NotificationRecorder.MAX_PAYLOAD_LENGTH];
+    private long mRecordsRead = 0;
+
+    /**
+     * @param directory where the recording is
+     * @param name the recording's name, as given to the NotificationRecorder
+     */
+    public NotificationRecording(File directory, String name) {
+        mDirectory = directory;
+        mName = name;
+    }
+
+    /**
+     * @return <b>true</b> if the recording has at least one segment
+     */
+    public boolean exists() {
+        return NotificationRecorder.getSegmentFile(mDirectory, mName, 0).isFile();
+    }
+
+    /**
+     * Move to the next record
+     *
+     * @return <b>false</b> at the end of the recording
+     * @throws IOException if a segment can't be read or is not a recording
+     */
+    public boolean next() throws IOException {
+        while (mSegment == null || mSegment.position() >= mCommittedLength) {
+            if (!openSegment(mSegmentNumber + 1)) return false;
+        }
+        if (mCommittedLength - mSegment.position() < NotificationRecorder.RECORD_HEADER_LENGTH) {
+            throw new IOException("Truncated record in segment " + mSegmentNumber);
+        }
+        mTimestamp_ns = mSegment.getLong();
+        mDeviceKey = mSegment.getLong();
+        mHandle = mSegment.getShort() & 0xFFFF;
+        mLength = mSegment.getShort() & 0xFFFF;
+        if (mLength > mPayload.length || mCommittedLength - mSegment.position() < mLength) {
+            throw new IOException("Truncated record in segment " + mSegmentNumber);
+        }
+        mSegment.get(mPayload, 0, mLength);
+        mRecordsRead++;
+        return true;
+    }
+
+    /**
+     * Start again from the first record
+     */
+    public void rewind() {
+        mSegmentNumber = -1;
+        mSegment = null;
+        mCommittedLength = 0;
+        mRecordsRead = 0;
+    }
+
+    public long getTimestamp() { return mTimestamp_ns; }
+    public long getDeviceKey() { return mDeviceKey; }
+    public int getHandle() { return mHandle; }
+    public int getLength() { return mLength; }
+
+    /**
+     * @return <b>true</b> if the record holds a WindowAggregate rather than a notification, see NotificationRecorder.AGGREGATE_HANDLE_FLAG
+     */
+    public boolean isAggregate() { return (mHandle & NotificationRecorder.AGGREGATE_HANDLE_FLAG) != 0; }
+
+    /**
+     * @return the buffer holding the current record's payload.  Only the first getLength() bytes are part of it
+     */
+    public byte[] getPayload() { return mPayload; }
+
+    /**
+     * @return the number of records read since the start
+     */
+    public long getRecordsRead() { return mRecordsRead; }
+
+    /**
+     * Map a segment and check its header
+     *
+     * @return <b>false</b> if there is no such segment
+     */
+    private boolean openSegment(int segmentNumber) throws IOException {
+        mSegment = null;
+        File file = NotificationRecorder.getSegmentFile(mDirectory, mName, segmentNumber);
+        if (!file.isFile()) return false;
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = segmentFile.length();
+            if (fileLength < NotificationRecorder.SEGMENT_HEADER_LENGTH) throw new IOException(file + " is too short");
+            MappedByteBuffer segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            if (segment.getInt(0) != NotificationRecorder.SEGMENT_MAGIC) throw new IOException(file + " is not a recording");
+            if (segment.getShort(4) != NotificationRecorder.VERSION) throw new IOException(file + " has an unknown version");
+            long committedLength = segment.getLong(NotificationRecorder.COMMITTED_LENGTH_OFFSET);
+            if (committedLength < NotificationRecorder.SEGMENT_HEADER_LENGTH || committedLength > fileLength) {
+                throw new IOException(file + " has an invalid length");
+            }
+            segment.position(segment.getShort(6));
+            mSegment = segment;
+            mCommittedLength = committedLength;
+            mSegmentNumber = segmentNumber;
+            return true;
+        } finally {
+            segmentFile.close(); // the mapping stays valid
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Plays a recorded notification session back into a NotificationDispatcher, as if the
+ * Peripheral were sending it again.  Consumers, the UI and anything downstream of the
+ * dispatcher see the same traffic they saw live.
+ *
+ * The speed sets the timing: ORIGINAL_SPEED keeps the recorded gaps between notifications,
+ * a speed of N plays N times faster, and FASTEST sends each notification as soon as the last
+ * one was published.  Each notification is published with the time it was replayed, not the
+ * time it was recorded, as onCharacteristicChanged would.  Aggregate records, written alongside
+ * the notifications with NotificationRecorder.AGGREGATE_HANDLE_FLAG, are skipped.
+ *
+ * By default the replay is lossless: if the dispatcher's ring is full it waits for the consumer
+ * to drain it instead of dropping the notification, so every run delivers the same sequence.
+ * Turn that off to see how the pipeline copes when it can't keep up.
+ *
+ * replay() runs on the calling thread until the recording ends or cancel() is called.
+ * Time comes from a Clock, so tests can replay without waiting.
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-30
+ */
+public class NotificationReplayer {
+    public static final double ORIGINAL_SPEED = 1;
+    public static final double FASTEST = Double.POSITIVE_INFINITY;
+    public static final long ALL_DEVICES = -1; // device keys are 48 bit MAC addresses, never negative
+
+    /**
+     * A source of monotonic time
+     */
+    public interface Clock {
+        /**
+         * @return the current time in nanoseconds, eg System.nanoTime()
+         */
+        long nanoTime();
+
+        /**
+         * Wait until a time
+         *
+         * @param time_ns when to return, on the nanoTime() scale
+         */
+        void sleepUntil(long time_ns);
+    }
+
+    /**
+     * System.nanoTime(), waiting by parking the thread
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long time_ns) {
+            long remaining_ns;
+            while ((remaining_ns = time_ns - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining_ns);
+            }
+        }
+    };
+
+    private final Clock mClock;
+    private double mSpeed = ORIGINAL_SPEED;
+    private long mDeviceKey = ALL_DEVICES;
+    private boolean mLossless = true;
+    private volatile boolean mCancelled = false;
+
+    /** Metrics **/
+    private volatile long mReplayed = 0;
+    private volatile long mDropped = 0;
+    private final LatencyHistogram mLateness = new LatencyHistogram("replay lateness", "us");
+
+    public NotificationReplayer() {
+        this(SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param clock where time comes from
+     */
+    public NotificationReplayer(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param speed ORIGINAL_SPEED, a multiple of it, or FASTEST
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) throw new IllegalArgumentException("Invalid speed " + speed);
+        mSpeed = speed;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Only replay one Peripheral's notifications
+     *
+     * @param deviceKey see NotificationRecorder.getDeviceKey(), or ALL_DEVICES
+     */
+    public void setDeviceKey(long deviceKey) {
+        mDeviceKey = deviceKey;
+    }
+
+    /**
+     * @param lossless <b>true</b> to wait for room in the dispatcher, <b>false</b> to drop notifications that don't fit
+     */
+    public void setLossless(boolean lossless) {
+        mLossless = lossless;
+    }
+
+    /**
+     * Stop a replay in progress.  Can be called from any thread
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Publish every record in a recording into a dispatcher, at the set speed.
+     * Returns when the recording ends or the replay is cancelled
+     *
+     * @param recording the recording, read from its current position
+     * @param dispatcher where the notifications go.  Its consumers must drain on another thread,
+     *                   or from its OnAvailableListener.  It must not be fed by a connected Peripheral at the same time
+     * @return the number of notifications replayed
+     * @throws IOException if the recording can't be read
+     */
+    public long replay(NotificationRecording recording, NotificationDispatcher dispatcher) throws IOException {
+        mCancelled = false;
+        long replayed = 0;
+        long firstRecorded_ns = 0;
+        long started_ns = 0;
+        boolean first = true;
+        while (!mCancelled && recording.next()) {
+            if (mDeviceKey != ALL_DEVICES && recording.getDeviceKey() != mDeviceKey) continue;
+            // stamped with the end of their window, and not something the Peripheral sent
+            if (recording.isAggregate()) continue;
+            if (first) {
+                firstRecorded_ns = recording.getTimestamp();
+                started_ns = mClock.nanoTime();
+                first = false;
+            }
+            if (mSpeed != FASTEST) {
+                long due_ns = started_ns + (long) ((recording.getTimestamp() - firstRecorded_ns) / mSpeed);
+                mClock.sleepUntil(due_ns);
+                mLateness.record(Math.max(0, mClock.nanoTime() - due_ns) / 1000);
+            }
+            if (mLossless) {
+                while (dispatcher.getPending() >= dispatcher.getCapacity() && !mCancelled) Thread.yield();
+            }
+            if (dispatcher.publish(recording.getHandle(), mClock.nanoTime(), recording.getPayload(), 0, recording.getLength())) {
+                replayed++;
+                mReplayed++;
+            } else {
+                mDropped++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the number of notifications replayed, over every replay
+     */
+    public long getReplayedCount() {
+        return mReplayed;
+    }
+
+    /**
+     * @return the number of notifications the dispatcher dropped
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return how long after its due time each notification was published.  Not recorded at FASTEST
+     */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a one-line summary
+     */
+    public String getSummary() {
+        return "speed=" + (mSpeed == FASTEST ? "fastest" : mSpeed + "x") + " replayed=" + mReplayed
+                + " dropped=" + mDropped + ". " + mLateness;
+    }
+}
@@ -0,0 +1,184 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Delivery statistics for one subscribed Characteristic: is the sensor really sending at the rate it promises?
+ *
+ * Each notification updates the counters in constant time without allocating: the rate and
+ * byte rate over the last complete one-second window, a log-bucketed histogram of the time
+ * between notifications, and gaps.  A gap is detected from a sequence number byte in the
+ * payload, if the Peripheral sends one: every value of that byte that was skipped is counted
+ * as a missing notification.
+ *
+ * snapshot() copies the current figures into a reusable Snapshot for display.  It first rolls the
+ * window forward to the time given, so a sensor that has gone quiet shows a rate of 0 rather
+ * than the last rate it kept up.
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-28
+ */
+public class NotificationStats {
+    public static final int NO_SEQUENCE_NUMBER = -1;
+    private static final long WINDOW_NS = 1000000000L;
+
+    /**
+     * The figures at one moment.  Reuse one instance to avoid allocating on every refresh
+     */
+    public static class Snapshot {
+        public int handle;
+        public long count; // notifications since subscribing
+        public long bytes;
+        public double rate; // notifications per second, over the last complete second
+        public double bytesPerSecond; // over the last complete second
+        public long intervalP50_us; // time between notifications
+        public long intervalP99_us;
+        public long intervalMax_us;
+        public long gaps; // times the sequence number jumped
+        public long missing; // notifications lost in those jumps
+
+        @Override
+        public String toString() {
+            return String.format("%.1f Hz  %.0f B/s  interval p50 %.1fms p99 %.1fms max %.1fms  gaps %d (%d missing)",
+                    rate, bytesPerSecond, intervalP50_us / 1000.0, intervalP99_us / 1000.0, intervalMax_us / 1000.0, gaps, missing);
+        }
+    }
+
+    private final int mHandle;
+    private int mSequenceOffset = NO_SEQUENCE_NUMBER;
+
+    private final LatencyHistogram mIntervals = new LatencyHistogram("notification interval", "us");
+    private long mCount = 0;
+    private long mBytes = 0;
+    private long mLastArrival_ns = 0;
+
+    /** The current window and the last complete one **/
+    private long mWindowStart_ns = 0;
+    private long mWindowCount = 0;
+    private long mWindowBytes = 0;
+    private double mRate = 0;
+    private double mBytesPerSecond = 0;
+
+    /** Gap detection **/
+    private int mLastSequence = -1;
+    private long mGaps = 0;
+    private long mMissing = 0;
+
+    /**
+     * @param handle the Characteristic's handle
+     */
+    public NotificationStats(int handle) {
+        mHandle = handle;
+    }
+
+    public int getHandle() {
+        return mHandle;
+    }
+
+    /**
+     * Say where the Peripheral puts a one-byte sequence number that counts up with each
+     * notification and wraps from 255 to 0
+     *
+     * @param offset the byte's position in the payload, or NO_SEQUENCE_NUMBER to turn gap detection off
+     */
+    public synchronized void setSequenceOffset(int offset) {
+        mSequenceOffset = offset;
+        mLastSequence = -1;
+    }
+
+    /**
+     * A notification arrived
+     *
+     * @param timestamp_ns when it arrived, from System.nanoTime()
+     * @param payload holds the value
+     * @param offset where the value starts in payload
+     * @param length the number of bytes in the value
+     */
+    public synchronized void record(long timestamp_ns, byte[] payload, int offset, int length) {
+        mCount++;
+        mBytes += length;
+        if (mLastArrival_ns != 0) mIntervals.record((timestamp_ns - mLastArrival_ns) / 1000);
+        mLastArrival_ns = timestamp_ns;
+
+        if (mWindowStart_ns == 0) mWindowStart_ns = timestamp_ns;
+        rollWindow(timestamp_ns);
+        mWindowCount++;
+        mWindowBytes += length;
+
+        if (mSequenceOffset >= 0 && mSequenceOffset < length) {
+            int sequence = payload[offset + mSequenceOffset] & 0xFF;
+            if (mLastSequence >= 0) {
+                int skipped = (sequence - mLastSequence - 1) & 0xFF;
+                if (skipped != 0) {
+                    mGaps++;
+                    mMissing += skipped;
+                }
+            }
+            mLastSequence = sequence;
+        }
+    }
+
+    /**
+     * Close the current window if it is at least a second old, and start the next one
+     *
+     * @param now_ns the current time, from System.nanoTime()
+     */
+    private void rollWindow(long now_ns) {
+        if (mWindowStart_ns == 0) return;
+        long elapsed_ns = now_ns - mWindowStart_ns;
+        if (elapsed_ns < WINDOW_NS) return;
+        if (elapsed_ns < 2 * WINDOW_NS) {
+            mRate = mWindowCount * 1e9 / elapsed_ns;
+            mBytesPerSecond = mWindowBytes * 1e9 / elapsed_ns;
+        } else {
+            // nothing arrived for at least the last whole second
+            mRate = 0;
+            mBytesPerSecond = 0;
+        }
+        mWindowStart_ns = now_ns;
+        mWindowCount = 0;
+        mWindowBytes = 0;
+    }
+
+    /**
+     * Start counting again, eg after resubscribing
+     */
+    public synchronized void reset() {
+        mIntervals.reset();
+        mCount = 0;
+        mBytes = 0;
+        mLastArrival_ns = 0;
+        mWindowStart_ns = 0;
+        mWindowCount = 0;
+        mWindowBytes = 0;
+        mRate = 0;
+        mBytesPerSecond = 0;
+        mLastSequence = -1;
+        mGaps = 0;
+        mMissing = 0;
+    }
+
+    /**
+     * Copy the current figures
+     *
+     * @param snapshot receives the figures
+     * @param now_ns the current time, from System.nanoTime().  The rate window is rolled forward to it
+     * @return snapshot
+     */
+    public synchronized Snapshot snapshot(Snapshot snapshot, long now_ns) {
+        rollWindow(now_ns);
+        snapshot.handle = mHandle;
+        snapshot.count = mCount;
+        snapshot.bytes = mBytes;
+        snapshot.rate = mRate;
+        snapshot.bytesPerSecond = mBytesPerSecond;
+        snapshot.intervalP50_us = mIntervals.getPercentile(50);
+        snapshot.intervalP99_us = mIntervals.getPercentile(99);
+        snapshot.intervalMax_us = mIntervals.getMax();
+        snapshot.gaps = mGaps;
+        snapshot.missing = mMissing;
+        return snapshot;
+    }
+}
@@ -0,0 +1,506 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.ble.callbacks.OnboardingCallback;
+import tonyg.example.com.exampleblescan.utilities.LatencyHistogram;
+
+/**
+ * Onboards a batch of Peripherals without any UI.
+ *
+ * Each Peripheral goes through the same stages: connect, negotiate the MTU, discover the
+ * GATT Profile, read its identity from the Device Information Service (or the Device Name
+ * when there is none), then disconnect.  Only a few Peripherals are connected at once, because
+ * Android runs out of GATT client slots long before it runs out of Peripherals.  Every stage
+ * has its own timeout and retry budget, and a Peripheral that fails a stage is still
+ * disconnected so that its slot goes to the next one.
+ *
+ * All the pipeline state is touched only on the main thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-13
+ */
+public class OnboardingPipeline {
+    private static final String TAG = OnboardingPipeline.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_STAGE_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_STAGE_RETRIES = 2;
+
+    // Device Information Service and the Characteristics that identify a Peripheral
+    public static final UUID DEVICE_INFORMATION_SERVICE_UUID = BleGattProfileIndex.fromShortUuid(0x180A);
+    public static final UUID MANUFACTURER_NAME_UUID = BleGattProfileIndex.fromShortUuid(0x2A29);
+    public static final UUID MODEL_NUMBER_UUID = BleGattProfileIndex.fromShortUuid(0x2A24);
+    public static final UUID SERIAL_NUMBER_UUID = BleGattProfileIndex.fromShortUuid(0x2A25);
+    // Generic Access Service, used when there is no Device Information Service
+    public static final UUID GENERIC_ACCESS_SERVICE_UUID = BleGattProfileIndex.fromShortUuid(0x1800);
+    public static final UUID DEVICE_NAME_UUID = BleGattProfileIndex.fromShortUuid(0x2A00);
+
+    private static final UUID[] IDENTITY_CHARACTERISTIC_UUIDS = {
+            MANUFACTURER_NAME_UUID, MODEL_NUMBER_UUID, SERIAL_NUMBER_UUID
+    };
+
+    /**
+     * The stages every Peripheral goes through, in order
+     */
+    public enum Stage {
+        CONNECT,
+        MTU,
+        DISCOVER,
+        READ_IDENTITY,
+        DISCONNECT
+    }
+
+    /** Settings **/
+    private final Context mContext;
+    private final OnboardingCallback mCallback;
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long mConnectTimeout_ms = DEFAULT_CONNECT_TIMEOUT_MS;
+    private long mStageTimeout_ms = DEFAULT_STAGE_TIMEOUT_MS;
+    private int mStageRetries = DEFAULT_STAGE_RETRIES;
+    private int mRequestedMtu = BlePeripheral.MAX_MTU;
+
+    /** State **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<BluetoothDevice> mWaitingDevices = new ArrayDeque<>();
+    private final List<Job> mActiveJobs = new ArrayList<>();
+    private final List<Result> mResults = new ArrayList<>();
+    private boolean mRunning = false;
+    private long mStartedAt_ms = 0;
+    private long mFinishedAt_ms = 0;
+
+    /** Metrics **/
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[Stage.values().length];
+    private final long[] mStageFailures = new long[Stage.values().length];
+    private int mSucceeded = 0;
+    private int mFailed = 0;
+
+    /**
+     * @param context the Context used to open GATT connections
+     * @param callback receives the result of each Peripheral and of the whole batch
+     */
+    public OnboardingPipeline(Context context, OnboardingCallback callback) {
+        mContext = context;
+        mCallback = callback;
+        for (Stage stage : Stage.values()) {
+            mStageLatency[stage.ordinal()] = new LatencyHistogram(stage.name(), "ms");
+        }
+    }
+
+    /**
+     * Set how many Peripherals may be connected at once
+     *
+     * @param maxConcurrent the number of simultaneous connections
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        mMaxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Set the timeouts and retry budget of each stage
+     *
+     * @param connectTimeout_ms deadline for each connect attempt
+     * @param stageTimeout_ms deadline for each attempt of the other stages
+     * @param retries how many times a stage is retried before the Peripheral is given up on
+     */
+    public void setStageLimits(long connectTimeout_ms, long stageTimeout_ms, int retries) {
+        mConnectTimeout_ms = connectTimeout_ms;
+        mStageTimeout_ms = stageTimeout_ms;
+        mStageRetries = retries;
+    }
+
+    /**
+     * Set the MTU requested from each Peripheral
+     *
+     * @param mtu the MTU, or BlePeripheral.DEFAULT_MTU to skip the MTU stage
+     */
+    public void setRequestedMtu(int mtu) {
+        mRequestedMtu = mtu;
+    }
+
+    /**
+     * Start onboarding a batch of Peripherals.  Must be called on the main thread
+     *
+     * @param devices the Peripherals, usually from the scan results
+     */
+    public void start(List<BluetoothDevice> devices) {
+        if (mRunning) throw new IllegalStateException("Pipeline is already running");
+        mRunning = true;
+        mWaitingDevices.clear();
+        mWaitingDevices.addAll(devices);
+        mResults.clear();
+        mSucceeded = 0;
+        mFailed = 0;
+        for (int i = 0; i < mStageFailures.length; i++) mStageFailures[i] = 0;
+        for (LatencyHistogram histogram : mStageLatency) histogram.reset();
+        mStartedAt_ms = SystemClock.elapsedRealtime();
+        mFinishedAt_ms = 0;
+        Log.v(TAG, "Onboarding " + devices.size() + " Peripherals, " + mMaxConcurrent + " at a time");
+        startWaitingJobs();
+    }
+
+    /**
+     * Stop starting new Peripherals.  Those already connected are disconnected
+     */
+    public void cancel() {
+        mWaitingDevices.clear();
+        for (Job job : new ArrayList<>(mActiveJobs)) {
+            job.fail(job.mStage, "cancelled");
+        }
+    }
+
+    public boolean isRunning() { return mRunning; }
+    public int getSucceededCount() { return mSucceeded; }
+    public int getFailedCount() { return mFailed; }
+    public List<Result> getResults() { return Collections.unmodifiableList(mResults); }
+    public LatencyHistogram getStageLatency(Stage stage) { return mStageLatency[stage.ordinal()]; }
+    public long getStageFailureCount(Stage stage) { return mStageFailures[stage.ordinal()]; }
+
+    /**
+     * Onboarding throughput so far
+     *
+     * @return successfully onboarded Peripherals per minute
+     */
+    public double getDevicesPerMinute() {
+        long end_ms = mFinishedAt_ms != 0 ? mFinishedAt_ms : SystemClock.elapsedRealtime();
+        long elapsed_ms = end_ms - mStartedAt_ms;
+        return elapsed_ms <= 0 ? 0 : mSucceeded * 60000.0 / elapsed_ms;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a multi-line summary
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(mSucceeded + " onboarded, " + mFailed + " failed, "
+                + String.format("%.1f", getDevicesPerMinute()) + " devices/min");
+        for (Stage stage : Stage.values()) {
+            summary.append("\n  ").append(mStageLatency[stage.ordinal()])
+                    .append(", ").append(mStageFailures[stage.ordinal()]).append(" failed");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Fill the free connection slots from the waiting list, or finish once nothing is left
+     */
+    private void startWaitingJobs() {
+        while (mActiveJobs.size() < mMaxConcurrent && !mWaitingDevices.isEmpty()) {
+            Job job = new Job(mWaitingDevices.poll());
+            mActiveJobs.add(job);
+            job.start();
+        }
+        if (mRunning && mActiveJobs.isEmpty() && mWaitingDevices.isEmpty()) {
+            mRunning = false;
+            mFinishedAt_ms = SystemClock.elapsedRealtime();
+            Log.v(TAG, "Onboarding complete. " + getSummary());
+            mCallback.onPipelineComplete(this);
+        }
+    }
+
+    private void onJobFinished(Job job) {
+        mActiveJobs.remove(job);
+        mResults.add(job.mResult);
+        if (job.mResult.isSuccessful()) {
+            mSucceeded++;
+            mCallback.onPeripheralOnboarded(job.mResult);
+        } else {
+            mFailed++;
+            mCallback.onPeripheralFailed(job.mResult);
+        }
+        startWaitingJobs();
+    }
+
+    /**
+     * What was learned about one Peripheral
+     */
+    public static class Result {
+        private final BluetoothDevice mBluetoothDevice;
+        private final Map<UUID, String> mIdentity = new LinkedHashMap<>();
+        private int mMtu = BlePeripheral.DEFAULT_MTU;
+        private int mCharacteristicCount = 0;
+        private Stage mFailedStage = null;
+        private String mFailureReason = null;
+        private long mDuration_ms = 0;
+
+        Result(BluetoothDevice bluetoothDevice) {
+            mBluetoothDevice = bluetoothDevice;
+        }
+
+        public BluetoothDevice getBluetoothDevice() { return mBluetoothDevice; }
+        public int getMtu() { return mMtu; }
+        public int getCharacteristicCount() { return mCharacteristicCount; }
+        public long getDuration() { return mDuration_ms; }
+        public boolean isSuccessful() { return mFailedStage == null; }
+        public Stage getFailedStage() { return mFailedStage; }
+        public String getFailureReason() { return mFailureReason; }
+
+        /**
+         * The identity strings that were read, keyed by Characteristic UUID,
+         * eg MANUFACTURER_NAME_UUID or DEVICE_NAME_UUID
+         */
+        public Map<UUID, String> getIdentity() { return Collections.unmodifiableMap(mIdentity); }
+
+        public String getSerialNumber() { return mIdentity.get(SERIAL_NUMBER_UUID); }
+
+        @Override
+        public String toString() {
+            String text = mBluetoothDevice.getAddress() + " " + mIdentity.values() + " MTU " + mMtu
+                    + ", " + mCharacteristicCount + " characteristics in " + mDuration_ms + "ms";
+            if (!isSuccessful()) text += ", failed in " + mFailedStage + ": " + mFailureReason;
+            return text;
+        }
+    }
+
+    /**
+     * Walks one Peripheral through the stages.  GATT callbacks are moved onto the main thread
+     * and ignored unless they belong to the current stage
+     */
+    private class Job extends BluetoothGattCallback {
+        private final BlePeripheral mBlePeripheral = new BlePeripheral();
+        private final Result mResult;
+        private final long mStartedAt_ms = SystemClock.elapsedRealtime();
+        private final ArrayDeque<BluetoothGattCharacteristic> mIdentityReads = new ArrayDeque<>();
+        private Stage mStage = Stage.CONNECT;
+        private long mStageStartedAt_ms;
+        private int mStageAttempt = 0;
+        private boolean mConnected = false;
+
+        Job(BluetoothDevice bluetoothDevice) {
+            mResult = new Result(bluetoothDevice);
+            // the pipeline decides what happens after a dropped connection, and when to negotiate the MTU
+            mBlePeripheral.setReconnectPolicy(null);
+            mBlePeripheral.setRequestedMtu(BlePeripheral.DEFAULT_MTU);
+            mBlePeripheral.setConnectSupervision(mConnectTimeout_ms, mStageRetries);
+        }
+
+        void start() {
+            enterStage(Stage.CONNECT);
+            try {
+                mBlePeripheral.connect(mResult.getBluetoothDevice(), this, mContext);
+            } catch (Exception e) {
+                fail(Stage.CONNECT, e.getMessage());
+            }
+        }
+
+        private void enterStage(Stage stage) {
+            mStage = stage;
+            mStageAttempt = 0;
+            mStageStartedAt_ms = SystemClock.elapsedRealtime();
+            // BlePeripheral supervises its own connect attempts
+            if (stage != Stage.CONNECT) startStageTimer();
+        }
+
+        private void startStageTimer() {
+            mHandler.removeCallbacks(mStageTimeoutRunnable);
+            mHandler.postDelayed(mStageTimeoutRunnable, mStageTimeout_ms);
+        }
+
+        private void completeStage(Stage stage) {
+            mHandler.removeCallbacks(mStageTimeoutRunnable);
+            mStageLatency[stage.ordinal()].record(SystemClock.elapsedRealtime() - mStageStartedAt_ms);
+        }
+
+        private final Runnable mStageTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mStage == Stage.DISCONNECT) {
+                    // the link is going away regardless.  Release the client slot
+                    Log.w(TAG, mResult.getBluetoothDevice().getAddress() + " did not confirm the disconnect");
+                    finish();
+                } else if (mStageAttempt < mStageRetries) {
+                    mStageAttempt++;
+                    Log.v(TAG, mResult.getBluetoothDevice().getAddress() + " " + mStage + " timed out.  Retry " + mStageAttempt + " of " + mStageRetries);
+                    startStageTimer();
+                    runStage();
+                } else {
+                    fail(mStage, "timed out after " + (mStageAttempt + 1) + " attempt(s)");
+                }
+            }
+        };
+
+        /**
+         * Send the request for the current stage.  Called again on every retry
+         */
+        private void runStage() {
+            switch (mStage) {
+                case MTU:
+                    mBlePeripheral.requestMtu(mRequestedMtu);
+                    break;
+                case DISCOVER:
+                    if (!mBlePeripheral.discoverServices()) fail(Stage.DISCOVER, "could not start discovery");
+                    break;
+                case READ_IDENTITY:
+                    BluetoothGattCharacteristic characteristic = mIdentityReads.peek();
+                    if (characteristic == null) {
+                        completeStage(Stage.READ_IDENTITY);
+                        startDisconnect();
+                    } else {
+                        mBlePeripheral.readValueFromCharacteristic(characteristic);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onConnected() {
+            mConnected = true;
+            completeStage(Stage.CONNECT);
+            if (mRequestedMtu > BlePeripheral.DEFAULT_MTU) {
+                enterStage(Stage.MTU);
+                runStage();
+            } else {
+                startDiscovery();
+            }
+        }
+
+        private void onMtuNegotiated(int mtu) {
+            mResult.mMtu = mtu;
+            completeStage(Stage.MTU);
+            startDiscovery();
+        }
+
+        private void startDiscovery() {
+            enterStage(Stage.DISCOVER);
+            runStage();
+        }
+
+        private void onDiscovered() {
+            completeStage(Stage.DISCOVER);
+            BleGattProfileIndex profile = mBlePeripheral.getProfileIndex();
+            mResult.mCharacteristicCount = profile.getCharacteristicCount();
+            for (UUID uuid : IDENTITY_CHARACTERISTIC_UUIDS) {
+                BluetoothGattCharacteristic characteristic = profile.getCharacteristic(DEVICE_INFORMATION_SERVICE_UUID, uuid);
+                if (characteristic != null) mIdentityReads.add(characteristic);
+            }
+            if (mIdentityReads.isEmpty()) {
+                BluetoothGattCharacteristic deviceName = profile.getCharacteristic(GENERIC_ACCESS_SERVICE_UUID, DEVICE_NAME_UUID);
+                if (deviceName != null) mIdentityReads.add(deviceName);
+            }
+            enterStage(Stage.READ_IDENTITY);
+            runStage();
+        }
+
+        private void onIdentityRead(BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (mIdentityReads.peek() != characteristic) return;
+            mIdentityReads.poll();
+            if (value != null) {
+                mResult.mIdentity.put(characteristic.getUuid(), new String(value, Charset.forName("UTF-8")).trim());
+            }
+            // each read gets a fresh timeout and retry budget
+            mStageAttempt = 0;
+            startStageTimer();
+            runStage();
+        }
+
+        private void startDisconnect() {
+            enterStage(Stage.DISCONNECT);
+            if (mConnected) {
+                mBlePeripheral.disconnect();
+            } else {
+                finish();
+            }
+        }
+
+        void fail(Stage stage, String reason) {
+            if (mResult.mFailedStage != null || mStage == Stage.DISCONNECT) return;
+            Log.w(TAG, mResult.getBluetoothDevice().getAddress() + " failed in " + stage + ": " + reason);
+            mHandler.removeCallbacks(mStageTimeoutRunnable);
+            mStageFailures[stage.ordinal()]++;
+            mResult.mFailedStage = stage;
+            mResult.mFailureReason = reason;
+            startDisconnect();
+        }
+
+        private void finish() {
+            mHandler.removeCallbacks(mStageTimeoutRunnable);
+            if (mStage == Stage.DISCONNECT && mResult.isSuccessful()) completeStage(Stage.DISCONNECT);
+            mBlePeripheral.close();
+            mConnected = false;
+            mResult.mDuration_ms = SystemClock.elapsedRealtime() - mStartedAt_ms;
+            onJobFinished(this);
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mActiveJobs.contains(Job.this)) return;
+                    if (newState == BluetoothProfile.STATE_CONNECTED) {
+                        if (mStage == Stage.CONNECT) onConnected();
+                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        if (mStage == Stage.DISCONNECT) {
+                            finish();
+                        } else {
+                            mConnected = false;
+                            fail(mStage, "disconnected: " + GattStatus.toString(status));
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mStage != Stage.MTU) return;
+                    // the MTU is only an optimization.  Carry on at the default if the exchange fails
+                    onMtuNegotiated(status == BluetoothGatt.GATT_SUCCESS ? mtu : BlePeripheral.DEFAULT_MTU);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mStage != Stage.DISCOVER) return;
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        onDiscovered();
+                    } else {
+                        fail(Stage.DISCOVER, GattStatus.toString(status));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            // take the value now: the Characteristic may be read again before the Runnable runs
+            final byte[] value = status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mStage != Stage.READ_IDENTITY) return;
+                    onIdentityRead(characteristic, value);
+                }
+            });
+        }
+    }
+}
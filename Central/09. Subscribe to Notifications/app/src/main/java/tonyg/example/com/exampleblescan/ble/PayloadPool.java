@@ -0,0 +1,222 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed set of reusable payload buffers, each one packet long.
+ *
+ * Characteristic.getValue() returns a buffer that the next read or notification overwrites,
+ * so anything that keeps a value has to copy it.  Capturing into a pooled Payload instead of
+ * cloning the array means a steady stream of notifications creates no garbage.  Consumers must
+ * release() each Payload when they are done with it.  A Payload that is never released is a
+ * leak: the pool runs dry and further captures fail.  With leak tracking on, for debug builds,
+ * each Payload remembers where it was acquired so findLeaks() can say who is holding it.
+ *
+ * The pool takes no locks.  Free payloads are kept in a ring of indexes with a single producer
+ * and a single consumer, like NotificationDispatcher's: capture() takes from the head and may be
+ * called from one thread only, eg the Binder thread, and release() puts back at the tail and may
+ * be called from one thread only, eg the thread draining notifications.
+ *
+ * This class has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-25
+ */
+public class PayloadPool {
+    public static final int DEFAULT_POOL_SIZE = 256; // payloads
+
+    /**
+     * One captured value.  Valid until release() is called
+     */
+    public static final class Payload {
+        private final PayloadPool mPool;
+        private final int mIndex;
+        private final byte[] mData;
+        private int mLength;
+        private int mHandle;
+        private long mTimestamp_ns;
+        private volatile boolean mInUse = false;
+        private volatile long mAcquiredAt_ns;
+        private volatile Throwable mAcquiredBy; // only when tracking leaks
+
+        private Payload(PayloadPool pool, int index, int capacity) {
+            mPool = pool;
+            mIndex = index;
+            mData = new byte[capacity];
+        }
+
+        /**
+         * @return the buffer.  Only the first getLength() bytes are part of the value
+         */
+        public byte[] getData() { return mData; }
+        public int getLength() { return mLength; }
+        public int getHandle() { return mHandle; }
+        public long getTimestamp() { return mTimestamp_ns; }
+
+        /**
+         * Give the buffer back to its pool.  The Payload must not be used afterwards
+         */
+        public void release() {
+            mPool.release(this);
+        }
+    }
+
+    private final Payload[] mPayloads;
+    private final int mPayloadCapacity;
+    private final boolean mTrackLeaks;
+
+    /** Ring of free payload indexes.  It holds free payloads mFreeHead to mFreeTail - 1 **/
+    private final int mMask;
+    private final int[] mFree;
+    private volatile long mFreeHead = 0; // next free payload to capture, advanced by capture()
+    private volatile long mFreeTail; // next slot to release into, advanced by release()
+
+    /** Metrics.  Each has a single writer, the capturing thread **/
+    private volatile long mCaptured = 0;
+    private volatile long mExhausted = 0; // captures that found no free payload
+    private volatile long mTooLong = 0; // values longer than a payload
+    private volatile int mMinFree;
+
+    /**
+     * @param size the number of payloads
+     * @param payloadCapacity the length of each payload, normally the negotiated MTU - 3
+     * @param trackLeaks remember where each payload was acquired.  This allocates, so use it in debug builds only
+     */
+    public PayloadPool(int size, int payloadCapacity, boolean trackLeaks) {
+        mPayloads = new Payload[size];
+        int ringSize = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        mMask = ringSize - 1;
+        mFree = new int[ringSize];
+        for (int i = 0; i < size; i++) {
+            mPayloads[i] = new Payload(this, i, payloadCapacity);
+            mFree[i] = i;
+        }
+        mFreeTail = size;
+        mMinFree = size;
+        mPayloadCapacity = payloadCapacity;
+        mTrackLeaks = trackLeaks;
+    }
+
+    public int getPayloadCapacity() {
+        return mPayloadCapacity;
+    }
+
+    /**
+     * Copy a value into a free payload.  Call from one thread only
+     *
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the value arrived, from System.nanoTime()
+     * @param value the value, eg Characteristic.getValue()
+     * @return the payload, or <b>null</b> if the pool is empty or the value doesn't fit
+     */
+    public Payload capture(int handle, long timestamp_ns, byte[] value) {
+        return capture(handle, timestamp_ns, value, 0, value == null ? 0 : value.length);
+    }
+
+    /**
+     * Copy part of a buffer into a free payload.  Call from one thread only
+     *
+     * @param handle the Characteristic's handle
+     * @param timestamp_ns when the value arrived, from System.nanoTime()
+     * @param value holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes in the value
+     * @return the payload, or <b>null</b> if the pool is empty or the value doesn't fit
+     */
+    public Payload capture(int handle, long timestamp_ns, byte[] value, int offset, int length) {
+        if (length > mPayloadCapacity) {
+            mTooLong++;
+            return null;
+        }
+        long head = mFreeHead;
+        int free = (int) (mFreeTail - head);
+        if (free == 0) {
+            mExhausted++;
+            return null;
+        }
+        Payload payload = mPayloads[mFree[(int) head & mMask]];
+        mFreeHead = head + 1; // hands the slot back to release()
+        if (free - 1 < mMinFree) mMinFree = free - 1;
+        mCaptured++;
+        payload.mAcquiredAt_ns = timestamp_ns;
+        payload.mAcquiredBy = mTrackLeaks ? new Throwable("Payload acquired here") : null;
+        payload.mInUse = true;
+        payload.mHandle = handle;
+        payload.mTimestamp_ns = timestamp_ns;
+        payload.mLength = length;
+        if (length > 0) System.arraycopy(value, offset, payload.mData, 0, length);
+        return payload;
+    }
+
+    /**
+     * Return a payload to the pool.  Call from one thread only
+     *
+     * @param payload a payload captured from this pool
+     * @throws IllegalStateException if the payload was already released or belongs to another pool
+     */
+    public void release(Payload payload) {
+        if (payload.mPool != this) throw new IllegalStateException("Payload belongs to another pool");
+        if (!payload.mInUse) throw new IllegalStateException("Payload released twice");
+        payload.mInUse = false;
+        payload.mAcquiredBy = null;
+        long tail = mFreeTail;
+        mFree[(int) tail & mMask] = payload.mIndex;
+        mFreeTail = tail + 1; // hands the payload back to capture()
+    }
+
+    /**
+     * @return the number of payloads not in use
+     */
+    public int getFreeCount() {
+        return (int) (mFreeTail - mFreeHead);
+    }
+
+    public int getSize() {
+        return mPayloads.length;
+    }
+
+    public long getCapturedCount() { return mCaptured; }
+    public long getExhaustedCount() { return mExhausted; }
+    public long getTooLongCount() { return mTooLong; }
+
+    /**
+     * @return the fewest free payloads there have been.  Near zero means the pool is too small or something leaks
+     */
+    public int getLowWaterMark() { return mMinFree; }
+
+    /**
+     * Find payloads that have been held for too long.  Can be called from any thread;
+     * a payload captured or released while it runs may or may not be reported
+     *
+     * @param now_ns the current time, from System.nanoTime()
+     * @param maxAge_ns how long a consumer may reasonably hold a payload
+     * @return where each leaked payload was acquired, or how old it is if leaks aren't tracked
+     */
+    public List<Throwable> findLeaks(long now_ns, long maxAge_ns) {
+        List<Throwable> leaks = new ArrayList<>();
+        for (Payload payload : mPayloads) {
+            long acquiredAt_ns = payload.mAcquiredAt_ns;
+            Throwable acquiredBy = payload.mAcquiredBy;
+            if (!payload.mInUse || now_ns - acquiredAt_ns < maxAge_ns) continue;
+            String message = "Payload held for " + (now_ns - acquiredAt_ns) / 1000000 + "ms";
+            if (acquiredBy != null) {
+                leaks.add(new Throwable(message, acquiredBy));
+            } else {
+                leaks.add(new Throwable(message));
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Summarize the metrics for logging
+     *
+     * @return a one-line summary
+     */
+    public String getSummary() {
+        return "payloads=" + mPayloads.length + "x" + mPayloadCapacity + "B free=" + getFreeCount()
+                + " low water=" + mMinFree + " captured=" + mCaptured
+                + " exhausted=" + mExhausted + " too long=" + mTooLong;
+    }
+}
@@ -0,0 +1,77 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import java.util.Random;
+
+/**
+ * Decides how a BlePeripheral reconnects after an unexpected disconnect.
+ *
+ * The first few attempts are direct connections (autoConnect=false), spaced out with
+ * exponential backoff and random jitter so that several Centrals don't retry in lockstep.
+ * Once those are used up, the Peripheral falls back to a background connection
+ * (autoConnect=true) which the Bluetooth stack keeps open until the Peripheral returns.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-08
+ */
+public class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MS = 250;
+    public static final long DEFAULT_MAX_DELAY_MS = 8000;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_JITTER = 0.5;
+    public static final int DEFAULT_MAX_DIRECT_ATTEMPTS = 5;
+
+    private final long mInitialDelay_ms;
+    private final long mMaxDelay_ms;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxDirectAttempts;
+    private final Random mRandom = new Random();
+
+    /**
+     * Create a ReconnectPolicy with the default settings
+     */
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MULTIPLIER, DEFAULT_JITTER, DEFAULT_MAX_DIRECT_ATTEMPTS);
+    }
+
+    /**
+     * Create a ReconnectPolicy
+     *
+     * @param initialDelay_ms delay before the first direct reconnect
+     * @param maxDelay_ms upper limit on the delay between direct reconnects
+     * @param multiplier how much the delay grows after each failed attempt
+     * @param jitter fraction of each delay that is randomized, between 0 and 1
+     * @param maxDirectAttempts how many direct reconnects to try before falling back to autoConnect
+     */
+    public ReconnectPolicy(long initialDelay_ms, long maxDelay_ms, double multiplier, double jitter, int maxDirectAttempts) {
+        if (jitter < 0 || jitter > 1) throw new IllegalArgumentException("jitter must be between 0 and 1");
+        mInitialDelay_ms = initialDelay_ms;
+        mMaxDelay_ms = maxDelay_ms;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxDirectAttempts = maxDirectAttempts;
+    }
+
+    /**
+     * Should this attempt be a direct connection, or is it time to fall back to autoConnect?
+     *
+     * @param attempt the number of reconnect attempts already made
+     * @return <b>true</b> if the attempt should use autoConnect=false
+     */
+    public boolean isDirectAttempt(int attempt) {
+        return attempt < mMaxDirectAttempts;
+    }
+
+    /**
+     * How long to wait before a reconnect attempt
+     *
+     * @param attempt the number of reconnect attempts already made
+     * @return the delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        double backoff = mInitialDelay_ms * Math.pow(mMultiplier, attempt);
+        long ceiling = (long) Math.min(backoff, mMaxDelay_ms);
+        long fixed = (long) (ceiling * (1 - mJitter));
+        return fixed + (long) (mRandom.nextDouble() * (ceiling - fixed));
+    }
+}
@@ -0,0 +1,23 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * BlePollCallback receives the values read by a CharacteristicPoller.
+ * A Characteristic is polled for as long as at least one BlePollCallback is listening to it
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-20
+ */
+public abstract class BlePollCallback {
+
+    /**
+     * A poll completed.  On success, Characteristic.getValue() holds the value read,
+     * but only until this method returns
+     *
+     * @param characteristic the Characteristic that was polled
+     * @param status BluetoothGatt.GATT_SUCCESS, a status from the Peripheral, or one of GattStatus.OPERATION_*
+     */
+    public abstract void onCharacteristicPolled(BluetoothGattCharacteristic characteristic, int status);
+
+}
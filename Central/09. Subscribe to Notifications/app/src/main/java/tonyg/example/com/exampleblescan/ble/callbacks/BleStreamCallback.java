@@ -0,0 +1,35 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import tonyg.example.com.exampleblescan.utilities.ThroughputMeter;
+
+/**
+ * BleStreamCallback reports the progress of a BleStreamWriter
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-15
+ */
+public abstract class BleStreamCallback {
+
+    /**
+     * A chunk was handed to the Bluetooth stack
+     *
+     * @param bytesSent number of bytes sent so far
+     */
+    public abstract void onProgress(long bytesSent);
+
+    /**
+     * Every byte of the stream was sent
+     *
+     * @param throughput the sustained data rate of the stream
+     */
+    public abstract void onStreamComplete(ThroughputMeter throughput);
+
+    /**
+     * The stream was abandoned
+     *
+     * @param bytesSent number of bytes sent before the stream failed
+     * @param reason why the stream failed
+     */
+    public abstract void onStreamFailed(long bytesSent, String reason);
+
+}
@@ -0,0 +1,25 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Map;
+
+/**
+ * BleSubscriptionCallback reports the result of subscribing to,
+ * or unsubscribing from, several Characteristics at once
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-18
+ */
+public abstract class BleSubscriptionCallback {
+
+    /**
+     * Every Client Characteristic Configuration Descriptor write has completed
+     *
+     * @param results the status of each Characteristic: BluetoothGatt.GATT_SUCCESS, a status
+     *                from the Peripheral, or one of GattStatus.OPERATION_*
+     * @param elapsed_ms time from the request until the last subscription was active
+     */
+    public abstract void onSubscriptionsComplete(Map<BluetoothGattCharacteristic, Integer> results, long elapsed_ms);
+
+}
@@ -0,0 +1,35 @@
+package tonyg.example.com.exampleblescan.ble.callbacks;
+
+import tonyg.example.com.exampleblescan.ble.OnboardingPipeline;
+
+/**
+ * OnboardingCallback reports the progress of an OnboardingPipeline.
+ * All methods are called on the main thread
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-13
+ */
+public abstract class OnboardingCallback {
+
+    /**
+     * A Peripheral made it through every stage
+     *
+     * @param result what was learned about the Peripheral
+     */
+    public abstract void onPeripheralOnboarded(OnboardingPipeline.Result result);
+
+    /**
+     * A Peripheral failed a stage and was disconnected
+     *
+     * @param result the failed stage, the reason, and whatever was learned before it failed
+     */
+    public abstract void onPeripheralFailed(OnboardingPipeline.Result result);
+
+    /**
+     * Every Peripheral has been onboarded or given up on
+     *
+     * @param pipeline the pipeline, for its metrics
+     */
+    public abstract void onPipelineComplete(OnboardingPipeline pipeline);
+
+}
@@ -0,0 +1,27 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+/**
+ * Decodes the raw value of one kind of Characteristic into a reusable record
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public abstract class CharacteristicDecoder<T extends DecodedValue> {
+
+    /**
+     * @return a new, empty record for decode() to fill.  Called once per consumer, not per value
+     */
+    public abstract T newRecord();
+
+    /**
+     * Decode a value into a record.  Must not allocate
+     *
+     * @param value holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes in the value
+     * @param record receives the fields
+     * @return <b>false</b> if the value is malformed.  The record is then undefined
+     */
+    public abstract boolean decode(byte[] value, int offset, int length, T record);
+
+}
@@ -0,0 +1,50 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Finds the decoder for a Characteristic by its UUID.
+ *
+ * The shared registry from getDefault() knows the Bluetooth SIG formats below.  Register a
+ * decoder for each custom Characteristic an app understands.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public class CharacteristicDecoderRegistry {
+    private static CharacteristicDecoderRegistry sDefault;
+
+    private final Map<UUID, CharacteristicDecoder<?>> mDecoders = new HashMap<>();
+
+    /**
+     * @return the shared registry, with the built in decoders
+     */
+    public static synchronized CharacteristicDecoderRegistry getDefault() {
+        if (sDefault == null) {
+            sDefault = new CharacteristicDecoderRegistry();
+            sDefault.register(HeartRateMeasurement.CHARACTERISTIC_UUID, HeartRateMeasurement.DECODER);
+            sDefault.register(DigitalValue.CHARACTERISTIC_UUID, DigitalValue.DECODER);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Decode a Characteristic's values with a decoder, replacing any decoder already registered for it
+     *
+     * @param characteristicUuid the Characteristic's UUID
+     * @param decoder the decoder
+     */
+    public synchronized void register(UUID characteristicUuid, CharacteristicDecoder<?> decoder) {
+        mDecoders.put(characteristicUuid, decoder);
+    }
+
+    /**
+     * @param characteristicUuid the Characteristic's UUID
+     * @return the decoder for the Characteristic, or <b>null</b> if there is none
+     */
+    public synchronized CharacteristicDecoder<?> getDecoder(UUID characteristicUuid) {
+        return mDecoders.get(characteristicUuid);
+    }
+}
@@ -0,0 +1,156 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import tonyg.example.com.exampleblescan.utilities.DataConverter;
+
+/**
+ * A Characteristic value that is only converted when someone asks for it.
+ *
+ * set() just copies the raw bytes.  Text, hex, integer, float and the decoded record are
+ * each produced on the first call to their getter, so a value nobody looks at costs one copy.
+ * The decoded record comes from the registry's decoder for the Characteristic and is reused
+ * for every value of that Characteristic.
+ *
+ * Reuse one CharacteristicValue per thread; set() replaces the previous value.
+ *
+ * This package has no Android dependencies, so it can be driven from a plain JVM.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public class CharacteristicValue {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final CharacteristicDecoderRegistry mRegistry;
+    private UUID mUuid;
+    private byte[] mValue = new byte[20];
+    private int mLength;
+
+    /** Decoding **/
+    private CharacteristicDecoder<DecodedValue> mDecoder;
+    private UUID mDecoderUuid;
+    private DecodedValue mRecord;
+    private boolean mDecodeAttempted;
+    private boolean mDecoded;
+
+    public CharacteristicValue() {
+        this(CharacteristicDecoderRegistry.getDefault());
+    }
+
+    /**
+     * @param registry where decoders are found
+     */
+    public CharacteristicValue(CharacteristicDecoderRegistry registry) {
+        mRegistry = registry;
+    }
+
+    /**
+     * Hold a new value
+     *
+     * @param characteristicUuid the Characteristic the value came from
+     * @param value the value, eg Characteristic.getValue()
+     */
+    public void set(UUID characteristicUuid, byte[] value) {
+        set(characteristicUuid, value, 0, value == null ? 0 : value.length);
+    }
+
+    /**
+     * Hold a new value, from part of a buffer
+     *
+     * @param characteristicUuid the Characteristic the value came from
+     * @param value holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes in the value
+     */
+    public void set(UUID characteristicUuid, byte[] value, int offset, int length) {
+        if (length > mValue.length) mValue = new byte[length];
+        if (length > 0) System.arraycopy(value, offset, mValue, 0, length);
+        mLength = length;
+        mUuid = characteristicUuid;
+        mDecodeAttempted = false;
+        mDecoded = false;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the value as ASCII text, as the Peripherals in these examples send it
+     */
+    public String getText() {
+        return new String(mValue, 0, mLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the value as space-separated hexadecimal bytes
+     */
+    public String getHex() {
+        char[] hexChars = new char[mLength * 3];
+        for (int i = 0; i < mLength; i++) {
+            int v = mValue[i] & 0xFF;
+            hexChars[i * 3] = HEX_DIGITS[v >>> 4];
+            hexChars[i * 3 + 1] = HEX_DIGITS[v & 0x0F];
+            hexChars[i * 3 + 2] = ' ';
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * @return up to the first eight bytes as an unsigned little-endian integer
+     */
+    public long getLong() {
+        return DataConverter.bytesToLong(mValue, 0, Math.min(mLength, 8));
+    }
+
+    /**
+     * @return the first four bytes as a big-endian float, or NaN if the value is shorter
+     */
+    public float getFloat() {
+        if (mLength < 4) return Float.NaN;
+        return Float.intBitsToFloat((mValue[0] & 0xFF) << 24 | (mValue[1] & 0xFF) << 16 | (mValue[2] & 0xFF) << 8 | (mValue[3] & 0xFF));
+    }
+
+    /**
+     * Decode the value, the first time it is asked for
+     *
+     * @return the decoded record, or <b>null</b> if there is no decoder for the Characteristic or the value is malformed.
+     *         The record is overwritten by the next value decoded
+     */
+    @SuppressWarnings("unchecked")
+    public DecodedValue getDecoded() {
+        if (!mDecodeAttempted) {
+            mDecodeAttempted = true;
+            if (mUuid == null ? mDecoderUuid != null : !mUuid.equals(mDecoderUuid)) {
+                mDecoder = mUuid == null ? null : (CharacteristicDecoder<DecodedValue>) mRegistry.getDecoder(mUuid);
+                mRecord = mDecoder == null ? null : mDecoder.newRecord();
+                mDecoderUuid = mUuid;
+            }
+            mDecoded = mDecoder != null && mDecoder.decode(mValue, 0, mLength, mRecord);
+        }
+        return mDecoded ? mRecord : null;
+    }
+
+    /**
+     * @return the decoded primary value if there is a decoder, otherwise getLong()
+     */
+    public double getNumber() {
+        DecodedValue decoded = getDecoded();
+        return decoded != null ? decoded.getPrimaryValue() : getLong();
+    }
+
+    /**
+     * @return the decoded record as text if there is a decoder, otherwise the value as text
+     */
+    @Override
+    public String toString() {
+        DecodedValue decoded = getDecoded();
+        return decoded != null ? decoded.toString() : getText();
+    }
+}
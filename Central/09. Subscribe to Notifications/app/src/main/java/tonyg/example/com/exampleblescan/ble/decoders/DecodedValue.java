@@ -0,0 +1,17 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+/**
+ * A Characteristic value decoded into primitive fields.  Records are reused: a decoder
+ * overwrites the same record with each new value
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public abstract class DecodedValue {
+
+    /**
+     * @return the one number that best sums up the value, eg beats per minute, for charts and aggregation
+     */
+    public abstract double getPrimaryValue();
+
+}
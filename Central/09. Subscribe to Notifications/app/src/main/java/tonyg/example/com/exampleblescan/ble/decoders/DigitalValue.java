@@ -0,0 +1,64 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import java.util.UUID;
+
+/**
+ * The Digital Characteristic (0x2A56) of the Bluetooth SIG Automation IO Service.
+ *
+ * Value: an array of two-bit states, four per byte, starting from the least significant bits.
+ * Without the Number of Digitals descriptor every state in the value is decoded.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public class DigitalValue extends DecodedValue {
+    public static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002a56-0000-1000-8000-00805f9b34fb");
+    public static final int MAX_DIGITALS = 512 * 4; // the longest attribute value
+
+    /** States **/
+    public static final int INACTIVE = 0;
+    public static final int ACTIVE = 1;
+    public static final int TRI_STATE = 2;
+    public static final int UNKNOWN = 3; // output-state
+
+    public final byte[] states = new byte[MAX_DIGITALS];
+    public int count;
+    public int activeCount;
+
+    /**
+     * @return the number of active digitals
+     */
+    @Override
+    public double getPrimaryValue() {
+        return activeCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            text.append("01Z?".charAt(states[i]));
+        }
+        return text.toString();
+    }
+
+    public static final CharacteristicDecoder<DigitalValue> DECODER = new CharacteristicDecoder<DigitalValue>() {
+        @Override
+        public DigitalValue newRecord() {
+            return new DigitalValue();
+        }
+
+        @Override
+        public boolean decode(byte[] value, int offset, int length, DigitalValue record) {
+            if (length * 4 > MAX_DIGITALS) return false;
+            record.count = length * 4;
+            record.activeCount = 0;
+            for (int i = 0; i < record.count; i++) {
+                int state = (value[offset + i / 4] >> (2 * (i % 4))) & 0x03;
+                record.states[i] = (byte) state;
+                if (state == ACTIVE) record.activeCount++;
+            }
+            return true;
+        }
+    };
+}
@@ -0,0 +1,88 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import java.util.UUID;
+
+/**
+ * The Heart Rate Measurement Characteristic (0x2A37) of the Bluetooth SIG Heart Rate Service.
+ *
+ * Value: a flags byte, the heart rate as a uint8 or uint16, then optionally the energy expended
+ * as a uint16 in kJ and any number of RR-intervals as uint16s in 1/1024 s.  All little-endian.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-04-01
+ */
+public class HeartRateMeasurement extends DecodedValue {
+    public static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    public static final int MAX_RR_INTERVALS = (512 - 2) / 2; // the most that fit in the longest attribute value
+
+    /** Flags **/
+    private static final int FLAG_HEART_RATE_UINT16 = 0x01;
+    private static final int FLAG_CONTACT_DETECTED = 0x02;
+    private static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    private static final int FLAG_ENERGY_EXPENDED = 0x08;
+    private static final int FLAG_RR_INTERVALS = 0x10;
+
+    public int heartRate; // beats per minute
+    public boolean contactSupported;
+    public boolean contactDetected;
+    public int energyExpended = -1; // kJ, or -1 if not sent
+    public final int[] rrIntervals = new int[MAX_RR_INTERVALS]; // 1/1024 s
+    public int rrIntervalCount;
+
+    @Override
+    public double getPrimaryValue() {
+        return heartRate;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder().append(heartRate).append(" bpm");
+        if (contactSupported) text.append(contactDetected ? ", contact" : ", no contact");
+        if (energyExpended >= 0) text.append(", ").append(energyExpended).append(" kJ");
+        for (int i = 0; i < rrIntervalCount; i++) {
+            text.append(i == 0 ? ", RR " : " ").append(rrIntervals[i] * 1000 / 1024).append("ms");
+        }
+        return text.toString();
+    }
+
+    public static final CharacteristicDecoder<HeartRateMeasurement> DECODER = new CharacteristicDecoder<HeartRateMeasurement>() {
+        @Override
+        public HeartRateMeasurement newRecord() {
+            return new HeartRateMeasurement();
+        }
+
+        @Override
+        public boolean decode(byte[] value, int offset, int length, HeartRateMeasurement record) {
+            if (length < 2) return false;
+            int end = offset + length;
+            int flags = value[offset++] & 0xFF;
+            if ((flags & FLAG_HEART_RATE_UINT16) != 0) {
+                if (end - offset < 2) return false;
+                record.heartRate = uint16(value, offset);
+                offset += 2;
+            } else {
+                record.heartRate = value[offset++] & 0xFF;
+            }
+            record.contactSupported = (flags & FLAG_CONTACT_SUPPORTED) != 0;
+            record.contactDetected = record.contactSupported && (flags & FLAG_CONTACT_DETECTED) != 0;
+            record.energyExpended = -1;
+            if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+                if (end - offset < 2) return false;
+                record.energyExpended = uint16(value, offset);
+                offset += 2;
+            }
+            record.rrIntervalCount = 0;
+            if ((flags & FLAG_RR_INTERVALS) != 0) {
+                while (end - offset >= 2 && record.rrIntervalCount < MAX_RR_INTERVALS) {
+                    record.rrIntervals[record.rrIntervalCount++] = uint16(value, offset);
+                    offset += 2;
+                }
+            }
+            return true;
+        }
+    };
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xFF) | (value[offset + 1] & 0xFF) << 8;
+    }
+}
@@ -70,4 +70,22 @@ public class DataConverter {
 
         return val;
     }
+
+    /**
+     * convert part of a buffer to an unsigned integer in Little Endian, without copying it
+     *
+     * @param bytes holds the value
+     * @param offset where the value starts
+     * @param length the number of bytes, at most 8
+     * @return long integer representation of the bytes
+     */
+    public static long bytesToLong(byte[] bytes, int offset, int length) {
+        long val = 0;
+
+        for (int i = 0; i < length; i++) {
+            val |= (long) (bytes[offset + i] & 0xff) << (8*i);
+        }
+
+        return val;
+    }
 }
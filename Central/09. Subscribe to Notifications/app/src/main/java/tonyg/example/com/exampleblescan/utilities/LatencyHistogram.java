@@ -0,0 +1,119 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+/**
+ * A log-bucketed histogram for latencies and other positive measurements.
+ *
+ * Each power of two is split into 8 sub-buckets, so percentiles are accurate to
+ * within 12.5% of the true value.  Recording a value does not allocate,
+ * which makes it safe to call from Bluetooth callbacks.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-08
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final String mName;
+    private final String mUnit;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    /**
+     * Create a new histogram
+     *
+     * @param name the name used when logging the histogram
+     * @param unit the unit of the recorded values, eg "ms"
+     */
+    public LatencyHistogram(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    /**
+     * Record a single value.  Negative values are recorded as 0
+     *
+     * @param value the measurement
+     */
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        mCounts[bucketIndex(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    /**
+     * Get the value below which some percentage of the recorded values fall
+     *
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding that percentile, or 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+        long target = (long) Math.ceil((percentile / 100.0) * mTotalCount);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized long getCount() { return mTotalCount; }
+    public synchronized long getMin() { return mTotalCount == 0 ? 0 : mMin; }
+    public synchronized long getMax() { return mMax; }
+    public synchronized double getMean() { return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount; }
+    public String getName() { return mName; }
+
+    /**
+     * Forget all recorded values
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mCounts[i] = 0;
+        mTotalCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Summarize the histogram for logging
+     *
+     * @return a one-line summary
+     */
+    @Override
+    public synchronized String toString() {
+        return mName + ": n=" + mTotalCount
+                + " min=" + getMin() + mUnit
+                + " p50=" + getPercentile(50) + mUnit
+                + " p99=" + getPercentile(99) + mUnit
+                + " max=" + mMax + mUnit;
+    }
+
+    /**
+     * Values below SUB_BUCKET_COUNT get a bucket each.  Larger values are bucketed by
+     * their highest set bit and the SUB_BUCKET_BITS bits below it.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> exponent) & (SUB_BUCKET_COUNT - 1);
+        return ((exponent + 1) << SUB_BUCKET_BITS) | mantissa;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int exponent = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = (index & (SUB_BUCKET_COUNT - 1)) | SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,177 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+/**
+ * Keeps a WindowAggregate over the samples of the last window_ns, eg a rolling five-second
+ * mean, updated as each sample arrives.
+ *
+ * Samples are held in a fixed ring.  Each sample is added once and evicted once, so the cost
+ * per sample is constant, amortized, and nothing is allocated:
+ *   count, sum, mean and variance are updated incrementally, using Welford's method in both directions
+ *   minimum and maximum come from monotonic deques of the ring's sequence numbers
+ * If samples arrive faster than the ring holds, the oldest are evicted early and counted.
+ *
+ * With a listener set, the aggregate is handed over once per emit interval, so a 200Hz stream
+ * can update the UI a few times a second.
+ *
+ * Not thread safe: add samples from one thread, eg the one draining notifications.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-31
+ */
+public class SlidingWindowAggregator {
+    private final long mWindow_ns;
+
+    /** Samples, by sequence number.  The ring holds sequence numbers mHead to mTail - 1 **/
+    private final int mMask;
+    private final long[] mTimestamps_ns;
+    private final double[] mValues;
+    private long mHead = 0;
+    private long mTail = 0;
+
+    /** Monotonic deques of sequence numbers: values decrease from the front of mMaxDeque, increase in mMinDeque **/
+    private final long[] mMaxDeque;
+    private long mMaxHead = 0, mMaxTail = 0;
+    private final long[] mMinDeque;
+    private long mMinHead = 0, mMinTail = 0;
+
+    /** Running totals **/
+    private double mSum = 0;
+    private double mMean = 0;
+    private double mM2 = 0;
+
+    private WindowAggregate.Listener mListener;
+    private long mEmitInterval_ns;
+    private long mNextEmit_ns = Long.MIN_VALUE;
+    private final WindowAggregate mAggregate = new WindowAggregate();
+
+    /** Metrics **/
+    private long mEvictedEarly = 0; // the ring was full
+
+    /**
+     * @param window_ns how far back the window reaches
+     * @param capacity the most samples the window can hold, rounded up to a power of two.  Eg 200Hz over 5s is 1000
+     */
+    public SlidingWindowAggregator(long window_ns, int capacity) {
+        if (window_ns <= 0) throw new IllegalArgumentException("Invalid window " + window_ns);
+        mWindow_ns = window_ns;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mTimestamps_ns = new long[size];
+        mValues = new double[size];
+        mMaxDeque = new long[size];
+        mMinDeque = new long[size];
+    }
+
+    /**
+     * Hand the aggregate to a listener at a reduced rate
+     *
+     * @param emitInterval_ns how often to hand it over
+     * @param listener receives the aggregate, or <b>null</b> to stop
+     */
+    public void setListener(long emitInterval_ns, WindowAggregate.Listener listener) {
+        mEmitInterval_ns = emitInterval_ns;
+        mListener = listener;
+        mNextEmit_ns = Long.MIN_VALUE;
+    }
+
+    /**
+     * Add a sample, evicting those that have left the window
+     *
+     * @param timestamp_ns when the sample was taken, eg the notification's timestamp
+     * @param value the sample
+     */
+    public void add(long timestamp_ns, double value) {
+        evictBefore(timestamp_ns - mWindow_ns);
+        if (mTail - mHead > mMask) {
+            evictOldest();
+            mEvictedEarly++;
+        }
+
+        long sequence = mTail++;
+        int slot = (int) sequence & mMask;
+        mTimestamps_ns[slot] = timestamp_ns;
+        mValues[slot] = value;
+
+        while (mMaxTail > mMaxHead && mValues[(int) mMaxDeque[(int) (mMaxTail - 1) & mMask] & mMask] <= value) mMaxTail--;
+        mMaxDeque[(int) mMaxTail++ & mMask] = sequence;
+        while (mMinTail > mMinHead && mValues[(int) mMinDeque[(int) (mMinTail - 1) & mMask] & mMask] >= value) mMinTail--;
+        mMinDeque[(int) mMinTail++ & mMask] = sequence;
+
+        mSum += value;
+        long count = mTail - mHead;
+        double delta = value - mMean;
+        mMean += delta / count;
+        mM2 += delta * (value - mMean);
+
+        if (mListener != null && timestamp_ns >= mNextEmit_ns) {
+            mNextEmit_ns = timestamp_ns + mEmitInterval_ns;
+            mListener.onWindow(getAggregate(mAggregate, timestamp_ns));
+        }
+    }
+
+    /**
+     * Copy the aggregate of the samples in the window ending at a time
+     *
+     * @param aggregate receives the figures
+     * @param now_ns the end of the window.  Samples older than now_ns - window_ns are evicted first
+     * @return aggregate
+     */
+    public WindowAggregate getAggregate(WindowAggregate aggregate, long now_ns) {
+        evictBefore(now_ns - mWindow_ns);
+        long count = mTail - mHead;
+        aggregate.windowStart_ns = now_ns - mWindow_ns;
+        aggregate.windowEnd_ns = now_ns;
+        aggregate.count = count;
+        aggregate.sum = mSum;
+        aggregate.mean = count > 0 ? mMean : 0;
+        aggregate.variance = count > 1 ? Math.max(0, mM2 / (count - 1)) : 0;
+        aggregate.min = count > 0 ? mValues[(int) mMinDeque[(int) mMinHead & mMask] & mMask] : 0;
+        aggregate.max = count > 0 ? mValues[(int) mMaxDeque[(int) mMaxHead & mMask] & mMask] : 0;
+        aggregate.last = count > 0 ? mValues[(int) (mTail - 1) & mMask] : 0;
+        return aggregate;
+    }
+
+    /**
+     * Remove every sample
+     */
+    public void reset() {
+        mHead = mTail;
+        mMaxHead = mMaxTail;
+        mMinHead = mMinTail;
+        mSum = 0;
+        mMean = 0;
+        mM2 = 0;
+        mNextEmit_ns = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of samples evicted before they left the window, because the ring was full
+     */
+    public long getEvictedEarlyCount() {
+        return mEvictedEarly;
+    }
+
+    private void evictBefore(long oldest_ns) {
+        while (mTail > mHead && mTimestamps_ns[(int) mHead & mMask] < oldest_ns) evictOldest();
+    }
+
+    private void evictOldest() {
+        long sequence = mHead++;
+        if (mMaxTail > mMaxHead && mMaxDeque[(int) mMaxHead & mMask] == sequence) mMaxHead++;
+        if (mMinTail > mMinHead && mMinDeque[(int) mMinHead & mMask] == sequence) mMinHead++;
+
+        long count = mTail - mHead;
+        if (count == 0) {
+            // start afresh rather than carry rounding error forward
+            mSum = 0;
+            mMean = 0;
+            mM2 = 0;
+            return;
+        }
+        double value = mValues[(int) sequence & mMask];
+        mSum -= value;
+        double delta = value - mMean;
+        mMean -= delta / count;
+        mM2 -= delta * (value - mMean);
+    }
+}
@@ -0,0 +1,92 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+/**
+ * Reduces a stream of samples to one WindowAggregate per fixed, back-to-back window, eg one
+ * per second from a 200Hz sensor.
+ *
+ * Windows are aligned to multiples of the window length.  When a sample lands past the end of
+ * the current window, the window is handed to the listener and a new one started.  Windows
+ * without samples are skipped.  The mean and variance are kept with Welford's method, so each
+ * sample costs constant time and no allocation.
+ *
+ * Not thread safe: add samples from one thread, eg the one draining notifications.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-31
+ */
+public class TumblingWindowAggregator {
+    private final long mWindow_ns;
+    private final WindowAggregate.Listener mListener;
+    private final WindowAggregate mAggregate = new WindowAggregate();
+    private double mM2 = 0; // sum of squared differences from the mean
+
+    /**
+     * @param window_ns the length of each window
+     * @param listener receives each finished window
+     */
+    public TumblingWindowAggregator(long window_ns, WindowAggregate.Listener listener) {
+        if (window_ns <= 0) throw new IllegalArgumentException("Invalid window " + window_ns);
+        mWindow_ns = window_ns;
+        mListener = listener;
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param timestamp_ns when the sample was taken, eg the notification's timestamp
+     * @param value the sample
+     */
+    public void add(long timestamp_ns, double value) {
+        if (mAggregate.count > 0 && timestamp_ns >= mAggregate.windowEnd_ns) flush();
+        if (mAggregate.count == 0) {
+            mAggregate.windowStart_ns = timestamp_ns - ((timestamp_ns % mWindow_ns) + mWindow_ns) % mWindow_ns;
+            mAggregate.windowEnd_ns = mAggregate.windowStart_ns + mWindow_ns;
+            mAggregate.min = value;
+            mAggregate.max = value;
+        } else {
+            if (value < mAggregate.min) mAggregate.min = value;
+            if (value > mAggregate.max) mAggregate.max = value;
+        }
+        mAggregate.count++;
+        mAggregate.sum += value;
+        mAggregate.last = value;
+        double delta = value - mAggregate.mean;
+        mAggregate.mean += delta / mAggregate.count;
+        mM2 += delta * (value - mAggregate.mean);
+    }
+
+    /**
+     * Hand the current window to the listener now, even if it isn't finished, and start a new one
+     */
+    public void flush() {
+        if (mAggregate.count == 0) return;
+        mAggregate.variance = mAggregate.count > 1 ? mM2 / (mAggregate.count - 1) : 0;
+        mListener.onWindow(mAggregate);
+        reset();
+    }
+
+    /**
+     * Hand the current window to the listener if it has ended, without waiting for the next sample.
+     * Call it from a timer so the last window isn't held back when samples stop arriving
+     *
+     * @param now_ns the current time, on the same scale as the sample timestamps
+     */
+    public void advanceTo(long now_ns) {
+        if (mAggregate.count > 0 && now_ns >= mAggregate.windowEnd_ns) flush();
+    }
+
+    /**
+     * Discard the current window
+     */
+    public void reset() {
+        mAggregate.count = 0;
+        mAggregate.sum = 0;
+        mAggregate.mean = 0;
+        mAggregate.variance = 0;
+        mM2 = 0;
+    }
+
+    public long getWindow() {
+        return mWindow_ns;
+    }
+}
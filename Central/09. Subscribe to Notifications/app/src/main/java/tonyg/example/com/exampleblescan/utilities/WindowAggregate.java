@@ -0,0 +1,90 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+/**
+ * Count, sum, minimum, maximum, mean, variance and last value of the samples in one window,
+ * as produced by TumblingWindowAggregator and SlidingWindowAggregator.
+ *
+ * Aggregates are reused rather than allocated per window.  Copy one with set() to keep it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-31
+ */
+public class WindowAggregate {
+    /**
+     * Receives aggregates from TumblingWindowAggregator or SlidingWindowAggregator
+     */
+    public interface Listener {
+        /**
+         * @param aggregate the window.  Only valid until this method returns
+         */
+        void onWindow(WindowAggregate aggregate);
+    }
+
+    public static final int ENCODED_LENGTH = 9 * 8; // bytes written by encode()
+
+    public long windowStart_ns;
+    public long windowEnd_ns;
+    public long count;
+    public double sum;
+    public double min;
+    public double max;
+    public double mean;
+    public double variance; // sample variance, 0 for fewer than two samples
+    public double last;
+
+    /**
+     * Copy another aggregate
+     *
+     * @param other the aggregate to copy
+     * @return this aggregate
+     */
+    public WindowAggregate set(WindowAggregate other) {
+        windowStart_ns = other.windowStart_ns;
+        windowEnd_ns = other.windowEnd_ns;
+        count = other.count;
+        sum = other.sum;
+        min = other.min;
+        max = other.max;
+        mean = other.mean;
+        variance = other.variance;
+        last = other.last;
+        return this;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * Write the aggregate little-endian into a buffer, eg to record it with a NotificationRecorder.
+     * Start and end times and count are longs, the rest doubles, in field order
+     *
+     * @param buffer receives the aggregate
+     * @param offset where to start writing.  ENCODED_LENGTH bytes are written
+     * @return the number of bytes written
+     */
+    public int encode(byte[] buffer, int offset) {
+        putLong(buffer, offset, windowStart_ns);
+        putLong(buffer, offset + 8, windowEnd_ns);
+        putLong(buffer, offset + 16, count);
+        putLong(buffer, offset + 24, Double.doubleToRawLongBits(sum));
+        putLong(buffer, offset + 32, Double.doubleToRawLongBits(min));
+        putLong(buffer, offset + 40, Double.doubleToRawLongBits(max));
+        putLong(buffer, offset + 48, Double.doubleToRawLongBits(mean));
+        putLong(buffer, offset + 56, Double.doubleToRawLongBits(variance));
+        putLong(buffer, offset + 64, Double.doubleToRawLongBits(last));
+        return ENCODED_LENGTH;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d last=%.2f min=%.2f max=%.2f mean=%.2f sd=%.2f",
+                count, last, min, max, mean, getStandardDeviation());
+    }
+}
@@ -0,0 +1,228 @@
+package tonyg.example.com.exampleblescan.views;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * A scrollback log that keeps only its most recent lines.
+ *
+ * A TextView that is appended to forever holds every line ever logged, and each layout pass
+ * gets slower as it grows.  This view copies each line into a fixed ring of character buffers
+ * instead, overwriting the oldest line once the ring is full, and only draws the lines that fit
+ * on screen.  Memory use and the cost of an append or a draw stay the same however long it runs.
+ * Lines wider than the view are wrapped onto further rows as they are appended, each row taking
+ * a slot of the ring, so nothing is cut short.  Rows appended before a resize keep their wrapping.
+ *
+ * The view follows the newest line.  Drag to scroll back; new lines don't move the view
+ * until it is dragged back to the bottom.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-27
+ */
+public class RingLogView extends View {
+    public static final int DEFAULT_CAPACITY = 1000; // lines
+    public static final int DEFAULT_MAX_LINE_LENGTH = 120; // characters per row, at most
+    private static final float TEXT_SIZE_SP = 14;
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private char[][] mLines;
+    private int[] mLineLengths;
+    private int mWrapColumns; // characters that fit across the view, at most a row's length
+    private long mLinesAppended = 0; // the newest line is in slot (mLinesAppended - 1) % capacity
+    private boolean mLineOpen = false; // the newest line hasn't ended with a newline yet
+    private int mScrollBack = 0; // lines between the bottom of the view and the newest line
+    private float mLastTouchY;
+    private float mDragRemainder;
+
+    public RingLogView(Context context) {
+        super(context);
+        init();
+    }
+
+    public RingLogView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public RingLogView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        mPaint.setTextSize(TEXT_SIZE_SP * getResources().getDisplayMetrics().scaledDensity);
+        mPaint.setColor(Color.BLACK);
+        mPaint.setTypeface(Typeface.MONOSPACE);
+        setCapacity(DEFAULT_CAPACITY, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Set how much the log holds.  Clears the log
+     *
+     * @param lines the number of rows kept
+     * @param maxLineLength the longest row, in characters.  Longer lines wrap even if the view is wider
+     */
+    public void setCapacity(int lines, int maxLineLength) {
+        mLines = new char[lines][maxLineLength];
+        mLineLengths = new int[lines];
+        updateWrapColumns();
+        clear();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateWrapColumns();
+    }
+
+    /**
+     * Wrap at the view's width.  The font is monospaced, so every character is as wide as one digit
+     */
+    private void updateWrapColumns() {
+        int maxLineLength = mLines[0].length;
+        float textWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        float characterWidth = mPaint.measureText("0");
+        if (textWidth <= 0 || characterWidth <= 0) {
+            // not laid out yet
+            mWrapColumns = maxLineLength;
+        } else {
+            mWrapColumns = Math.max(1, Math.min(maxLineLength, (int) (textWidth / characterWidth)));
+        }
+    }
+
+    /**
+     * Remove every line
+     */
+    public void clear() {
+        mLinesAppended = 0;
+        mLineOpen = false;
+        mScrollBack = 0;
+        invalidate();
+    }
+
+    /**
+     * Add text to the log.  Each newline ends a line; text after the last newline starts a line
+     * that the next append continues
+     *
+     * @param text the text
+     */
+    public void append(CharSequence text) {
+        int capacity = mLines.length;
+        int added = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!mLineOpen) {
+                // start a new line in the oldest slot
+                mLineLengths[(int) (mLinesAppended % capacity)] = 0;
+                mLinesAppended++;
+                mLineOpen = true;
+                added++;
+            }
+            if (c == '\n') {
+                mLineOpen = false;
+                continue;
+            }
+            int slot = (int) ((mLinesAppended - 1) % capacity);
+            if (mLineLengths[slot] >= mWrapColumns) {
+                // wrap onto a new row
+                slot = (int) (mLinesAppended % capacity);
+                mLineLengths[slot] = 0;
+                mLinesAppended++;
+                added++;
+            }
+            mLines[slot][mLineLengths[slot]++] = c;
+        }
+        if (mScrollBack > 0) {
+            // keep the lines being read where they are
+            mScrollBack = Math.min(mScrollBack + added, getMaxScrollBack());
+        }
+        invalidate();
+    }
+
+    /**
+     * Add a line to the log
+     *
+     * @param line the line, without a newline
+     */
+    public void appendLine(CharSequence line) {
+        if (mLineOpen) append("\n");
+        append(line);
+        append("\n");
+    }
+
+    /**
+     * @return the number of rows held, at most the capacity
+     */
+    public int getLineCount() {
+        return (int) Math.min(mLinesAppended, mLines.length);
+    }
+
+    /**
+     * @return the number of rows ever appended, including wrapped rows and those overwritten
+     */
+    public long getLinesAppended() {
+        return mLinesAppended;
+    }
+
+    private int getVisibleLineCount() {
+        float lineHeight = mPaint.getFontSpacing();
+        if (lineHeight <= 0) return 0;
+        return (int) Math.ceil((getHeight() - getPaddingTop() - getPaddingBottom()) / lineHeight);
+    }
+
+    private int getMaxScrollBack() {
+        return Math.max(0, getLineCount() - getVisibleLineCount());
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int capacity = mLines.length;
+        float lineHeight = mPaint.getFontSpacing();
+        long oldest = mLinesAppended - getLineCount();
+        long newest = mLinesAppended - 1 - mScrollBack;
+        long first = Math.max(oldest, newest - getVisibleLineCount() + 1);
+
+        // draw from the bottom up, newest line last in the view
+        canvas.save();
+        canvas.clipRect(getPaddingLeft(), getPaddingTop(), getWidth() - getPaddingRight(), getHeight() - getPaddingBottom());
+        float y = getHeight() - getPaddingBottom() - mPaint.descent();
+        for (long i = newest; i >= first; i--) {
+            int slot = (int) (i % capacity);
+            canvas.drawText(mLines[slot], 0, mLineLengths[slot], getPaddingLeft(), y, mPaint);
+            y -= lineHeight;
+        }
+        canvas.restore();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mLastTouchY = event.getY();
+                mDragRemainder = 0;
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                float lineHeight = mPaint.getFontSpacing();
+                if (lineHeight <= 0) return true;
+                // dragging down reveals older lines
+                mDragRemainder += event.getY() - mLastTouchY;
+                mLastTouchY = event.getY();
+                int lines = (int) (mDragRemainder / lineHeight);
+                if (lines != 0) {
+                    mDragRemainder -= lines * lineHeight;
+                    mScrollBack = Math.max(0, Math.min(mScrollBack + lines, getMaxScrollBack()));
+                    invalidate();
+                }
+                return true;
+            default:
+                return super.onTouchEvent(event);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.exampleblescan.utilities.WindowAggregate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM.  Records a session with NotificationRecorder, then replays it into a
+ * NotificationDispatcher against a simulated clock
+ */
+public class NotificationReplayerTest {
+    private static final long DEVICE_A = NotificationRecorder.getDeviceKey("00:11:22:AA:BB:CC");
+    private static final long DEVICE_B = NotificationRecorder.getDeviceKey("00:11:22:AA:BB:DD");
+    private static final int HANDLE = 5;
+    private static final long INTERVAL_NS = 5000000L; // 200Hz
+    private static final int NOTIFICATIONS = 1000;
+    private static final long SEGMENT_SIZE = 4096; // small, so the recording spans several segments
+    private static final long START_NS = 1000000000L;
+
+    private File mDirectory;
+
+    /**
+     * Advances instantly to whatever time is waited for
+     */
+    private static class SimulatedClock implements NotificationReplayer.Clock {
+        long mNow_ns = START_NS;
+
+        @Override
+        public long nanoTime() {
+            return mNow_ns;
+        }
+
+        @Override
+        public void sleepUntil(long time_ns) {
+            if (time_ns > mNow_ns) mNow_ns = time_ns;
+        }
+    }
+
+    /**
+     * Remembers each notification drained from the dispatcher
+     */
+    private static class Collector implements NotificationDispatcher.Consumer {
+        final List<Long> mTimestamps = new ArrayList<>();
+        final List<Integer> mSequenceNumbers = new ArrayList<>();
+
+        @Override
+        public void onNotification(int handle, long timestamp_ns, byte[] payload, int length) {
+            assertEquals(HANDLE, handle);
+            assertEquals(3, length);
+            mTimestamps.add(timestamp_ns);
+            mSequenceNumbers.add((payload[0] & 0xFF) | (payload[1] & 0xFF) << 8);
+        }
+    }
+
+    @Before
+    public void recordSession() throws Exception {
+        mDirectory = Files.createTempDirectory("replay").toFile();
+        mDirectory.deleteOnExit();
+        NotificationRecorder recorder = new NotificationRecorder(mDirectory, "session", SEGMENT_SIZE, NOTIFICATIONS * 2);
+        recorder.start();
+        byte[] value = new byte[3];
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            value[0] = (byte) i;
+            value[1] = (byte) (i >> 8);
+            value[2] = (byte) 0xA5;
+            long device = i % 10 == 9 ? DEVICE_B : DEVICE_A;
+            assertTrue(recorder.record(device, HANDLE, 7000000000L + i * INTERVAL_NS, value));
+        }
+        recorder.stop();
+        assertNull(recorder.getError());
+        assertEquals(NOTIFICATIONS, recorder.getRecordedCount());
+        for (File file : mDirectory.listFiles()) file.deleteOnExit();
+    }
+
+    @Test
+    public void recording_readsBackEveryRecordAcrossSegments() throws Exception {
+        assertTrue(NotificationRecorder.getSegmentFile(mDirectory, "session", 1).isFile());
+        NotificationRecording recording = new NotificationRecording(mDirectory, "session");
+        int count = 0;
+        while (recording.next()) {
+            assertEquals(7000000000L + count * INTERVAL_NS, recording.getTimestamp());
+            assertEquals(HANDLE, recording.getHandle());
+            assertEquals((byte) count, recording.getPayload()[0]);
+            assertEquals((byte) 0xA5, recording.getPayload()[2]);
+            count++;
+        }
+        assertEquals(NOTIFICATIONS, count);
+
+        recording.rewind();
+        assertTrue(recording.next());
+        assertEquals(7000000000L, recording.getTimestamp());
+    }
+
+    @Test
+    public void originalSpeed_keepsRecordedIntervals() throws Exception {
+        Collector collector = replay(NotificationReplayer.ORIGINAL_SPEED, NotificationReplayer.ALL_DEVICES);
+        assertEquals(NOTIFICATIONS, collector.mTimestamps.size());
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            assertEquals(i, (int) collector.mSequenceNumbers.get(i));
+            assertEquals(START_NS + i * INTERVAL_NS, (long) collector.mTimestamps.get(i));
+        }
+    }
+
+    @Test
+    public void scaledSpeed_dividesIntervals() throws Exception {
+        Collector collector = replay(4, NotificationReplayer.ALL_DEVICES);
+        assertEquals(NOTIFICATIONS, collector.mTimestamps.size());
+        assertEquals(START_NS + (NOTIFICATIONS - 1) * INTERVAL_NS / 4, (long) collector.mTimestamps.get(NOTIFICATIONS - 1));
+    }
+
+    @Test
+    public void fastest_doesNotWait() throws Exception {
+        Collector collector = replay(NotificationReplayer.FASTEST, NotificationReplayer.ALL_DEVICES);
+        assertEquals(NOTIFICATIONS, collector.mTimestamps.size());
+        assertEquals(START_NS, (long) collector.mTimestamps.get(NOTIFICATIONS - 1));
+    }
+
+    @Test
+    public void deviceKey_filtersOtherPeripherals() throws Exception {
+        Collector collector = replay(NotificationReplayer.FASTEST, DEVICE_B);
+        assertEquals(NOTIFICATIONS / 10, collector.mTimestamps.size());
+        assertEquals(9, (int) collector.mSequenceNumbers.get(0));
+    }
+
+    @Test
+    public void lossless_waitsForConsumerOnAnotherThread() throws Exception {
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(16, 20);
+        final Collector collector = new Collector();
+        dispatcher.setConsumer(HANDLE, collector);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (collector.mTimestamps.size() < NOTIFICATIONS) {
+                    if (dispatcher.drain() == 0) Thread.yield();
+                }
+            }
+        });
+        consumer.start();
+        NotificationReplayer replayer = new NotificationReplayer(new SimulatedClock());
+        replayer.setSpeed(NotificationReplayer.FASTEST);
+        assertEquals(NOTIFICATIONS, replayer.replay(new NotificationRecording(mDirectory, "session"), dispatcher));
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(0, replayer.getDroppedCount());
+        for (int i = 0; i < NOTIFICATIONS; i++) assertEquals(i, (int) collector.mSequenceNumbers.get(i));
+    }
+
+    @Test
+    public void aggregateRecords_areNotReplayed() throws Exception {
+        File directory = Files.createTempDirectory("replay").toFile();
+        directory.deleteOnExit();
+        NotificationRecorder recorder = new NotificationRecorder(directory, "aggregates", SEGMENT_SIZE, 64);
+        recorder.start();
+        byte[] value = new byte[3];
+        byte[] aggregate = new byte[WindowAggregate.ENCODED_LENGTH];
+        for (int i = 0; i < 20; i++) {
+            value[0] = (byte) i;
+            assertTrue(recorder.record(DEVICE_A, HANDLE, 7000000000L + i * INTERVAL_NS, value));
+            if (i % 5 == 4) {
+                // an aggregate is stamped with the end of its window, so it sorts out of order
+                assertTrue(recorder.record(DEVICE_A, HANDLE | NotificationRecorder.AGGREGATE_HANDLE_FLAG,
+                        7000000000L + (i + 10) * INTERVAL_NS, aggregate));
+            }
+        }
+        recorder.stop();
+        for (File file : directory.listFiles()) file.deleteOnExit();
+
+        NotificationRecording recording = new NotificationRecording(directory, "aggregates");
+        int aggregates = 0;
+        while (recording.next()) {
+            if (recording.isAggregate()) aggregates++;
+        }
+        assertEquals(4, aggregates);
+
+        NotificationDispatcher dispatcher = new NotificationDispatcher(16, 20);
+        Collector collector = new Collector();
+        dispatcher.setConsumer(HANDLE, collector);
+        dispatcher.setOnAvailableListener(new NotificationDispatcher.OnAvailableListener() {
+            @Override
+            public void onNotificationsAvailable(NotificationDispatcher dispatcher) {
+                dispatcher.drain();
+            }
+        });
+        NotificationReplayer replayer = new NotificationReplayer(new SimulatedClock());
+        recording.rewind();
+        assertEquals(20, replayer.replay(recording, dispatcher));
+        assertEquals(0, replayer.getDroppedCount());
+        assertNull(dispatcher.getStats(HANDLE | NotificationRecorder.AGGREGATE_HANDLE_FLAG));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) collector.mSequenceNumbers.get(i));
+            assertEquals(START_NS + i * INTERVAL_NS, (long) collector.mTimestamps.get(i));
+        }
+    }
+
+    /**
+     * Replay the session into a dispatcher that drains as soon as anything is published
+     */
+    private Collector replay(double speed, long deviceKey) throws Exception {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(16, 20);
+        Collector collector = new Collector();
+        dispatcher.setConsumer(HANDLE, collector);
+        dispatcher.setOnAvailableListener(new NotificationDispatcher.OnAvailableListener() {
+            @Override
+            public void onNotificationsAvailable(NotificationDispatcher dispatcher) {
+                dispatcher.drain();
+            }
+        });
+        NotificationReplayer replayer = new NotificationReplayer(new SimulatedClock());
+        replayer.setSpeed(speed);
+        replayer.setDeviceKey(deviceKey);
+        replayer.replay(new NotificationRecording(mDirectory, "session"), dispatcher);
+        assertEquals(0, replayer.getDroppedCount());
+        return collector;
+    }
+}
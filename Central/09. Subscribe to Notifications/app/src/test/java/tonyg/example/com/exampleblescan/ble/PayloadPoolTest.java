@@ -0,0 +1,199 @@
+package tonyg.example.com.exampleblescan.ble;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs on the JVM.  PayloadPool and NotificationDispatcher have no Android dependencies
+ */
+public class PayloadPoolTest {
+    private static final int PAYLOAD_CAPACITY = 20; // MTU 23 - 3
+    private static final int LARGE_PAYLOAD_CAPACITY = 244; // MTU 247 - 3
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURED_ITERATIONS = 1000000;
+
+    @Test
+    public void capture_copiesValue() throws Exception {
+        PayloadPool pool = new PayloadPool(4, PAYLOAD_CAPACITY, false);
+        byte[] value = {1, 2, 3};
+        PayloadPool.Payload payload = pool.capture(7, 1234L, value);
+        value[0] = 9; // the Characteristic's buffer is overwritten by the next notification
+
+        assertEquals(7, payload.getHandle());
+        assertEquals(1234L, payload.getTimestamp());
+        assertEquals(3, payload.getLength());
+        assertEquals(1, payload.getData()[0]);
+        assertEquals(3, pool.getFreeCount());
+        payload.release();
+        assertEquals(4, pool.getFreeCount());
+    }
+
+    @Test
+    public void capture_failsWhenExhaustedOrTooLong() throws Exception {
+        PayloadPool pool = new PayloadPool(2, PAYLOAD_CAPACITY, false);
+        assertNotNull(pool.capture(0, 0, new byte[1]));
+        assertNotNull(pool.capture(0, 0, new byte[1]));
+        assertNull(pool.capture(0, 0, new byte[1]));
+        assertEquals(1, pool.getExhaustedCount());
+        assertEquals(0, pool.getLowWaterMark());
+
+        PayloadPool roomy = new PayloadPool(2, PAYLOAD_CAPACITY, false);
+        assertNull(roomy.capture(0, 0, new byte[PAYLOAD_CAPACITY + 1]));
+        assertEquals(1, roomy.getTooLongCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twiceThrows() throws Exception {
+        PayloadPool pool = new PayloadPool(1, PAYLOAD_CAPACITY, false);
+        PayloadPool.Payload payload = pool.capture(0, 0, new byte[1]);
+        payload.release();
+        payload.release();
+    }
+
+    @Test
+    public void findLeaks_reportsWhereHeldPayloadWasAcquired() throws Exception {
+        PayloadPool pool = new PayloadPool(2, PAYLOAD_CAPACITY, true);
+        pool.capture(0, 0, new byte[1]);
+        pool.capture(0, 0, new byte[1]).release();
+
+        assertEquals(0, pool.findLeaks(5, 10).size());
+        assertEquals(1, pool.findLeaks(20, 10).size());
+        assertNotNull(pool.findLeaks(20, 10).get(0).getCause());
+    }
+
+    @Test
+    public void dispatcher_releasesToThePoolEachPayloadCameFrom() throws Exception {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(4, PAYLOAD_CAPACITY);
+        final int[] lengths = new int[2];
+        dispatcher.setConsumer(3, new NotificationDispatcher.Consumer() {
+            @Override
+            public void onNotification(int handle, long timestamp_ns, byte[] payload, int length) {
+                lengths[(int) timestamp_ns] = length;
+            }
+        });
+        PayloadPool defaultMtuPool = dispatcher.getPayloadPool();
+        assertFalse(dispatcher.publish(3, 0, new byte[PAYLOAD_CAPACITY + 1]));
+        assertTrue(dispatcher.publish(3, 0, new byte[PAYLOAD_CAPACITY]));
+
+        // the MTU grows while a notification is still waiting
+        PayloadPool largeMtuPool = new PayloadPool(dispatcher.getCapacity(), LARGE_PAYLOAD_CAPACITY, false);
+        dispatcher.setPayloadPool(largeMtuPool);
+        assertTrue(dispatcher.publish(3, 1, new byte[LARGE_PAYLOAD_CAPACITY]));
+        assertEquals(dispatcher.getCapacity() - 1, defaultMtuPool.getFreeCount());
+        assertEquals(dispatcher.getCapacity() - 1, largeMtuPool.getFreeCount());
+
+        assertEquals(2, dispatcher.drain());
+        assertEquals(PAYLOAD_CAPACITY, lengths[0]);
+        assertEquals(LARGE_PAYLOAD_CAPACITY, lengths[1]);
+        assertEquals(1, dispatcher.getStats(3).getDropped());
+        assertEquals(1, defaultMtuPool.getTooLongCount());
+        assertEquals(defaultMtuPool.getSize(), defaultMtuPool.getFreeCount());
+        assertEquals(largeMtuPool.getSize(), largeMtuPool.getFreeCount());
+    }
+
+    /**
+     * Capture on one thread, release on another, as the Binder thread and the UI thread do.
+     * The free ring must neither lose nor duplicate a payload
+     */
+    @Test
+    public void captureAndRelease_onSeparateThreads() throws Exception {
+        final NotificationDispatcher dispatcher = new NotificationDispatcher(16, PAYLOAD_CAPACITY);
+        final int notifications = 200000;
+        final long[] sum = new long[1];
+        dispatcher.setConsumer(3, new NotificationDispatcher.Consumer() {
+            @Override
+            public void onNotification(int handle, long timestamp_ns, byte[] payload, int length) {
+                sum[0] += (payload[0] & 0xFF) | (payload[1] & 0xFF) << 8 | (payload[2] & 0xFF) << 16;
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (dispatcher.getStats(3) == null || dispatcher.getStats(3).getDelivered() < notifications) {
+                    if (dispatcher.drain() == 0) Thread.yield();
+                }
+            }
+        });
+        consumer.start();
+        byte[] value = new byte[3];
+        long expected = 0;
+        for (int i = 0; i < notifications; i++) {
+            value[0] = (byte) i;
+            value[1] = (byte) (i >> 8);
+            value[2] = (byte) (i >> 16);
+            // the ring and the pool are the same size, so waiting for room in one waits for the other
+            while (dispatcher.getPending() >= dispatcher.getCapacity()) Thread.yield();
+            assertTrue(dispatcher.publish(3, i, value));
+            expected += i;
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(expected, sum[0]);
+        PayloadPool pool = dispatcher.getPayloadPool();
+        assertEquals(pool.getSize(), pool.getFreeCount());
+        assertEquals(0, pool.getExhaustedCount());
+    }
+
+    /**
+     * The path every notification takes in BlePeripheral: published from onCharacteristicChanged
+     * into the dispatcher, captured into its pool, drained to a consumer and released.
+     * Once warmed up, before and after the pool is replaced for a larger MTU, it must not allocate
+     */
+    @Test
+    public void notificationPath_doesNotAllocateInSteadyState() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        NotificationDispatcher dispatcher = new NotificationDispatcher(64, PAYLOAD_CAPACITY);
+        final long[] checksum = new long[1];
+        dispatcher.setConsumer(3, new NotificationDispatcher.Consumer() {
+            @Override
+            public void onNotification(int handle, long timestamp_ns, byte[] payload, int length) {
+                checksum[0] += payload[0] + payload[length - 1];
+            }
+        });
+
+        long threadId = Thread.currentThread().getId();
+        allocationBean.getThreadAllocatedBytes(threadId); // the first call may allocate
+        byte[] value = new byte[PAYLOAD_CAPACITY];
+        runNotificationPath(dispatcher, value, WARMUP_ITERATIONS);
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        runNotificationPath(dispatcher, value, MEASURED_ITERATIONS);
+        long after = allocationBean.getThreadAllocatedBytes(threadId);
+        long baseline = allocationBean.getThreadAllocatedBytes(threadId) - after; // cost of the measurement itself
+        assertEquals("bytes allocated at the default MTU", 0, Math.max(0, after - before - baseline));
+
+        // as BlePeripheral.onMtuChanged does
+        PayloadPool largeMtuPool = new PayloadPool(dispatcher.getCapacity(), LARGE_PAYLOAD_CAPACITY, false);
+        dispatcher.setPayloadPool(largeMtuPool);
+        value = new byte[LARGE_PAYLOAD_CAPACITY];
+        runNotificationPath(dispatcher, value, WARMUP_ITERATIONS);
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        runNotificationPath(dispatcher, value, MEASURED_ITERATIONS);
+        after = allocationBean.getThreadAllocatedBytes(threadId);
+        assertEquals("bytes allocated at a large MTU", 0, Math.max(0, after - before - baseline));
+
+        assertEquals(largeMtuPool.getSize(), largeMtuPool.getFreeCount());
+        assertEquals(2 * (WARMUP_ITERATIONS + MEASURED_ITERATIONS), dispatcher.getStats(3).getDelivered());
+        assertEquals(0, dispatcher.getStats(3).getDropped());
+        assertTrue(checksum[0] > 0);
+    }
+
+    private static void runNotificationPath(NotificationDispatcher dispatcher, byte[] value, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            value[0] = (byte) (i | 1);
+            value[value.length - 1] = (byte) (i | 1);
+            dispatcher.publish(3, i, value);
+            if ((i & 15) == 15) dispatcher.drain();
+        }
+        dispatcher.drain();
+    }
+}
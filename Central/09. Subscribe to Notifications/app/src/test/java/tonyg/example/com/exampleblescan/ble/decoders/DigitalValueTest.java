@@ -0,0 +1,55 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM.  Unpacks Digital values, and checks that CharacteristicValue only decodes when asked
+ */
+public class DigitalValueTest {
+
+    @Test
+    public void states_unpackFromLeastSignificantBits() throws Exception {
+        DigitalValue record = DigitalValue.DECODER.newRecord();
+        // 0b11_10_01_00: inactive, active, tri-state, unknown.  Then four actives
+        byte[] value = {(byte) 0xE4, 0x55};
+        assertTrue(DigitalValue.DECODER.decode(value, 0, value.length, record));
+        assertEquals(8, record.count);
+        assertEquals(DigitalValue.INACTIVE, record.states[0]);
+        assertEquals(DigitalValue.ACTIVE, record.states[1]);
+        assertEquals(DigitalValue.TRI_STATE, record.states[2]);
+        assertEquals(DigitalValue.UNKNOWN, record.states[3]);
+        assertEquals(5, record.activeCount);
+        assertEquals(5.0, record.getPrimaryValue(), 0);
+        assertEquals("01Z?1111", record.toString());
+
+        // the record is reused
+        assertTrue(DigitalValue.DECODER.decode(new byte[] {0x00}, 0, 1, record));
+        assertEquals(4, record.count);
+        assertEquals(0, record.activeCount);
+    }
+
+    @Test
+    public void length_cappedAtTheLongestValue() throws Exception {
+        DigitalValue record = DigitalValue.DECODER.newRecord();
+        byte[] value = new byte[DigitalValue.MAX_DIGITALS / 4 + 1];
+        assertTrue(DigitalValue.DECODER.decode(value, 0, value.length - 1, record));
+        assertEquals(DigitalValue.MAX_DIGITALS, record.count);
+        assertFalse(DigitalValue.DECODER.decode(value, 0, value.length, record));
+    }
+
+    @Test
+    public void characteristicValue_keepsTextUntilDecoded() throws Exception {
+        CharacteristicValue value = new CharacteristicValue();
+        byte[] text = "Hi".getBytes(StandardCharsets.US_ASCII);
+        value.set(DigitalValue.CHARACTERISTIC_UUID, text);
+        assertEquals("Hi", value.getText());
+        assertEquals("48 69 ", value.getHex());
+        DecodedValue decoded = value.getDecoded();
+        assertTrue(decoded instanceof DigitalValue);
+        assertEquals(8, ((DigitalValue) decoded).count);
+    }
+}
@@ -0,0 +1,104 @@
+package tonyg.example.com.exampleblescan.ble.decoders;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM.  Decodes Heart Rate Measurement values laid out as in the Bluetooth SIG specification
+ */
+public class HeartRateMeasurementTest {
+    private HeartRateMeasurement mRecord;
+
+    @Before
+    public void newRecord() throws Exception {
+        mRecord = HeartRateMeasurement.DECODER.newRecord();
+    }
+
+    private boolean decode(int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) value[i] = (byte) bytes[i];
+        return HeartRateMeasurement.DECODER.decode(value, 0, value.length, mRecord);
+    }
+
+    @Test
+    public void uint8_heartRate() throws Exception {
+        assertTrue(decode(0x00, 200));
+        assertEquals(200, mRecord.heartRate);
+        assertEquals(200.0, mRecord.getPrimaryValue(), 0);
+        assertFalse(mRecord.contactSupported);
+        assertEquals(-1, mRecord.energyExpended);
+        assertEquals(0, mRecord.rrIntervalCount);
+        assertEquals("200 bpm", mRecord.toString());
+    }
+
+    @Test
+    public void uint16_heartRate() throws Exception {
+        assertTrue(decode(0x01, 0x2C, 0x01)); // 300
+        assertEquals(300, mRecord.heartRate);
+    }
+
+    @Test
+    public void contact_onlyWhenSupported() throws Exception {
+        assertTrue(decode(0x06, 60));
+        assertTrue(mRecord.contactSupported);
+        assertTrue(mRecord.contactDetected);
+        assertTrue(decode(0x02, 60)); // detected bit without the supported bit means nothing
+        assertFalse(mRecord.contactSupported);
+        assertFalse(mRecord.contactDetected);
+    }
+
+    @Test
+    public void energyExpended_followsHeartRate() throws Exception {
+        assertTrue(decode(0x09, 0x48, 0x00, 0x34, 0x12)); // uint16 heart rate 72, 0x1234 kJ
+        assertEquals(72, mRecord.heartRate);
+        assertEquals(0x1234, mRecord.energyExpended);
+
+        // the record is reused: a value without energy clears it
+        assertTrue(decode(0x00, 72));
+        assertEquals(-1, mRecord.energyExpended);
+    }
+
+    @Test
+    public void rrIntervals_afterEnergy() throws Exception {
+        assertTrue(decode(0x18, 80, 0x10, 0x00, 0x00, 0x04, 0x00, 0x02));
+        assertEquals(16, mRecord.energyExpended);
+        assertEquals(2, mRecord.rrIntervalCount);
+        assertEquals(1024, mRecord.rrIntervals[0]);
+        assertEquals(512, mRecord.rrIntervals[1]);
+        assertEquals("80 bpm, 16 kJ, RR 1000ms 500ms", mRecord.toString());
+    }
+
+    @Test
+    public void rrIntervals_ignoreTrailingOddByte() throws Exception {
+        assertTrue(decode(0x10, 80, 0x00, 0x04, 0x7F));
+        assertEquals(1, mRecord.rrIntervalCount);
+        assertEquals(1024, mRecord.rrIntervals[0]);
+    }
+
+    @Test
+    public void rrIntervals_cappedAtTheLongestValue() throws Exception {
+        byte[] value = new byte[2 + 2 * (HeartRateMeasurement.MAX_RR_INTERVALS + 4)];
+        value[0] = 0x10;
+        value[1] = 60;
+        assertTrue(HeartRateMeasurement.DECODER.decode(value, 0, value.length, mRecord));
+        assertEquals(HeartRateMeasurement.MAX_RR_INTERVALS, mRecord.rrIntervalCount);
+    }
+
+    @Test
+    public void truncated_isMalformed() throws Exception {
+        assertFalse(decode());
+        assertFalse(decode(0x00));
+        assertFalse(decode(0x01, 0x48)); // uint16 heart rate cut short
+        assertFalse(decode(0x08, 72, 0x10)); // energy expended cut short
+    }
+
+    @Test
+    public void offset_skipsLeadingBytes() throws Exception {
+        byte[] value = {(byte) 0xFF, (byte) 0xFF, 0x00, 90, (byte) 0xFF};
+        assertTrue(HeartRateMeasurement.DECODER.decode(value, 2, 2, mRecord));
+        assertEquals(90, mRecord.heartRate);
+        assertEquals(0, mRecord.rrIntervalCount);
+    }
+}
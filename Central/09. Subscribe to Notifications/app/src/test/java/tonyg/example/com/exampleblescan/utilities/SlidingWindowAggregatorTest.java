@@ -0,0 +1,136 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM.  Checks SlidingWindowAggregator against a brute-force recomputation
+ * of the window after every sample
+ */
+public class SlidingWindowAggregatorTest {
+    private static final long WINDOW_NS = 1000000000L; // 1s
+    private static final int CAPACITY = 64;
+    private static final int SAMPLES = 100000;
+    private static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void randomSamples_matchBruteForce() throws Exception {
+        Random random = new Random(42);
+        SlidingWindowAggregator aggregator = new SlidingWindowAggregator(WINDOW_NS, CAPACITY);
+        WindowAggregate aggregate = new WindowAggregate();
+        List<Long> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        long expectedEvictedEarly = 0;
+        long timestamp_ns = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            // bursts that overflow the ring, steady streams that age out, and the odd long gap that empties it
+            int pattern = (i / 1000) % 3;
+            if (pattern == 0) timestamp_ns += random.nextInt(1000000); // up to 1ms, ~2000 a window
+            else if (pattern == 1) timestamp_ns += random.nextInt(60000000); // up to 60ms, ~33 a window
+            else timestamp_ns += random.nextInt(50) == 0 ? 2 * WINDOW_NS : random.nextInt(20000000);
+            // few distinct values, so the deques see plenty of ties
+            double value = random.nextInt(20) - 10 + (random.nextBoolean() ? 0 : 0.5);
+
+            // the samples the window should hold: inside it, and no more than the ring
+            int first = timestamps.size();
+            while (first > 0 && timestamps.get(first - 1) >= timestamp_ns - WINDOW_NS) first--;
+            if (timestamps.size() - first >= CAPACITY) {
+                expectedEvictedEarly++;
+                first = timestamps.size() - CAPACITY + 1;
+            }
+            timestamps.add(timestamp_ns);
+            values.add(value);
+
+            aggregator.add(timestamp_ns, value);
+            aggregator.getAggregate(aggregate, timestamp_ns);
+            assertMatches("sample " + i, values.subList(first, values.size()), aggregate);
+            assertEquals(expectedEvictedEarly, aggregator.getEvictedEarlyCount());
+
+            // drop what can't be in the window any more, to keep the brute force cheap
+            if (timestamps.size() > 4 * CAPACITY) {
+                timestamps.subList(0, timestamps.size() - CAPACITY).clear();
+                values.subList(0, values.size() - CAPACITY).clear();
+            }
+        }
+        assertTrue("ring never filled", expectedEvictedEarly > 0);
+    }
+
+    @Test
+    public void getAggregate_evictsSamplesThatAgedOut() throws Exception {
+        SlidingWindowAggregator aggregator = new SlidingWindowAggregator(WINDOW_NS, CAPACITY);
+        WindowAggregate aggregate = new WindowAggregate();
+        aggregator.add(0, 3);
+        aggregator.add(WINDOW_NS / 2, 1);
+        aggregator.add(WINDOW_NS, 2);
+
+        aggregator.getAggregate(aggregate, WINDOW_NS);
+        assertEquals(3, aggregate.count);
+        assertEquals(1, aggregate.min, 0);
+        assertEquals(3, aggregate.max, 0);
+
+        // the maximum leaves first, then the minimum
+        aggregator.getAggregate(aggregate, WINDOW_NS + 1);
+        assertEquals(2, aggregate.count);
+        assertEquals(1, aggregate.min, 0);
+        assertEquals(2, aggregate.max, 0);
+        aggregator.getAggregate(aggregate, WINDOW_NS + WINDOW_NS / 2 + 1);
+        assertEquals(1, aggregate.count);
+        assertEquals(2, aggregate.min, 0);
+        assertEquals(2, aggregate.max, 0);
+        assertEquals(0, aggregate.variance, 0);
+
+        // no samples left.  No stale figures either
+        aggregator.getAggregate(aggregate, 3 * WINDOW_NS);
+        assertEquals(0, aggregate.count);
+        assertEquals(0, aggregate.sum, 0);
+        assertEquals(0, aggregate.mean, 0);
+        assertEquals(0, aggregate.min, 0);
+        assertEquals(0, aggregate.max, 0);
+        assertEquals(0, aggregator.getEvictedEarlyCount());
+    }
+
+    @Test
+    public void listener_isCalledOncePerEmitInterval() throws Exception {
+        SlidingWindowAggregator aggregator = new SlidingWindowAggregator(WINDOW_NS, CAPACITY);
+        final List<Long> counts = new ArrayList<>();
+        aggregator.setListener(WINDOW_NS / 4, new WindowAggregate.Listener() {
+            @Override
+            public void onWindow(WindowAggregate aggregate) {
+                counts.add(aggregate.count);
+            }
+        });
+        long interval_ns = WINDOW_NS / 20;
+        for (int i = 0; i < 40; i++) aggregator.add(i * interval_ns, i);
+
+        // the first sample, then every fifth
+        assertEquals(8, counts.size());
+        assertEquals(1L, (long) counts.get(0));
+        assertEquals(21L, (long) counts.get(4)); // a full window
+    }
+
+    private static void assertMatches(String message, List<Double> window, WindowAggregate aggregate) {
+        double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (double value : window) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum / window.size();
+        double squares = 0;
+        for (double value : window) squares += (value - mean) * (value - mean);
+        double variance = window.size() > 1 ? squares / (window.size() - 1) : 0;
+
+        assertEquals(message, window.size(), aggregate.count);
+        assertEquals(message, sum, aggregate.sum, TOLERANCE);
+        assertEquals(message, mean, aggregate.mean, TOLERANCE);
+        assertEquals(message, variance, aggregate.variance, TOLERANCE);
+        assertEquals(message, min, aggregate.min, 0);
+        assertEquals(message, max, aggregate.max, 0);
+        assertEquals(message, window.get(window.size() - 1), aggregate.last, 0);
+    }
+}
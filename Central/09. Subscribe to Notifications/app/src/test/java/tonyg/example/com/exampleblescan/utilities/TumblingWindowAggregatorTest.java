@@ -0,0 +1,81 @@
+package tonyg.example.com.exampleblescan.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM.  Feeds TumblingWindowAggregator samples and checks the windows it hands over
+ */
+public class TumblingWindowAggregatorTest {
+    private static final long WINDOW_NS = 1000000000L; // 1s
+
+    private final List<WindowAggregate> mWindows = new ArrayList<>();
+    private TumblingWindowAggregator mAggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        mWindows.clear();
+        mAggregator = new TumblingWindowAggregator(WINDOW_NS, new WindowAggregate.Listener() {
+            @Override
+            public void onWindow(WindowAggregate aggregate) {
+                mWindows.add(new WindowAggregate().set(aggregate));
+            }
+        });
+    }
+
+    @Test
+    public void windows_areAlignedAndEmptyOnesSkipped() throws Exception {
+        mAggregator.add(WINDOW_NS + 10, 1);
+        mAggregator.add(WINDOW_NS + 20, 2);
+        mAggregator.add(2 * WINDOW_NS - 1, 6);
+        assertTrue(mWindows.isEmpty());
+
+        // nothing in the fourth second
+        mAggregator.add(4 * WINDOW_NS + 5, 4);
+        assertEquals(1, mWindows.size());
+        WindowAggregate first = mWindows.get(0);
+        assertEquals(WINDOW_NS, first.windowStart_ns);
+        assertEquals(2 * WINDOW_NS, first.windowEnd_ns);
+        assertEquals(3, first.count);
+        assertEquals(9, first.sum, 0);
+        assertEquals(1, first.min, 0);
+        assertEquals(6, first.max, 0);
+        assertEquals(3, first.mean, 1e-9);
+        assertEquals(7, first.variance, 1e-9);
+        assertEquals(6, first.last, 0);
+
+        mAggregator.flush();
+        assertEquals(2, mWindows.size());
+        assertEquals(4 * WINDOW_NS, mWindows.get(1).windowStart_ns);
+        assertEquals(1, mWindows.get(1).count);
+        assertEquals(0, mWindows.get(1).variance, 0);
+
+        // nothing left to flush
+        mAggregator.flush();
+        assertEquals(2, mWindows.size());
+    }
+
+    @Test
+    public void advanceTo_flushesOnlyAnEndedWindow() throws Exception {
+        mAggregator.add(10, 1);
+        mAggregator.advanceTo(WINDOW_NS - 1);
+        assertTrue(mWindows.isEmpty());
+        mAggregator.advanceTo(WINDOW_NS);
+        assertEquals(1, mWindows.size());
+        mAggregator.advanceTo(5 * WINDOW_NS);
+        assertEquals(1, mWindows.size());
+    }
+
+    @Test
+    public void negativeTimestamps_alignDownwards() throws Exception {
+        mAggregator.add(-10, 1);
+        mAggregator.flush();
+        assertEquals(-WINDOW_NS, mWindows.get(0).windowStart_ns);
+        assertEquals(0, mWindows.get(0).windowEnd_ns);
+    }
+}
@@ -19,6 +19,7 @@ import android.widget.Toast;
 import tonyg.example.com.examplebleperipheral.ble.BlePeripheral;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
 import tonyg.example.com.examplebleperipheral.utilities.DataConverter;
+import tonyg.example.com.examplebleperipheral.views.RingLogView;
 
 
 /**
@@ -37,7 +38,8 @@ public class MainActivity extends AppCompatActivity {
 
 
     /** UI Stuff **/
-    private TextView mAdvertisingNameTV, mCharacteristicLogTV;
+    private TextView mAdvertisingNameTV;
+    private RingLogView mCharacteristicLogTV;
     private Switch mBluetoothOnSwitch,
             mAdvertisingSwitch,
             mCentralConnectedSwitch,
@@ -85,7 +87,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void loadUI() {
         mAdvertisingNameTV = (TextView)findViewById(R.id.advertising_name);
-        mCharacteristicLogTV = (TextView)findViewById(R.id.characteristic_log);
+        mCharacteristicLogTV = (RingLogView)findViewById(R.id.characteristic_log);
         mBluetoothOnSwitch = (Switch)findViewById(R.id.bluetooth_on);
         mAdvertisingSwitch = (Switch)findViewById(R.id.advertising);
         mCentralConnectedSwitch = (Switch)findViewById(R.id.central_connected);
@@ -181,16 +183,8 @@ public class MainActivity extends AppCompatActivity {
      * @param value the byte value being written
      */
     public void onBleCharacteristicWritten(final BluetoothGattCharacteristic characteristic, final byte[] value) {
-        mCharacteristicLogTV.append("\n");
-        mCharacteristicLogTV.append(DataConverter.bytesToHex(value) + " written to " + characteristic.getUuid().toString());
-
-        // scroll to bottom of TextView
-        final int scrollAmount = mCharacteristicLogTV.getLayout().getLineTop(mCharacteristicLogTV.getLineCount()) - mCharacteristicLogTV.getHeight();
-        if (scrollAmount > 0) {
-            mCharacteristicLogTV.scrollTo(0, scrollAmount);
-        } else {
-            mCharacteristicLogTV.scrollTo(0, 0);
-        }
+        // the log keeps a fixed number of lines and follows the newest one
+        mCharacteristicLogTV.appendLine(DataConverter.bytesToHex(value) + " written to " + characteristic.getUuid().toString());
     }
 
     /**
@@ -19,12 +19,16 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
 import tonyg.example.com.examplebleperipheral.utilities.DataConverter;
+import tonyg.example.com.examplebleperipheral.utilities.ThroughputMeter;
 
 /**
  * This class creates a local Bluetooth Peripheral
@@ -43,7 +47,9 @@ public class BlePeripheral {
     public static final UUID SERVICE_UUID = UUID.fromString("0000180c-0000-1000-8000-00805f9b34fb");
     public static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002a56-0000-1000-8000-00805f9b34fb");
 
-    private static final int CHARACTERISTIC_LENGTH = 20;
+    // ATT MTU sizes.  A notification carries MTU - ATT_HEADER_LENGTH bytes of data
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_LENGTH = 3;
 
     // Client Characteristic Configuration Descriptor
     public static final UUID NOTIFY_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
@@ -64,10 +70,19 @@ public class BlePeripheral {
     private BluetoothLeAdvertiser mBluetoothAdvertiser;
 
     private BluetoothDevice mConnectedCentral;
+    private final Map<String, Integer> mCentralMtus = new HashMap<>(); // negotiated MTU by Central address
     private BluetoothGattServer mGattServer;
     private BluetoothGattService mService;
     private BluetoothGattCharacteristic mCharacteristic;
 
+    /** Long reads **/
+    private final ReadSnapshotCache mReadSnapshots = new ReadSnapshotCache();
+    private long mLongReads = 0;
+
+    /** Long and reliable writes **/
+    private final PreparedWriteAssembler mPreparedWrites = new PreparedWriteAssembler();
+    private final ThroughputMeter mLongWriteThroughput = new ThroughputMeter("long writes");
+
 
     /**
      * Construct a new Peripheral
@@ -120,10 +135,11 @@ public class BlePeripheral {
     private void setupDevice() {
         mService = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-        // Give permission to write to the Characteristic so that notifications can be enabled or disabled
+        // Give permission to write to the Characteristic so that notifications can be enabled or disabled,
+        // and so that Centrals can write values longer than one packet with prepared writes
         mCharacteristic = new BluetoothGattCharacteristic(
                 CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
 
 
@@ -141,11 +157,15 @@ public class BlePeripheral {
         TimerTask updateReadCharacteristicTask = new TimerTask() {
             @Override
             public void run() {
-                int stringLength = (int) (Math.random() * CHARACTERISTIC_LENGTH);
+                BluetoothDevice connectedCentral = mConnectedCentral;
+                // at MTU 517 a notification could carry 514 bytes, but no attribute value is longer than 512
+                int maxLength = connectedCentral == null ? DEFAULT_MTU - ATT_HEADER_LENGTH
+                        : Math.min(getMaxNotificationLength(connectedCentral), PreparedWriteAssembler.MAX_ATTRIBUTE_LENGTH);
+                int stringLength = (int) (Math.random() * maxLength);
                 String randomString = DataConverter.getRandomString(stringLength);
                 mCharacteristic.setValue(randomString);
-                if (mConnectedCentral != null) {
-                    mGattServer.notifyCharacteristicChanged(mConnectedCentral, mCharacteristic, true);
+                if (connectedCentral != null) {
+                    mGattServer.notifyCharacteristicChanged(connectedCentral, mCharacteristic, true);
                 }
             }
         };
@@ -155,6 +175,47 @@ public class BlePeripheral {
 
 
 
+    /**
+     * Get the MTU negotiated with a Central
+     *
+     * @param central the connected Central
+     * @return the MTU, or DEFAULT_MTU if the Central never asked for a larger one
+     */
+    public int getMtu(BluetoothDevice central) {
+        synchronized (mCentralMtus) {
+            Integer mtu = mCentralMtus.get(central.getAddress());
+            return mtu == null ? DEFAULT_MTU : mtu;
+        }
+    }
+
+    /**
+     * The largest value that fits in one notification to a Central
+     *
+     * @param central the connected Central
+     * @return number of bytes
+     */
+    public int getMaxNotificationLength(BluetoothDevice central) {
+        return getMtu(central) - ATT_HEADER_LENGTH;
+    }
+
+
+    /**
+     * @return the number of values served across several Read Blob Requests
+     */
+    public long getLongReadCount() {
+        return mLongReads;
+    }
+
+    /**
+     * Data rate of executed long writes
+     *
+     * @return the ThroughputMeter for assembled values
+     */
+    public ThroughputMeter getLongWriteThroughput() {
+        return mLongWriteThroughput;
+    }
+
+
     /**
      * Start Advertising
      *
@@ -267,6 +328,12 @@ public class BlePeripheral {
 
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                     mConnectedCentral = null;
+                    synchronized (mCentralMtus) {
+                        mCentralMtus.remove(device.getAddress());
+                    }
+                    // a write that was never executed is thrown away
+                    mPreparedWrites.cancel(device.getAddress());
+                    mReadSnapshots.clear(device.getAddress());
                     mBlePeripheralCallback.onCentralDisconnected(device);
                     try {
                         startAdvertising();
@@ -285,13 +352,46 @@ public class BlePeripheral {
             Log.v(TAG, "Device tried to read characteristic: " + characteristic.getUuid());
             Log.v(TAG, "Characteristic value: " + characteristic.getValue().toString());
             Log.d(TAG, "Value: " + Arrays.toString(characteristic.getValue()));
-            if (offset != 0) {
+
+            // a Read Response carries MTU - 1 bytes.  Longer values are read in pieces at increasing offsets,
+            // all cut from the snapshot taken at offset 0 so the value can't change part way through
+            int maxResponseLength = getMtu(device) - 1;
+            byte[] value;
+            if (offset == 0) {
+                value = mReadSnapshots.snapshot(device.getAddress(), characteristic, maxResponseLength);
+            } else {
+                value = mReadSnapshots.get(device.getAddress(), characteristic);
+                if (value == null) {
+                    // the Central skipped offset 0.  Serve the current value
+                    value = mReadSnapshots.snapshot(device.getAddress(), characteristic, maxResponseLength);
+                }
+            }
+            if (offset > value.length) {
                 mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
             /* value (optional) */ null);
                 return;
             }
+
+            int end = Math.min(value.length, offset + maxResponseLength);
             mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
-                    offset, characteristic.getValue());
+                    offset, Arrays.copyOfRange(value, offset, end));
+
+            // the Central stops asking once a response comes back short.  A value of exactly
+            // maxResponseLength fills the first response, so it ends with an empty one
+            if (value.length >= maxResponseLength && end - offset < maxResponseLength) {
+                mLongReads++;
+                Log.v(TAG, "Served a " + value.length + "-byte long read to " + device.getAddress());
+                mReadSnapshots.release(device.getAddress(), characteristic);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.v(TAG, "MTU for " + device.getAddress() + " changed to " + mtu + ", " + (mtu - ATT_HEADER_LENGTH) + " bytes per notification");
+            synchronized (mCentralMtus) {
+                mCentralMtus.put(device.getAddress(), mtu);
+            }
         }
 
         @Override
@@ -307,7 +407,67 @@ public class BlePeripheral {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
                     responseNeeded, offset, value);
 
-            // do nothing; no characteristic in this Peripheral supports writes
+            if (!isCharacteristicWritable(characteristic)) {
+                if (responseNeeded) {
+                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset, null);
+                }
+                return;
+            }
+
+            if (preparedWrite) {
+                // part of a long or reliable write.  Hold it until the Central executes the write.
+                // The response echoes the segment so the Central can check it arrived intact
+                int status = mPreparedWrites.prepare(device.getAddress(), characteristic, offset, value);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Rejected prepared write at offset " + offset + ": status " + status);
+                }
+                if (responseNeeded) {
+                    mGattServer.sendResponse(device, requestId, status, offset, value);
+                }
+                return;
+            }
+
+            // a value that fits in one packet
+            int status = BluetoothGatt.GATT_SUCCESS;
+            if (offset != 0) {
+                status = BluetoothGatt.GATT_INVALID_OFFSET;
+            } else if (value.length > PreparedWriteAssembler.MAX_ATTRIBUTE_LENGTH) {
+                status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (responseNeeded) {
+                mGattServer.sendResponse(device, requestId, status, offset, value);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                characteristic.setValue(value);
+                mBlePeripheralCallback.onCharacteristicWritten(characteristic, value);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+
+            if (!execute) {
+                Log.v(TAG, "Central cancelled its prepared writes");
+                mPreparedWrites.cancel(device.getAddress());
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                return;
+            }
+
+            // every prepared value is written at once, so a reader never sees half of a long write
+            List<PreparedWriteAssembler.Assembly> assemblies = mPreparedWrites.execute(device.getAddress());
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            for (PreparedWriteAssembler.Assembly assembly : assemblies) {
+                byte[] value = assembly.getValue();
+                long age_ms = assembly.getAge();
+                assembly.getCharacteristic().setValue(value);
+                mLongWriteThroughput.record(value.length);
+                Log.v(TAG, "Executed long write: " + value.length + " bytes in " + assembly.getSegmentCount()
+                        + " segments over " + age_ms + "ms"
+                        + (age_ms > 0 ? ", " + (value.length * 1000L / age_ms) + "B/s" : "")
+                        + ". " + mLongWriteThroughput);
+                mBlePeripheralCallback.onCharacteristicWritten(assembly.getCharacteristic(), value);
+            }
         }
 
         // User tried to change a descriptor - check for Notification flag being set
@@ -0,0 +1,150 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the Prepare Write Requests a Central sends for a long or reliable write,
+ * until the Central executes or cancels them.
+ *
+ * Each Central gets its own assembly buffer for each Characteristic, so two Centrals
+ * writing at the same time can't corrupt each other's values.  A buffer may not grow past
+ * the size cap, and each segment must start inside or right after the bytes already
+ * received.  Nothing is written to the Characteristic until the Central executes the write.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-16
+ */
+public class PreparedWriteAssembler {
+    // the ATT protocol limits an attribute value to 512 bytes
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mMaxLength;
+    private final Map<String, Map<BluetoothGattCharacteristic, Assembly>> mAssemblies = new HashMap<>(); // by Central address
+
+    /**
+     * Create an assembler with the ATT size cap
+     */
+    public PreparedWriteAssembler() {
+        this(MAX_ATTRIBUTE_LENGTH);
+    }
+
+    /**
+     * @param maxLength the largest value a Central may assemble
+     */
+    public PreparedWriteAssembler(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Add a Prepare Write Request to a Central's buffer
+     *
+     * @param centralAddress the MAC address of the Central
+     * @param characteristic the Characteristic being written
+     * @param offset where the segment goes in the value
+     * @param value the segment
+     * @return BluetoothGatt.GATT_SUCCESS, GATT_INVALID_OFFSET or GATT_INVALID_ATTRIBUTE_LENGTH
+     */
+    public synchronized int prepare(String centralAddress, BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+        Map<BluetoothGattCharacteristic, Assembly> assemblies = mAssemblies.get(centralAddress);
+        if (assemblies == null) {
+            assemblies = new HashMap<>();
+            mAssemblies.put(centralAddress, assemblies);
+        }
+        Assembly assembly = assemblies.get(characteristic);
+        int length = assembly == null ? 0 : assembly.mLength;
+        if (offset < 0 || offset > length) return BluetoothGatt.GATT_INVALID_OFFSET;
+        if (offset + value.length > mMaxLength) return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+
+        if (assembly == null) {
+            assembly = new Assembly(characteristic);
+            assemblies.put(characteristic, assembly);
+        }
+        assembly.write(offset, value);
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * The Central executed its prepared writes.  Hand over everything it assembled
+     *
+     * @param centralAddress the MAC address of the Central
+     * @return the assembled values, one per Characteristic
+     */
+    public synchronized List<Assembly> execute(String centralAddress) {
+        Map<BluetoothGattCharacteristic, Assembly> assemblies = mAssemblies.remove(centralAddress);
+        if (assemblies == null) return new ArrayList<>();
+        return new ArrayList<>(assemblies.values());
+    }
+
+    /**
+     * The Central cancelled its prepared writes, or disconnected.  Throw away what it sent
+     *
+     * @param centralAddress the MAC address of the Central
+     */
+    public synchronized void cancel(String centralAddress) {
+        mAssemblies.remove(centralAddress);
+    }
+
+    /**
+     * @return the number of bytes waiting to be executed, across every Central
+     */
+    public synchronized int getPendingLength() {
+        int length = 0;
+        for (Map<BluetoothGattCharacteristic, Assembly> assemblies : mAssemblies.values()) {
+            for (Assembly assembly : assemblies.values()) length += assembly.mLength;
+        }
+        return length;
+    }
+
+    /**
+     * The value one Central has assembled for one Characteristic
+     */
+    public static class Assembly {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final long mStartedAt_ms = SystemClock.elapsedRealtime();
+        private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+        private int mLength = 0;
+        private int mSegments = 0;
+
+        Assembly(BluetoothGattCharacteristic characteristic) {
+            mCharacteristic = characteristic;
+        }
+
+        private void write(int offset, byte[] value) {
+            int end = offset + value.length;
+            if (end > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(end, mBuffer.length * 2));
+            }
+            System.arraycopy(value, 0, mBuffer, offset, value.length);
+            if (end > mLength) mLength = end;
+            mSegments++;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() { return mCharacteristic; }
+        public int getLength() { return mLength; }
+        public int getSegmentCount() { return mSegments; }
+
+        /**
+         * @return how long ago the first segment arrived, in milliseconds
+         */
+        public long getAge() {
+            return SystemClock.elapsedRealtime() - mStartedAt_ms;
+        }
+
+        /**
+         * @return a copy of the assembled value
+         */
+        public byte[] getValue() {
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the value a Central started reading, so that a long read is served from one
+ * consistent copy even if the Characteristic changes between its Read Blob Requests.
+ *
+ * A Central reads a value longer than one Read Response (MTU - 1 bytes) by reading offset 0
+ * and then asking for the rest at increasing offsets.  The read at offset 0 takes an immutable
+ * snapshot for that Central and Characteristic; later offsets are cut from the snapshot.
+ * A value that fills a whole response is stored too, because the Central can't tell it has
+ * all of it and asks for the next offset.  Shorter values are never stored.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-17
+ */
+public class ReadSnapshotCache {
+    private final Map<String, Map<BluetoothGattCharacteristic, byte[]>> mSnapshots = new HashMap<>(); // by Central address
+
+    /**
+     * A Central started reading a Characteristic.  Take a snapshot of its value
+     *
+     * @param centralAddress the MAC address of the Central
+     * @param characteristic the Characteristic being read
+     * @param maxResponseLength the number of bytes that fit in one Read Response
+     * @return the snapshot
+     */
+    public synchronized byte[] snapshot(String centralAddress, BluetoothGattCharacteristic characteristic, int maxResponseLength) {
+        byte[] value = characteristic.getValue();
+        byte[] snapshot = value == null ? new byte[0] : Arrays.copyOf(value, value.length);
+        Map<BluetoothGattCharacteristic, byte[]> snapshots = mSnapshots.get(centralAddress);
+        if (snapshot.length >= maxResponseLength) {
+            if (snapshots == null) {
+                snapshots = new HashMap<>();
+                mSnapshots.put(centralAddress, snapshots);
+            }
+            snapshots.put(characteristic, snapshot);
+        } else if (snapshots != null) {
+            snapshots.remove(characteristic);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the snapshot a Central is part way through reading
+     *
+     * @param centralAddress the MAC address of the Central
+     * @param characteristic the Characteristic being read
+     * @return the snapshot, or <b>null</b> if the Central never read offset 0
+     */
+    public synchronized byte[] get(String centralAddress, BluetoothGattCharacteristic characteristic) {
+        Map<BluetoothGattCharacteristic, byte[]> snapshots = mSnapshots.get(centralAddress);
+        return snapshots == null ? null : snapshots.get(characteristic);
+    }
+
+    /**
+     * The Central read the last piece of a snapshot
+     *
+     * @param centralAddress the MAC address of the Central
+     * @param characteristic the Characteristic that was read
+     */
+    public synchronized void release(String centralAddress, BluetoothGattCharacteristic characteristic) {
+        Map<BluetoothGattCharacteristic, byte[]> snapshots = mSnapshots.get(centralAddress);
+        if (snapshots != null) snapshots.remove(characteristic);
+    }
+
+    /**
+     * The Central disconnected.  Forget every snapshot it was reading
+     *
+     * @param centralAddress the MAC address of the Central
+     */
+    public synchronized void clear(String centralAddress) {
+        mSnapshots.remove(centralAddress);
+    }
+}
@@ -0,0 +1,76 @@
+package tonyg.example.com.examplebleperipheral.utilities;
+
+/**
+ * Counts bytes and packets over time so that data rates can be compared,
+ * for example between different MTUs or write modes
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-10
+ */
+public class ThroughputMeter {
+    private final String mName;
+    private long mStartTime_ns = 0;
+    private long mLastTime_ns = 0;
+    private long mBytes = 0;
+    private long mPackets = 0;
+
+    /**
+     * @param name the name used when logging
+     */
+    public ThroughputMeter(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record a packet
+     *
+     * @param length number of payload bytes in the packet
+     */
+    public synchronized void record(int length) {
+        long now_ns = System.nanoTime();
+        if (mPackets == 0) mStartTime_ns = now_ns;
+        mLastTime_ns = now_ns;
+        mBytes += length;
+        mPackets++;
+    }
+
+    /**
+     * Start measuring from scratch
+     */
+    public synchronized void reset() {
+        mStartTime_ns = 0;
+        mLastTime_ns = 0;
+        mBytes = 0;
+        mPackets = 0;
+    }
+
+    public synchronized long getBytes() { return mBytes; }
+    public synchronized long getPackets() { return mPackets; }
+
+    /**
+     * Average data rate between the first and last recorded packet
+     *
+     * @return bytes per second, or 0 if fewer than two packets were recorded
+     */
+    public synchronized double getBytesPerSecond() {
+        long elapsed_ns = mLastTime_ns - mStartTime_ns;
+        return elapsed_ns <= 0 ? 0 : mBytes * 1e9 / elapsed_ns;
+    }
+
+    /**
+     * Average packet rate between the first and last recorded packet
+     *
+     * @return packets per second, or 0 if fewer than two packets were recorded
+     */
+    public synchronized double getPacketsPerSecond() {
+        long elapsed_ns = mLastTime_ns - mStartTime_ns;
+        return elapsed_ns <= 0 ? 0 : (mPackets - 1) * 1e9 / elapsed_ns;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mBytes + "B in " + mPackets + " packets, "
+                + (long) getBytesPerSecond() + "B/s, "
+                + String.format("%.1f", getPacketsPerSecond()) + " packets/s";
+    }
+}